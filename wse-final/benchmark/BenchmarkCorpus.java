@@ -0,0 +1,176 @@
+package benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A deterministic synthetic corpus of HTML pages for the benchmarks, in the format of
+ * the wiki corpus: a title, an h2 header and paragraphs of text with anchors to other
+ * pages of the corpus. The words follow a Zipf distribution over a fixed vocabulary,
+ * so that queries hit posting lists of realistic lengths, and so do the link targets,
+ * so that a few pages collect most of the links. A fraction of the pages are near
+ * duplicates of earlier pages, with a few words changed.
+ */
+public class BenchmarkCorpus {
+
+    private static final int VOCABULARY_SIZE = 20000;
+    private static final double ZIPF_EXPONENT = 1.0;
+
+    // Fraction of the pages that are near duplicates, and of the words changed in them.
+    private static final double DUPLICATE_FRACTION = 0.1;
+    private static final double DUPLICATE_EDIT_RATE = 0.05;
+
+    private final String[] vocabulary_;
+    private final double[] wordCdf_;
+    private final double[] pageCdf_;
+    private final Random random_;
+
+    private final List<String> names_;
+    private final List<byte[]> contents_;
+
+    public BenchmarkCorpus(int numPages, long seed) {
+	random_ = new Random(seed);
+	vocabulary_ = new String[VOCABULARY_SIZE];
+	for (int i = 0; i < VOCABULARY_SIZE; ++i) {
+	    vocabulary_[i] = makeWord(i);
+	}
+	wordCdf_ = zipfCdf(VOCABULARY_SIZE);
+	pageCdf_ = zipfCdf(numPages);
+	names_ = new ArrayList<String>(numPages);
+	contents_ = new ArrayList<byte[]>(numPages);
+	List<List<String>> words = new ArrayList<List<String>>(numPages);
+	for (int page = 0; page < numPages; ++page) {
+	    names_.add(String.format("Page%06d.html", page));
+	    List<String> pageWords;
+	    if (page > 0 && random_.nextDouble() < DUPLICATE_FRACTION) {
+		pageWords = new ArrayList<String>(words.get(random_.nextInt(page)));
+		for (int i = 0; i < pageWords.size(); ++i) {
+		    if (random_.nextDouble() < DUPLICATE_EDIT_RATE) {
+			pageWords.set(i, nextWord());
+		    }
+		}
+	    } else {
+		int numWords = 200 + random_.nextInt(600);
+		pageWords = new ArrayList<String>(numWords);
+		for (int i = 0; i < numWords; ++i) {
+		    pageWords.add(nextWord());
+		}
+	    }
+	    words.add(pageWords);
+	    contents_.add(toHtml(pageWords).getBytes(StandardCharsets.UTF_8));
+	}
+    }
+
+    public int size() {
+	return names_.size();
+    }
+
+    public String getName(int page) {
+	return names_.get(page);
+    }
+
+    public byte[] getContent(int page) {
+	return contents_.get(page);
+    }
+
+    // Returns a word drawn from the Zipf distribution of the corpus, e.g. for queries.
+    public String nextWord() {
+	return vocabulary_[sample(wordCdf_)];
+    }
+
+    // Writes the pages as files into dir.
+    public void writeTo(Path dir) throws IOException {
+	Files.createDirectories(dir);
+	for (int page = 0; page < size(); ++page) {
+	    Files.write(dir.resolve(getName(page)), getContent(page));
+	}
+    }
+
+    private String toHtml(List<String> words) {
+	StringBuilder title = new StringBuilder();
+	for (int i = 0; i < Math.min(3, words.size()); ++i) {
+	    title.append(i > 0 ? " " : "").append(words.get(i));
+	}
+	StringBuilder html = new StringBuilder();
+	html.append("<html>\n<head><title>").append(title).append("</title></head>\n<body>\n");
+	html.append("<h2>").append(title).append("</h2>\n");
+	int i = 0;
+	while (i < words.size()) {
+	    html.append("<p>\n");
+	    int end = Math.min(words.size(), i + 40 + random_.nextInt(80));
+	    for (; i < end; ++i) {
+		if (random_.nextInt(25) == 0) {
+		    // An anchor, sometimes highlighted.
+		    String target = String.format("Page%06d.html", sample(pageCdf_));
+		    boolean bold = random_.nextInt(5) == 0;
+		    html.append(bold ? "<b>" : "").append("<A href=\"").append(target).append("\">")
+			.append(words.get(i)).append("</A>").append(bold ? "</b>" : "");
+		} else {
+		    html.append(words.get(i));
+		}
+		html.append(i % 15 == 14 ? ".\n" : " ");
+	    }
+	    html.append("\n");
+	}
+	html.append("</body>\n</html>\n");
+	return html.toString();
+    }
+
+    private int sample(double[] cdf) {
+	int i = Arrays.binarySearch(cdf, random_.nextDouble() * cdf[cdf.length - 1]);
+	return Math.min(cdf.length - 1, i >= 0 ? i : -i - 1);
+    }
+
+    private static double[] zipfCdf(int n) {
+	double[] cdf = new double[Math.max(1, n)];
+	double sum = 0;
+	for (int i = 0; i < cdf.length; ++i) {
+	    sum += 1.0 / Math.pow(i + 1, ZIPF_EXPONENT);
+	    cdf[i] = sum;
+	}
+	return cdf;
+    }
+
+    // Makes a pronounceable word out of the base 10 digits of i, one syllable per digit.
+    private static String makeWord(int i) {
+	String[] syllables = { "ka", "lo", "mi", "ne", "ru", "ta", "vo", "si", "de", "gu" };
+	StringBuilder word = new StringBuilder();
+	do {
+	    word.append(syllables[i % syllables.length]);
+	    i /= syllables.length;
+	} while (i > 0);
+	return word.toString();
+    }
+
+    // Deletes a directory tree created by a benchmark.
+    public static void deleteRecursively(File file) {
+	File[] children = file.listFiles();
+	if (children != null) {
+	    for (File child : children) {
+		deleteRecursively(child);
+	    }
+	}
+	file.delete();
+    }
+
+    // A stream that discards everything, to silence the progress output of the code
+    // under test, which would otherwise be measured along with it.
+    public static PrintStream nullPrintStream() {
+	return new PrintStream(new OutputStream() {
+		public void write(int b) {
+		}
+
+		public void write(byte[] b, int off, int len) {
+		}
+	    });
+    }
+}
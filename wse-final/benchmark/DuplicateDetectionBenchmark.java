@@ -0,0 +1,78 @@
+package benchmark;
+
+import htmlparser.ParsedPage;
+import htmlparser.StreamingHTMLHandler;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import util.NearDuplicateDetector;
+
+/**
+ * The duplicate detection step of the build over already parsed pages: the MinHash
+ * signature of every page, then the LSH banding and verification of the candidate
+ * pairs. A tenth of the corpus pages are near duplicates of other pages.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DuplicateDetectionBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int corpusSize;
+
+    List<ParsedPage> pages_;
+
+    // A detector that has signed every page, for findDuplicatePairs().
+    NearDuplicateDetector signed_;
+
+    @Setup
+    public void setUp() {
+	BenchmarkCorpus corpus = new BenchmarkCorpus(corpusSize, 42);
+	StreamingHTMLHandler handler = new StreamingHTMLHandler();
+	pages_ = new ArrayList<ParsedPage>(corpus.size());
+	for (int page = 0; page < corpus.size(); ++page) {
+	    pages_.add(handler.parse(new File("corpus", corpus.getName(page)), corpus.getContent(page)));
+	}
+	signed_ = sign();
+    }
+
+    private NearDuplicateDetector sign() {
+	NearDuplicateDetector detector = new NearDuplicateDetector();
+	for (ParsedPage page : pages_) {
+	    detector.addDocument(page.getName(), page.getText());
+	}
+	return detector;
+    }
+
+    // Signing and banding together, as Util.runMinHashAlgorithm() runs them.
+    @Benchmark
+    public Set<String> detect() {
+	return sign().findDuplicatePairs();
+    }
+
+    @Benchmark
+    public NearDuplicateDetector addDocuments() {
+	return sign();
+    }
+
+    @Benchmark
+    public Set<String> findDuplicatePairs() {
+	return signed_.findDuplicatePairs();
+    }
+}
@@ -0,0 +1,91 @@
+package benchmark;
+
+import htmlparser.ParsedPage;
+import htmlparser.StreamingHTMLHandler;
+import indexer.PageRank;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import util.DocDictionary;
+
+/**
+ * The two steps of PageRank over already parsed pages: readPages(), which resolves the
+ * anchors of every page to page ids and builds the weighted link graph, and
+ * calculatePageRanks(), the power iteration over that graph. PageRank reports its
+ * progress on System.out, which is silenced while the benchmarks run.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PageRankBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int corpusSize;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    List<ParsedPage> pages_;
+
+    // A PageRank whose link graph has been read, for calculatePageRanks().
+    PageRank pageRank_;
+
+    PrintStream out_;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+	out_ = System.out;
+	System.setOut(BenchmarkCorpus.nullPrintStream());
+	BenchmarkCorpus corpus = new BenchmarkCorpus(corpusSize, 42);
+	StreamingHTMLHandler handler = new StreamingHTMLHandler();
+	pages_ = new ArrayList<ParsedPage>(corpus.size());
+	for (int page = 0; page < corpus.size(); ++page) {
+	    pages_.add(handler.parse(new File("corpus", corpus.getName(page)), corpus.getContent(page)));
+	}
+	pageRank_ = newPageRank();
+	pageRank_.readPages();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+	System.setOut(out_);
+    }
+
+    private PageRank newPageRank() {
+	PageRank pageRank = new PageRank("corpus", 0.7, new DocDictionary(pages_.size()));
+	pageRank.setParallelism(parallelism);
+	pageRank.calculateQualities(pages_);
+	return pageRank;
+    }
+
+    // The page ids and qualities are set up along with the link graph, as the indexer does.
+    @Benchmark
+    public PageRank readPages() throws Exception {
+	PageRank pageRank = newPageRank();
+	pageRank.readPages();
+	return pageRank;
+    }
+
+    @Benchmark
+    public double[] calculatePageRanks() {
+	return pageRank_.calculatePageRanks();
+    }
+}
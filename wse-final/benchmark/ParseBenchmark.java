@@ -0,0 +1,78 @@
+package benchmark;
+
+import htmlparser.JTidyHTMLHandler;
+import htmlparser.ParsedPage;
+import htmlparser.StreamingHTMLHandler;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of one HTML page, with either handler: the single DOM pass of JTidy, or the
+ * streaming extractor (which falls back to JTidy for pages it doesn't support). Each
+ * operation parses the next page of the corpus, so the scores are per page.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Corpus {
+	@Param({"100", "1000", "10000"})
+	public int corpusSize;
+
+	BenchmarkCorpus corpus;
+	File[] files;
+	int next;
+
+	@Setup
+	public void setUp() {
+	    corpus = new BenchmarkCorpus(corpusSize, 42);
+	    // The pages are parsed from memory; the files only give them their names.
+	    files = new File[corpus.size()];
+	    for (int page = 0; page < corpus.size(); ++page) {
+		files[page] = new File("corpus", corpus.getName(page));
+	    }
+	    next = 0;
+	}
+
+	// Returns the next page to parse, going round the corpus.
+	int nextPage() {
+	    int page = next;
+	    next = (page + 1) % files.length;
+	    return page;
+	}
+    }
+
+    @State(Scope.Thread)
+    public static class Handler {
+	@Param({"jtidy", "streaming"})
+	public String parser;
+
+	JTidyHTMLHandler handler;
+
+	@Setup
+	public void setUp() {
+	    handler = "jtidy".equals(parser) ? new JTidyHTMLHandler() : new StreamingHTMLHandler();
+	}
+    }
+
+    @Benchmark
+    public ParsedPage parse(Corpus corpus, Handler handler) {
+	int page = corpus.nextPage();
+	return handler.handler.parse(corpus.files[page], corpus.corpus.getContent(page));
+    }
+}
@@ -0,0 +1,109 @@
+package benchmark;
+
+import indexer.Main;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Rescorer;
+import org.apache.lucene.store.FSDirectory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import retriever.Retriever;
+import util.Util;
+
+/**
+ * A query against a prebuilt index, with the first results page loaded as the search
+ * page shows it: the stored fields and snippet of every hit. The index is built by the
+ * indexer from the synthetic corpus once per trial, and each operation runs the next
+ * query of a fixed list of one to three words drawn from the corpus vocabulary.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SearchBenchmark {
+
+    private static final int NUM_QUERIES = 256;
+
+    @Param({"1000", "10000"})
+    public int corpusSize;
+
+    @Param({Retriever.SCORING_TEXT, Retriever.SCORING_PAGERANK})
+    public String scoring;
+
+    Path dir_;
+    DirectoryReader reader_;
+    IndexSearcher searcher_;
+    QueryParser parser_;
+    Rescorer rescorer_;
+    String[] queries_;
+    int next_;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+	BenchmarkCorpus corpus = new BenchmarkCorpus(corpusSize, 42);
+	dir_ = Files.createTempDirectory("search-benchmark");
+	Path docsDir = dir_.resolve("docs");
+	Path indexDir = dir_.resolve("index");
+	corpus.writeTo(docsDir);
+	// The indexer reports its progress per document; keep it out of the benchmark output.
+	PrintStream out = System.out;
+	System.setOut(BenchmarkCorpus.nullPrintStream());
+	try {
+	    Main indexer = new Main(docsDir.toString(), indexDir.toString());
+	    try {
+		indexer.initialize();
+		indexer.index(new Util.HTMLFilesFilter(), 1);
+	    } finally {
+		indexer.close();
+	    }
+	} finally {
+	    System.setOut(out);
+	}
+	reader_ = DirectoryReader.open(FSDirectory.open(indexDir));
+	searcher_ = Retriever.newSearcher(reader_, scoring);
+	parser_ = new QueryParser("body", new StandardAnalyzer());
+	rescorer_ = Retriever.getRescorer(scoring, Retriever.DEFAULT_PRIOR_WEIGHT);
+	queries_ = new String[NUM_QUERIES];
+	for (int i = 0; i < NUM_QUERIES; ++i) {
+	    StringBuilder query = new StringBuilder(corpus.nextWord());
+	    for (int words = i % 3; words > 0; --words) {
+		query.append(' ').append(corpus.nextWord());
+	    }
+	    queries_[i] = query.toString();
+	}
+	next_ = 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+	reader_.close();
+	BenchmarkCorpus.deleteRecursively(dir_.toFile());
+    }
+
+    @Benchmark
+    public Retriever.Results search() throws Exception {
+	String query = queries_[next_];
+	next_ = (next_ + 1) % NUM_QUERIES;
+	return Retriever.search(searcher_, parser_, query, 0, rescorer_);
+    }
+}
@@ -0,0 +1,108 @@
+package benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import util.UF;
+
+/**
+ * Clustering of duplicate pairs with the union-find: the union of every pair, then a
+ * find for every document, as the indexer assigns the cluster ids. The pairs are drawn
+ * the way duplicate detection reports them: the cluster sizes follow a power law, so
+ * most documents are alone and a few clusters are large, and every pair of documents
+ * in a cluster is reported, in no particular order.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UnionFindBenchmark {
+
+    // Largest cluster, which bounds the number of pairs a cluster contributes.
+    private static final int MAX_CLUSTER_SIZE = 50;
+
+    @Param({"10000", "100000", "1000000"})
+    public int numDocs;
+
+    // The duplicate pairs, as two parallel arrays of document ids.
+    int[] firsts_;
+    int[] seconds_;
+
+    @Setup
+    public void setUp() {
+	Random random = new Random(42);
+	int[] docs = new int[numDocs];
+	for (int i = 0; i < numDocs; ++i) {
+	    docs[i] = i;
+	}
+	shuffle(docs, random);
+	int numPairs = 0;
+	firsts_ = new int[numDocs];
+	seconds_ = new int[numDocs];
+	int doc = 0;
+	while (doc < numDocs) {
+	    // P(size >= s) = 1 / s^2: three clusters in four are a single document.
+	    int size = (int) Math.min(MAX_CLUSTER_SIZE, Math.floor(1 / Math.sqrt(1 - random.nextDouble())));
+	    size = Math.min(size, numDocs - doc);
+	    for (int i = doc; i < doc + size; ++i) {
+		for (int j = i + 1; j < doc + size; ++j) {
+		    if (numPairs == firsts_.length) {
+			firsts_ = Arrays.copyOf(firsts_, numPairs * 2);
+			seconds_ = Arrays.copyOf(seconds_, numPairs * 2);
+		    }
+		    firsts_[numPairs] = docs[i];
+		    seconds_[numPairs] = docs[j];
+		    numPairs++;
+		}
+	    }
+	    doc += size;
+	}
+	firsts_ = Arrays.copyOf(firsts_, numPairs);
+	seconds_ = Arrays.copyOf(seconds_, numPairs);
+	// Report the pairs in random order.
+	for (int i = numPairs - 1; i > 0; --i) {
+	    int j = random.nextInt(i + 1);
+	    int first = firsts_[i];
+	    int second = seconds_[i];
+	    firsts_[i] = firsts_[j];
+	    seconds_[i] = seconds_[j];
+	    firsts_[j] = first;
+	    seconds_[j] = second;
+	}
+    }
+
+    private static void shuffle(int[] a, Random random) {
+	for (int i = a.length - 1; i > 0; --i) {
+	    int j = random.nextInt(i + 1);
+	    int t = a[i];
+	    a[i] = a[j];
+	    a[j] = t;
+	}
+    }
+
+    @Benchmark
+    public int[] clusters() {
+	UF uf = new UF(numDocs);
+	for (int i = 0; i < firsts_.length; ++i) {
+	    uf.union(firsts_[i], seconds_[i]);
+	}
+	int[] clusterIds = new int[numDocs];
+	for (int doc = 0; doc < numDocs; ++doc) {
+	    clusterIds[doc] = uf.find(doc);
+	}
+	return clusterIds;
+    }
+}
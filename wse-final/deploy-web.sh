@@ -34,9 +34,12 @@ cp -R ~/wse-final/cli/ ./csci2580-final/
 
 mkdir csci2580-final/retriever
 mkdir csci2580-final/util
+mkdir csci2580-final/indexer
 
 cp ~/wse-final/retriever/*.class csci2580-final/retriever
 cp ~/wse-final/util/*.class csci2580-final/util
+# The retriever reads the schema and the shard layout of the index from these.
+cp ~/wse-final/indexer/Schema.class ~/wse-final/indexer/Shards.class csci2580-final/indexer
 
 chmod a+r -R csci2580-final/
 
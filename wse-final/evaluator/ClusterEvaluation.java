@@ -0,0 +1,241 @@
+package evaluator;
+
+import htmlparser.JTidyHTMLHandler;
+import htmlparser.ParsedPage;
+import htmlparser.StreamingHTMLHandler;
+import java.io.BufferedReader;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Set;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import util.DocDictionary;
+import util.DocumentWalker;
+import util.NearDuplicateDetector;
+import util.UF;
+import util.Util;
+
+/**
+ * Compares a predicted clustering of the documents with the true one by pair counting,
+ * without visiting the pairs. Two documents are a true positive pair if they are in the
+ * same predicted cluster and in the same true cluster. Every such pair falls in one cell
+ * of the contingency table of predicted cluster x true cluster, so with n_ij documents
+ * in cell (i, j), a_i in predicted cluster i and b_j in true cluster j:
+ * <pre>
+ *   TP = sum C(n_ij, 2)
+ *   FP = sum C(a_i, 2) - TP
+ *   FN = sum C(b_j, 2) - TP
+ *   TN = C(N, 2) - TP - FP - FN
+ * </pre>
+ * The table is built by sorting the (predicted, true) cluster id pairs of the documents,
+ * in O(N log N). All counts are longs: C(N, 2) overflows an int from N = 65536.
+ * <p>
+ * Besides the pair precision, recall and F1, the adjusted Rand index is reported: the
+ * Rand index corrected for the agreement expected between random clusterings of the
+ * same cluster sizes. It is 1 for identical clusterings and about 0 for unrelated ones,
+ * and unlike the pair F1 it also credits the true negatives.
+ */
+public class ClusterEvaluation {
+
+    private final long numDocs_;
+    private final long truePos_;
+    private final long falsePos_;
+    private final long falseNeg_;
+    private final long trueNeg_;
+    private final int numPredictedClusters_;
+    private final int numTrueClusters_;
+
+    /**
+     * @param predicted the predicted cluster id of every document, e.g. its union-find root
+     * @param truth the true cluster id of every document
+     */
+    public ClusterEvaluation(int[] predicted, int[] truth) {
+	if (predicted.length != truth.length) {
+	    throw new IllegalArgumentException("Clusterings of " + predicted.length + " and " +
+					       truth.length + " documents");
+	}
+	int n = predicted.length;
+	numDocs_ = n;
+	// Each key holds the predicted cluster in the upper 32 bits and the true one in the
+	// lower 32 bits, so that the documents of a cell, and of a predicted cluster, are adjacent.
+	long[] keys = new long[n];
+	for (int doc = 0; doc < n; ++doc) {
+	    keys[doc] = ((long) predicted[doc] << 32) | (truth[doc] & 0xFFFFFFFFL);
+	}
+	Arrays.sort(keys);
+	long cellPairs = 0;
+	long predictedPairs = 0;
+	int numPredictedClusters = 0;
+	for (int start = 0; start < n; ) {
+	    int end = start + 1;
+	    while (end < n && keys[end] == keys[start]) {
+		end++;
+	    }
+	    cellPairs += choose2(end - start);
+	    start = end;
+	}
+	for (int start = 0; start < n; ) {
+	    int end = start + 1;
+	    while (end < n && (keys[end] >>> 32) == (keys[start] >>> 32)) {
+		end++;
+	    }
+	    predictedPairs += choose2(end - start);
+	    numPredictedClusters++;
+	    start = end;
+	}
+	int[] trueIds = truth.clone();
+	Arrays.sort(trueIds);
+	long truePairs = 0;
+	int numTrueClusters = 0;
+	for (int start = 0; start < n; ) {
+	    int end = start + 1;
+	    while (end < n && trueIds[end] == trueIds[start]) {
+		end++;
+	    }
+	    truePairs += choose2(end - start);
+	    numTrueClusters++;
+	    start = end;
+	}
+	truePos_ = cellPairs;
+	falsePos_ = predictedPairs - cellPairs;
+	falseNeg_ = truePairs - cellPairs;
+	trueNeg_ = choose2(n) - truePos_ - falsePos_ - falseNeg_;
+	numPredictedClusters_ = numPredictedClusters;
+	numTrueClusters_ = numTrueClusters;
+    }
+
+    private static long choose2(long n) {
+	return n * (n - 1) / 2;
+    }
+
+    public long getTruePositives() {
+	return truePos_;
+    }
+
+    public long getFalsePositives() {
+	return falsePos_;
+    }
+
+    public long getFalseNegatives() {
+	return falseNeg_;
+    }
+
+    public long getTrueNegatives() {
+	return trueNeg_;
+    }
+
+    public double getPrecision() {
+	return truePos_ / (double) (truePos_ + falsePos_);
+    }
+
+    public double getRecall() {
+	return truePos_ / (double) (truePos_ + falseNeg_);
+    }
+
+    public double getF1() {
+	double precision = getPrecision();
+	double recall = getRecall();
+	return (2.0 * precision * recall) / (precision + recall);
+    }
+
+    // ARI = (TP - E[TP]) / (mean(predicted pairs, true pairs) - E[TP]), where
+    // E[TP] = predicted pairs * true pairs / C(N, 2). Two clusterings without any pair
+    // (e.g. all singletons) are identical, and get 1.
+    public double getAdjustedRandIndex() {
+	double predictedPairs = truePos_ + falsePos_;
+	double truePairs = truePos_ + falseNeg_;
+	double allPairs = choose2(numDocs_);
+	double expected = allPairs == 0 ? 0 : predictedPairs * truePairs / allPairs;
+	double max = (predictedPairs + truePairs) / 2;
+	if (max == expected) {
+	    return 1.0;
+	}
+	return (truePos_ - expected) / (max - expected);
+    }
+
+    public void print() {
+	System.out.println("Documents: " + numDocs_ + ", predicted clusters: " + numPredictedClusters_ +
+			   ", true clusters: " + numTrueClusters_);
+	System.out.println("TP: " + truePos_ + ", FP: " + falsePos_ + ", FN: " + falseNeg_ + ", TN: " + trueNeg_);
+	System.out.println("Precision: " + getPrecision());
+	System.out.println("Recall: " + getRecall());
+	System.out.println("F score: " + getF1());
+	System.out.println("Adjusted Rand index: " + getAdjustedRandIndex());
+    }
+
+    // Evaluates the duplicates detected in a directory against ground truth clusters in the
+    // format written by CorpusSynthesizer. Only the counts are printed, not the pairs.
+    public static void main(String[] args) throws Exception {
+	Options options = new Options();
+        options.addOption(OptionBuilder.withLongOpt("docs")
+                          .withDescription("Path to the directory containing the documents")
+                          .hasArg()
+                          .isRequired()
+                          .create('d'));
+	options.addOption(OptionBuilder.withLongOpt("truth")
+                          .withDescription("File with the true clusters of duplicates, one comma-separated line per cluster")
+                          .hasArg()
+                          .isRequired()
+                          .create());
+	NearDuplicateDetector.addOptions(options);
+	CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(options, args);
+
+	long start = System.currentTimeMillis();
+	NearDuplicateDetector detector = NearDuplicateDetector.fromCommandLine(cmd);
+	DocDictionary docIds = new DocDictionary();
+	JTidyHTMLHandler htmlHandler = new StreamingHTMLHandler();
+	Iterator<DocumentWalker.Entry> files = DocumentWalker.iterate(cmd.getOptionValue("d"), null);
+	while (files.hasNext()) {
+	    ParsedPage page = Util.extractPage(files.next().toFile(), htmlHandler);
+	    docIds.add(page.getName());
+	    detector.addDocument(page.getName(), page.getText());
+	}
+	Set<String> pairs = detector.findDuplicatePairs();
+	System.out.printf("Detected %d duplicate pairs among %d documents in %d ms\n",
+			  pairs.size(), docIds.size(), System.currentTimeMillis() - start);
+
+	start = System.currentTimeMillis();
+	int numDocs = docIds.size();
+	UF unionFind = new UF(numDocs);
+	for (String pair : pairs) {
+	    String[] docs = pair.split(",");
+	    unionFind.union(docIds.getId(docs[0]), docIds.getId(docs[1]));
+	}
+	int[] predicted = new int[numDocs];
+	int[] truth = new int[numDocs];
+	for (int doc = 0; doc < numDocs; ++doc) {
+	    predicted[doc] = unionFind.find(doc);
+	    // Documents without duplicates are clusters of their own.
+	    truth[doc] = doc;
+	}
+	BufferedReader reader = Files.newBufferedReader(FileSystems.getDefault().getPath(cmd.getOptionValue("truth")));
+	try {
+	    String line;
+	    while ((line = reader.readLine()) != null) {
+		int cluster = -1;
+		for (String name : line.split(",")) {
+		    int doc = docIds.getId(name.trim());
+		    if (doc < 0) {
+			// Not in the directory.
+			continue;
+		    }
+		    if (cluster < 0) {
+			cluster = doc;
+		    }
+		    truth[doc] = cluster;
+		}
+	    }
+	} finally {
+	    reader.close();
+	}
+	ClusterEvaluation evaluation = new ClusterEvaluation(predicted, truth);
+	System.out.printf("Evaluated in %d ms\n", System.currentTimeMillis() - start);
+	evaluation.print();
+    }
+}
@@ -0,0 +1,382 @@
+package evaluator;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+
+/**
+ * Synthesizes a corpus of HTML pages of any size, to load-test the indexer, PageRank and
+ * duplicate detection on one machine. Unlike DuplicateGenerator, which duplicates an
+ * existing corpus, the pages are made up from the words of the WordNet dictionary:
+ * <ul>
+ * <li>Every original page links to other original pages. The targets are drawn from a
+ * power law, so the in-degrees follow Zipf's law: a few pages get most of the links.
+ * Some of the anchors are highlighted with &lt;b&gt;, which PageRank weighs double.
+ * <li>Like in DuplicateGenerator, a fraction of the pages get 1 to MAX_DUPS_PER_PAGE
+ * duplicates, named page_dup_N.html, which are copies with random words inserted.
+ * The duplicates keep the links of their original.
+ * </ul>
+ * The ground truth is written as one line per cluster of duplicates: the comma-separated
+ * names of the original and its duplicates. Pages that are not listed have no duplicate.
+ * <p>
+ * The pages are generated in batches on a thread pool, and each page is assembled in
+ * memory and written with a single call. Every page draws its random choices from its
+ * own generator, seeded from the seed and its number, so the corpus only depends on the
+ * seed and the parameters, not on the number of threads. The pages are spread over
+ * subdirectories of PAGES_PER_DIR originals each.
+ */
+public class CorpusSynthesizer {
+
+    public static final int DEFAULT_LINKS_PER_PAGE = 10;
+    public static final double DEFAULT_LINK_EXPONENT = 1.0;
+    public static final int DEFAULT_WORDS_PER_PAGE = 300;
+
+    // The Zipf exponent of the words of the pages.
+    private static final double WORD_EXPONENT = 1.0;
+
+    // The fraction of anchors that are highlighted.
+    private static final double HIGHLIGHTED_LINK_RATIO = 0.2;
+
+    // The mean number of words in a paragraph.
+    private static final int WORDS_PER_PARAGRAPH = 60;
+
+    // The number of original pages in each subdirectory of the output, and in each batch.
+    private static final int PAGES_PER_DIR = 10000;
+    private static final int PAGES_PER_BATCH = 1000;
+
+    // The directory to write the pages to.
+    String outputDir_;
+
+    // The number of original pages.
+    int numPages_;
+
+    long seed_;
+
+    // The words the pages are made of, the most frequent first.
+    String[] words_;
+
+    // The mean number of links from a page, and the exponent of the power law of their targets.
+    int linksPerPage_;
+    double linkExponent_;
+
+    // The mean number of words in a page.
+    int wordsPerPage_;
+
+    // The fraction of pages that get duplicates.
+    double dupRatio_;
+
+    int numThreads_;
+
+    // Maps the popularity rank of a page, as drawn from the power law, to the page, so that
+    // the popular pages are spread over the corpus. It is coprime with numPages_.
+    long stride_;
+
+    public CorpusSynthesizer(String outputDir, int numPages, String[] words, long seed) {
+	outputDir_ = outputDir;
+	numPages_ = numPages;
+	words_ = words;
+	seed_ = seed;
+	linksPerPage_ = DEFAULT_LINKS_PER_PAGE;
+	linkExponent_ = DEFAULT_LINK_EXPONENT;
+	wordsPerPage_ = DEFAULT_WORDS_PER_PAGE;
+	dupRatio_ = DuplicateGenerator.PAGE_DUP_RATIO;
+	numThreads_ = 1;
+	stride_ = 1;
+	for (long stride = 1000003; stride < 1000003 + numPages; ++stride) {
+	    if (gcd(stride, numPages) == 1) {
+		stride_ = stride;
+		break;
+	    }
+	}
+    }
+
+    public void setLinksPerPage(int linksPerPage) {
+	linksPerPage_ = linksPerPage;
+    }
+
+    public void setLinkExponent(double linkExponent) {
+	linkExponent_ = linkExponent;
+    }
+
+    public void setWordsPerPage(int wordsPerPage) {
+	wordsPerPage_ = Math.max(1, wordsPerPage);
+    }
+
+    public void setDupRatio(double dupRatio) {
+	dupRatio_ = dupRatio;
+    }
+
+    public void setNumThreads(int numThreads) {
+	numThreads_ = Math.max(1, numThreads);
+    }
+
+    // Returns the name of an original page, e.g. page00000042.html. It is built by hand, since
+    // String.format() takes most of the time of the generation of the links.
+    public static String getPageName(int page) {
+	String number = Integer.toString(page);
+	StringBuilder name = new StringBuilder(17).append("page");
+	for (int i = number.length(); i < 8; ++i) {
+	    name.append('0');
+	}
+	return name.append(number).append(".html").toString();
+    }
+
+    // The pages and clusters written by a batch, and the ground truth lines of its clusters.
+    private static class Batch {
+	int numPages = 0;
+	int numClusters = 0;
+	long numBytes = 0;
+	StringBuilder truth = new StringBuilder();
+    }
+
+    /**
+     * Writes the corpus, and its ground truth to <tt>truth</tt> if it is not null.
+     *
+     * @return the number of pages written, originals and duplicates
+     */
+    public long synthesize(Writer truth) throws IOException {
+	long start = System.currentTimeMillis();
+	ExecutorService pool = Executors.newFixedThreadPool(numThreads_);
+	long numPages = 0;
+	long numClusters = 0;
+	long numBytes = 0;
+	try {
+	    List<Future<Batch>> batches = new ArrayList<Future<Batch>>();
+	    for (int first = 0; first < numPages_; first += PAGES_PER_BATCH) {
+		final int from = first;
+		final int to = (int) Math.min(numPages_, (long) first + PAGES_PER_BATCH);
+		batches.add(pool.submit(new Callable<Batch>() {
+			public Batch call() throws IOException {
+			    return writeBatch(from, to);
+			}
+		    }));
+	    }
+	    // Collect the batches in order, so the ground truth is in page order.
+	    for (int i = 0; i < batches.size(); ++i) {
+		Batch batch = batches.get(i).get();
+		batches.set(i, null);
+		numPages += batch.numPages;
+		numClusters += batch.numClusters;
+		numBytes += batch.numBytes;
+		if (truth != null) {
+		    truth.write(batch.truth.toString());
+		}
+	    }
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IOException("Interrupted while writing the corpus", e);
+	} catch (ExecutionException e) {
+	    if (e.getCause() instanceof IOException) {
+		throw (IOException) e.getCause();
+	    }
+	    throw new RuntimeException(e.getCause());
+	} finally {
+	    pool.shutdownNow();
+	}
+	long millis = Math.max(1, System.currentTimeMillis() - start);
+	System.out.printf("Wrote %d pages (%d originals, %d clusters of duplicates), %d MB in %d ms on %d thread(s) (%.1f pages/sec)\n",
+			  numPages, numPages_, numClusters, numBytes >> 20, millis, numThreads_,
+			  numPages * 1000.0 / millis);
+	return numPages;
+    }
+
+    // Writes the original pages from..to-1 and their duplicates.
+    private Batch writeBatch(int from, int to) throws IOException {
+	Batch batch = new Batch();
+	Path dir = FileSystems.getDefault().getPath(outputDir_, String.format("%05d", from / PAGES_PER_DIR));
+	Files.createDirectories(dir);
+	List<String> tokens = new ArrayList<String>();
+	StringBuilder html = new StringBuilder();
+	for (int page = from; page < to; ++page) {
+	    Random random = new Random(mix(seed_ + mix(page)));
+	    String basename = getPageName(page);
+	    String title = makeTitle(random);
+	    makeBody(random, tokens);
+	    writePage(dir.resolve(basename), title, tokens, null, random, html, batch);
+	    if (random.nextDouble() < dupRatio_) {
+		batch.numClusters++;
+		batch.truth.append(basename);
+		int numDups = 1 + random.nextInt(DuplicateGenerator.MAX_DUPS_PER_PAGE);
+		for (int i = 1; i <= numDups; ++i) {
+		    String dupBasename = DuplicateGenerator.getDuplicateName(basename, i, "html");
+		    writePage(dir.resolve(dupBasename), title, tokens, words_, random, html, batch);
+		    batch.truth.append(',').append(dupBasename);
+		}
+		batch.truth.append('\n');
+	    }
+	}
+	return batch;
+    }
+
+    // Writes a page with the given title and body tokens. If randomWords is not null, the
+    // page is a duplicate, and random segments are inserted like DuplicateGenerator does.
+    private void writePage(Path path, String title, List<String> tokens, String[] randomWords,
+			   Random random, StringBuilder html, Batch batch) throws IOException {
+	html.setLength(0);
+	html.append("<html>\n<head><title>").append(title).append("</title></head>\n<body>\n<p>\n");
+	for (String token : tokens) {
+	    html.append(token).append(' ');
+	    if (randomWords != null && random.nextDouble() <= DuplicateGenerator.DIF_SEGMENTS_RATIO) {
+		DuplicateGenerator.appendRandomSegment(html, randomWords, random);
+	    }
+	}
+	html.append("\n</p>\n</body>\n</html>\n");
+	byte[] content = html.toString().getBytes();
+	Files.write(path, content);
+	batch.numPages++;
+	batch.numBytes += content.length;
+    }
+
+    private String makeTitle(Random random) {
+	StringBuilder title = new StringBuilder(nextWord(random));
+	for (int i = 1 + random.nextInt(4); i > 0; --i) {
+	    title.append(' ').append(nextWord(random));
+	}
+	return title.toString();
+    }
+
+    // Makes the tokens of the body of an original page: words, anchors to other pages,
+    // and paragraph breaks.
+    private void makeBody(Random random, List<String> tokens) {
+	tokens.clear();
+	int numWords = wordsPerPage_ / 2 + random.nextInt(wordsPerPage_ + 1);
+	int numLinks = random.nextInt(2 * linksPerPage_ + 1);
+	double linkRatio = Math.min(1.0, numLinks / (double) numWords);
+	for (int i = 0; i < numWords; ++i) {
+	    String word = nextWord(random);
+	    if (random.nextDouble() < linkRatio) {
+		long rank = powerLaw(random, numPages_, linkExponent_);
+		String anchor = "<a href=\"" + getPageName((int) (rank * stride_ % numPages_)) + "\">" + word + "</a>";
+		tokens.add(random.nextDouble() < HIGHLIGHTED_LINK_RATIO ? "<b>" + anchor + "</b>" : anchor);
+	    } else {
+		tokens.add(word);
+	    }
+	    if (random.nextInt(WORDS_PER_PARAGRAPH) == 0) {
+		tokens.add("</p>\n<p>");
+	    }
+	}
+    }
+
+    private String nextWord(Random random) {
+	return words_[(int) powerLaw(random, words_.length, WORD_EXPONENT)].replace('_', ' ');
+    }
+
+    // Draws a rank in [0, n) with P(rank) roughly proportional to 1 / (rank + 1)^exponent,
+    // by inverting the distribution function of the continuous power law on [1, n + 1).
+    static long powerLaw(Random random, long n, double exponent) {
+	double u = random.nextDouble();
+	double x;
+	if (Math.abs(exponent - 1.0) < 1e-9) {
+	    x = Math.pow(n + 1, u);
+	} else {
+	    double a = 1.0 - exponent;
+	    x = Math.pow((Math.pow(n + 1, a) - 1) * u + 1, 1.0 / a);
+	}
+	return Math.min(n - 1, Math.max(0, (long) x - 1));
+    }
+
+    // The finalizer of SplitMix64, to derive independent seeds from consecutive numbers.
+    private static long mix(long z) {
+	z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+	z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+	return z ^ (z >>> 31);
+    }
+
+    private static long gcd(long a, long b) {
+	return b == 0 ? a : gcd(b, a % b);
+    }
+
+    public static void main(String[] args) throws Exception {
+	Options options = new Options();
+	options.addOption(OptionBuilder.withLongOpt("output")
+                          .withDescription("Path to the directory to write the pages to")
+                          .hasArg()
+                          .isRequired()
+                          .create('o'));
+	options.addOption(OptionBuilder.withLongOpt("dict")
+                          .withDescription("Path to the directory containing the WordNet dictionary")
+                          .hasArg()
+                          .isRequired()
+                          .create('d'));
+	options.addOption(OptionBuilder.withLongOpt("pages")
+                          .withDescription("Number of original pages, not counting the duplicates")
+                          .hasArg()
+                          .isRequired()
+                          .create('n'));
+	options.addOption(OptionBuilder.withLongOpt("truth")
+                          .withDescription("File to write the ground truth clusters of duplicates to")
+                          .hasArg()
+                          .create());
+	options.addOption(OptionBuilder.withLongOpt("seed")
+                          .withDescription("Seed of the random choices (default " + DuplicateGenerator.DEFAULT_SEED + ")")
+                          .hasArg()
+                          .create());
+	options.addOption(OptionBuilder.withLongOpt("threads")
+                          .withDescription("Number of threads that write pages (default 1)")
+                          .hasArg()
+                          .create('t'));
+	options.addOption(OptionBuilder.withLongOpt("links-per-page")
+                          .withDescription("Mean number of links from a page (default " + DEFAULT_LINKS_PER_PAGE + ")")
+                          .hasArg()
+                          .create());
+	options.addOption(OptionBuilder.withLongOpt("link-exponent")
+                          .withDescription("Exponent of the power law of the link targets (default " +
+					   DEFAULT_LINK_EXPONENT + ")")
+                          .hasArg()
+                          .create());
+	options.addOption(OptionBuilder.withLongOpt("words-per-page")
+                          .withDescription("Mean number of words in a page (default " + DEFAULT_WORDS_PER_PAGE + ")")
+                          .hasArg()
+                          .create());
+	options.addOption(OptionBuilder.withLongOpt("dup-ratio")
+                          .withDescription("Fraction of the pages that get duplicates (default " +
+					   DuplicateGenerator.PAGE_DUP_RATIO + ")")
+                          .hasArg()
+                          .create());
+	CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(options, args);
+
+	String outputDir = cmd.getOptionValue("o");
+	int numPages = Integer.parseInt(cmd.getOptionValue("n"));
+	long seed = Long.parseLong(cmd.getOptionValue("seed", String.valueOf(DuplicateGenerator.DEFAULT_SEED)));
+
+	CorpusSynthesizer synthesizer =
+	    new CorpusSynthesizer(outputDir, numPages, DuplicateGenerator.readNouns(cmd.getOptionValue("d")), seed);
+	synthesizer.setNumThreads(Integer.parseInt(cmd.getOptionValue("t", "1")));
+	synthesizer.setLinksPerPage(Integer.parseInt(cmd.getOptionValue("links-per-page",
+									 String.valueOf(DEFAULT_LINKS_PER_PAGE))));
+	synthesizer.setLinkExponent(Double.parseDouble(cmd.getOptionValue("link-exponent",
+									  String.valueOf(DEFAULT_LINK_EXPONENT))));
+	synthesizer.setWordsPerPage(Integer.parseInt(cmd.getOptionValue("words-per-page",
+									 String.valueOf(DEFAULT_WORDS_PER_PAGE))));
+	synthesizer.setDupRatio(Double.parseDouble(cmd.getOptionValue("dup-ratio",
+								      String.valueOf(DuplicateGenerator.PAGE_DUP_RATIO))));
+	Files.createDirectories(FileSystems.getDefault().getPath(outputDir));
+	Writer truth = null;
+	if (cmd.hasOption("truth")) {
+	    truth = Files.newBufferedWriter(FileSystems.getDefault().getPath(cmd.getOptionValue("truth")));
+	}
+	try {
+	    synthesizer.synthesize(truth);
+	} finally {
+	    if (truth != null) {
+		truth.close();
+	    }
+	}
+    }
+}
@@ -4,14 +4,15 @@ import edu.mit.jwi.Dictionary;
 import edu.mit.jwi.item.IIndexWord;
 import edu.mit.jwi.item.POS;
 import htmlparser.JTidyHTMLHandler;
+import htmlparser.ParsedPage;
+import htmlparser.StreamingHTMLHandler;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -25,28 +26,36 @@ import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
-import org.apache.lucene.document.Document;
+import util.DocumentWalker;
+import util.NearDuplicateDetector;
 import util.UF;
 import util.Util;
+import util.Verbosity;
 
 public class DuplicateGenerator {
 
     /***** CONSTANTS *****/
     // The fraction of pages for which a duplicate should be generated.
-    private static final double PAGE_DUP_RATIO = 0.3;
+    static final double PAGE_DUP_RATIO = 0.3;
 
     // If duplicates are being generated for a page, the maximum number
     // of duplicates to generate (picked randomly from [1, MAX_DUPS_PER_PAGE].)
-    private static final int MAX_DUPS_PER_PAGE = 3;
+    static final int MAX_DUPS_PER_PAGE = 3;
     
     // If duplicates are being generated for a page, 
     // the fraction of segments for which a random segment should be inserted.
-    private static final double DIF_SEGMENTS_RATIO = 0.05;
+    static final double DIF_SEGMENTS_RATIO = 0.05;
 
     // If duplicates are being generated for a page, the maximum number of 'random words'
     // to insert. 
     private static final int MAX_SEGMENT_LENGTH = 3;
 
+    // The maximum number of nouns read from the dictionary to pick random words from.
+    private static final int MAX_RANDOM_WORDS = 100000;
+
+    // The seed of the random choices, unless another one is given, so that runs are repeatable.
+    public static final long DEFAULT_SEED = 2580;
+
 
     /***** CLASS MEMBERS *****/
     // The directory to read original files from.
@@ -74,8 +83,16 @@ public class DuplicateGenerator {
     // Gives the doc name given the unique integer identifier for the document.
     HashMap<Integer, String> idToDocName_;
 
+    // Picks the documents to duplicate and the random words to insert.
+    Random random_;
+
     public DuplicateGenerator(String inputDir, String outputDir, 
 			      String dictionaryDir, String mode) {
+	this(inputDir, outputDir, dictionaryDir, mode, DEFAULT_SEED);
+    }
+
+    public DuplicateGenerator(String inputDir, String outputDir, 
+			      String dictionaryDir, String mode, long seed) {
 	// Initializes the member variables
 	inputDir_ = inputDir;
 	outputDir_ = outputDir;
@@ -85,25 +102,25 @@ public class DuplicateGenerator {
 	duplicates_ = new HashSet<String>();
 	docNameToId_ = new HashMap<String, Integer>();
 	idToDocName_ = new HashMap<Integer, String>();
+	random_ = new Random(seed);
     }
 
-    // Records bookkeeping information for a duplicate.
-    private void recordDuplicate(String basename, int dupNumber) {
-	String dupBasename = basename + "_dup_" + dupNumber;
-	if (mode_.equals("html")) {
+    // Returns the name of the dupNumber-th duplicate of a document.
+    static String getDuplicateName(String basename, int dupNumber, String mode) {
+	if (mode.equals("html")) {
 	    // Strip the ".html" extension
 	    String withoutExtension = basename.substring(0, basename.length() - 5);
-	    dupBasename = withoutExtension + "_dup_" + dupNumber + ".html";
+	    return withoutExtension + "_dup_" + dupNumber + ".html";
 	}
+	return basename + "_dup_" + dupNumber;
+    }
+
+    // Records bookkeeping information for a duplicate.
+    private void recordDuplicate(String basename, int dupNumber) {
+	String dupBasename = getDuplicateName(basename, dupNumber, mode_);
 	duplicates_.add(basename + "," + dupBasename);
 	for (int i = 1; i < dupNumber; ++i) {
-	    String otherDup = basename + "_dup_" + i;
-	    if (mode_.equals("html")) {
-		// Strip the ".html" extension
-		String withoutExtension = basename.substring(0, basename.length() - 5);
-		otherDup = withoutExtension + "_dup_" + i + ".html";
-	    }
-	    duplicates_.add(otherDup + "," + dupBasename);
+	    duplicates_.add(getDuplicateName(basename, i, mode_) + "," + dupBasename);
 	}
     }
 
@@ -113,94 +130,111 @@ public class DuplicateGenerator {
 	idToDocName_.put(docId, docName);
     }
 
-    // Generates duplicates for a subset of the documents picked randomly
-    public void generate() throws FileNotFoundException, IOException {
-	String space = " ";
-	// We use an English dictionary to randomly insert words.
-	Dictionary dict = new Dictionary(new File(dictionaryDir_));
+    // Reads up to MAX_RANDOM_WORDS nouns from the WordNet dictionary, in the order of
+    // the dictionary, to insert as random words. Multi-word nouns are joined by "_".
+    // Dictionaries without the noun files fall back to the verbs, adjectives and adverbs.
+    static String[] readNouns(String dictionaryDir) throws IOException {
+	Dictionary dict = new Dictionary(new File(dictionaryDir));
 	dict.open();
-	// Read nouns from the dictionary.
-	Iterator<IIndexWord> nounIterator = dict.getIndexWordIterator(POS.NOUN);
-	HashSet<String> randomWords = new HashSet<String>();
-	// Add some nounds to the HashSet. 
-	for (int i = 0; i < 1000000; i += 10) {
-	    randomWords.add(nounIterator.next().getLemma());
+	try {
+	    ArrayList<String> words = new ArrayList<String>();
+	    for (POS pos : new POS[] { POS.NOUN, POS.VERB, POS.ADJECTIVE, POS.ADVERB }) {
+		Iterator<IIndexWord> wordIterator = dict.getIndexWordIterator(pos);
+		// The dictionary has fewer nouns than that, so stop when they run out.
+		while (wordIterator.hasNext() && words.size() < MAX_RANDOM_WORDS) {
+		    words.add(wordIterator.next().getLemma());
+		}
+		if (!words.isEmpty()) {
+		    break;
+		}
+	    }
+	    if (words.isEmpty()) {
+		throw new IOException("No words found in the dictionary " + dictionaryDir);
+	    }
+	    return words.toArray(new String[words.size()]);
+	} finally {
+	    dict.close();
 	}
-	// We use the ordering provided by the HashSet, which should be 
-	// somewhat random.
-	Iterator<String> randomWordsIterator = randomWords.iterator();
-	Random random = new Random();
-	Collection<File> files = Util.walk(inputDir_);
-	// Iterate over the list of input files.
-	for (File f : files) {
+    }
+
+    // Appends a segment of 1 to MAX_SEGMENT_LENGTH random words, each followed by a space.
+    static void appendRandomSegment(StringBuilder out, String[] randomWords, Random random) {
+	// Determine the length of the segment.
+	int segmentLength = 1 + random.nextInt(MAX_SEGMENT_LENGTH);
+	for (int j = 0; j < segmentLength; ) {
+	    // Get a random noun from the dictionary and split it into
+	    // component words.
+	    String[] segmentWords = randomWords[random.nextInt(randomWords.length)].split("_");
+	    for (String word : segmentWords) {
+		if (j < segmentLength) {
+		    out.append(word).append(' ');
+		    j++;
+		}
+	    }
+	}
+    }
+
+    // Generates duplicates for a subset of the documents picked randomly. Each output file
+    // is assembled in memory and written with a single call, and the HTML of a page is
+    // parsed once, however many duplicates it gets.
+    public void generate() throws FileNotFoundException, IOException {
+	// We use an English dictionary to randomly insert words.
+	String[] randomWords = readNouns(dictionaryDir_);
+	// Text files aren't parsed, so the text mode doesn't need the HTML parser on the classpath.
+	JTidyHTMLHandler htmlHandler = mode_.equals("html") ? new StreamingHTMLHandler() : null;
+	// Iterate over the input files as they are discovered.
+	Iterator<DocumentWalker.Entry> files = DocumentWalker.iterate(inputDir_, null);
+	while (files.hasNext()) {
+	    File f = files.next().toFile();
 	    String basename = Util.getBasename(f.toString());
 	    Path outPath = FileSystems.getDefault().getPath(outputDir_, basename);
-	    String fileContent = Util.readFile(f.toPath());
+	    byte[] content = Files.readAllBytes(f.toPath());
 	    // Write the original file to the output directory.
-	    FileOutputStream outStream = new FileOutputStream(outPath.toFile());
-	    outStream.write(fileContent.getBytes());
-	    outStream.close();
+	    Files.write(outPath, content);
 	    addDocId(basename, numOutDocs_++);
 	    // With some probability, generate duplicate version(s) of the original file.
-	    if (random.nextDouble() <= PAGE_DUP_RATIO) {
-		String[] tokens = fileContent.split("\\s+");
+	    if (random_.nextDouble() <= PAGE_DUP_RATIO) {
+		String[] tokens;
+		String title = "";
+		if (mode_.equals("html")) {
+		    ParsedPage page = htmlHandler.parse(f, content);
+		    title = page.getTitle() == null ? "" : page.getTitle();
+		    tokens = (page.getBody() == null ? "" : page.getBody()).split("\\s+");
+		} else {
+		    tokens = new String(content).split("\\s+");
+		}
 		// Determine the number of duplicate versions of the original.
-		int numDups = 1 + random.nextInt(MAX_DUPS_PER_PAGE);
+		int numDups = 1 + random_.nextInt(MAX_DUPS_PER_PAGE);
 		for (int i = 0; i < numDups; ++i) {
 		    // Assign name to the duplicate.
-		    String dupBasename = basename + "_dup_" + (i + 1);
-		    String title = "";
-		    if (mode_.equals("html")) {
-			// Strip the ".html" extension
-			String withoutExtension = basename.substring(0, basename.length() - 5);
-			dupBasename = withoutExtension + "_dup_" + (i + 1) + ".html";
-			Document document = new JTidyHTMLHandler().getDocument(new FileInputStream(f));
-			title = document.get("title");
-			tokens = document.get("body").split("\\s+");
-		    }
+		    String dupBasename = getDuplicateName(basename, i + 1, mode_);
 		    addDocId(dupBasename, numOutDocs_++);
 		    recordDuplicate(basename, i + 1);
-		    Path dupPath = FileSystems.getDefault().getPath(outputDir_, dupBasename);
-		    FileOutputStream dupStream = new FileOutputStream(dupPath.toFile());
+		    StringBuilder dup = new StringBuilder(content.length + content.length / 4);
 		    if (mode_.equals("html")) {
-			dupStream.write("<html>\n".getBytes());
-			dupStream.write(new String("<title> " + title + "</title>\n").getBytes());
-			dupStream.write("<body>\n".getBytes());
+			dup.append("<html>\n");
+			dup.append("<title> ").append(title).append("</title>\n");
+			dup.append("<body>\n");
 		    }
 		    // Iterate over the words in the original document.
 		    for (String token : tokens) {
-			dupStream.write(token.getBytes());
-			dupStream.write(space.getBytes());
+			dup.append(token).append(' ');
 			// Probabilistically insert a random segment after the original word.
-			if (random.nextDouble() <= DIF_SEGMENTS_RATIO) {
-			    // Determine the length of the segment.
-			    int segmentLength = 1 + random.nextInt(MAX_SEGMENT_LENGTH);
-			    for (int j = 0; j < segmentLength; ) {
-				// Get a random noun from the dictionary and split it into
-				// component words.
-				String[] segmentWords = randomWordsIterator.next().split("_");
-				for (String word : segmentWords) {
-				    if (j < segmentLength) {
-					// Write out each random word.
-					dupStream.write(word.getBytes());
-					dupStream.write(space.getBytes());
-					j++;
-				    }
-				}
-			    }
+			if (random_.nextDouble() <= DIF_SEGMENTS_RATIO) {
+			    appendRandomSegment(dup, randomWords, random_);
 			}
 		    }
 		    if (mode_.equals("html")) {
-			dupStream.write("</body>\n".getBytes());
-			dupStream.write("</html>\n".getBytes());
+			dup.append("</body>\n");
+			dup.append("</html>\n");
 		    }
-		    dupStream.close();
+		    Files.write(FileSystems.getDefault().getPath(outputDir_, dupBasename), dup.toString().getBytes());
 		}
 	    }	    
 	}
     }
 
-    public void printStats(int truePos, int falsePos, int trueNeg, int falseNeg) {
+    public void printStats(long truePos, long falsePos, long trueNeg, long falseNeg) {
 	double precision = (truePos + 0.0) / (truePos + falsePos + 0.0);
 	double recall = (truePos + 0.0) / (truePos + falseNeg + 0.0);
 	double fScore = (2.0 * precision * recall) / (precision + recall);
@@ -211,8 +245,8 @@ public class DuplicateGenerator {
     
     // Calculates precision, recall and F for the duplicates detected by our implementation
     public void calculateStats(Set<String> algoPairs) {
-	int truePos = 0;
-	int falsePos = 0;
+	long truePos = 0;
+	long falsePos = 0;
 	for (String pair : algoPairs) {
 	    if (duplicates_.contains(pair)) {
 		truePos++;
@@ -220,8 +254,8 @@ public class DuplicateGenerator {
 		falsePos++;
 	    }
 	}
-	int trueNeg = 0;
-	int falseNeg = 0;
+	long trueNeg = 0;
+	long falseNeg = 0;
 	System.out.println("Expected results: ");
 	for (String pair : duplicates_) {
 	    System.out.println(pair);
@@ -230,11 +264,15 @@ public class DuplicateGenerator {
 	    }
 	}
 	// n choose 2 pairs
-	int pairs = numOutDocs_ * (numOutDocs_ - 1) / 2;
+	long pairs = (long) numOutDocs_ * (numOutDocs_ - 1) / 2;
 	trueNeg = pairs - (truePos + falsePos + falseNeg);
 	printStats(truePos, falsePos, trueNeg, falseNeg);
     }
 
+    // Calculates precision, recall and F for the clusters of the detected duplicates, i.e.
+    // for every pair of documents in the same cluster, and the adjusted Rand index. The
+    // duplicates of a page are all duplicates of each other, so the true clusters are the
+    // connected components of the expected pairs.
     public void calculateUnionFindStats(Set<String> algoPairs) {
 	UF unionFindAlgo = new UF(numOutDocs_);
 	for (String pair : algoPairs) {
@@ -243,22 +281,18 @@ public class DuplicateGenerator {
 	    int docId2 = docNameToId_.get(docs[1]);
 	    unionFindAlgo.union(docId1, docId2);
 	}
-	int truePos = 0;
-        int falsePos = 0;
-	int trueNeg = 0;
-        int falseNeg = 0;
-	for (int i = 0; i < numOutDocs_; ++i) {
-	    for (int j = 0; j < i; ++j) {
-		String referenceKey = idToDocName_.get(j) + "," + idToDocName_.get(i);
-		boolean inReference = duplicates_.contains(referenceKey);
-		boolean inAlgo = unionFindAlgo.connected(j, i);
-		if (inAlgo && inReference) truePos++;
-		else if (inAlgo && !inReference) falsePos++;
-		else if (!inAlgo && inReference) falseNeg++;
-		else trueNeg++;
-	    }
+	UF reference = new UF(numOutDocs_);
+	for (String pair : duplicates_) {
+	    String[] docs = pair.split(",");
+	    reference.union(docNameToId_.get(docs[0]), docNameToId_.get(docs[1]));
 	}
-	printStats(truePos, falsePos, trueNeg, falseNeg);
+	int[] predicted = new int[numOutDocs_];
+	int[] truth = new int[numOutDocs_];
+	for (int doc = 0; doc < numOutDocs_; ++doc) {
+	    predicted[doc] = unionFindAlgo.find(doc);
+	    truth[doc] = reference.find(doc);
+	}
+	new ClusterEvaluation(predicted, truth).print();
     }
 
     public static void main(String[] args) throws Exception {
@@ -283,6 +317,11 @@ public class DuplicateGenerator {
                           .hasArg()
                           .isRequired()
                           .create('m'));
+	options.addOption(OptionBuilder.withLongOpt("seed")
+                          .withDescription("Seed of the random choices (default " + DEFAULT_SEED + ")")
+                          .hasArg()
+                          .create());
+	NearDuplicateDetector.addOptions(options);
 	CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options, args);
 
@@ -290,10 +329,13 @@ public class DuplicateGenerator {
         String outputDir = cmd.getOptionValue("o");
 	String dictionaryDir = cmd.getOptionValue("d");
 	String mode = cmd.getOptionValue("m");
+	long seed = Long.parseLong(cmd.getOptionValue("seed", String.valueOf(DEFAULT_SEED)));
 
-	DuplicateGenerator generator = new DuplicateGenerator(inputDir, outputDir, dictionaryDir, mode);
+	// The detected pairs are printed along with the expected ones.
+	Verbosity.setLevel(Verbosity.DOCUMENTS);
+	DuplicateGenerator generator = new DuplicateGenerator(inputDir, outputDir, dictionaryDir, mode, seed);
 	generator.generate();
-	Set<String> algoDups = Util.runShinglesAlgorithm(outputDir);
+	Set<String> algoDups = Util.runMinHashAlgorithm(outputDir, NearDuplicateDetector.fromCommandLine(cmd));
 	System.out.println("----");
 	generator.calculateStats(algoDups);
 	System.out.println("----");
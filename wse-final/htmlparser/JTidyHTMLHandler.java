@@ -1,157 +1,228 @@
-
-package htmlparser;
-
-import org.apache.lucene.document.Field;
-import org.apache.lucene.document.TextField;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.w3c.dom.Text;
-import org.w3c.tidy.Tidy;
-
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStream;
-
-public class JTidyHTMLHandler {
-
-    public org.apache.lucene.document.Document
-    getDocument(InputStream is) {
-
-        Tidy tidy = new Tidy();
-        tidy.setQuiet(true);
-        tidy.setShowWarnings(false);
-        org.w3c.dom.Document root = tidy.parseDOM(is, null);
-        Element rawDoc = root.getDocumentElement();
-
-        org.apache.lucene.document.Document doc =
-                new org.apache.lucene.document.Document();
-
-        String title = getTitle(rawDoc);
-        String body = getBody(rawDoc);
-        if ((title != null) && (!title.equals(""))) {
-            doc.add(new TextField("title", title, Field.Store.YES));
-        }
-        if ((body != null) && (!body.equals(""))) {
-            doc.add(new TextField("body", body, Field.Store.YES));
-        }
-
-        return doc;
-    }
-
-    /**
-     * Gets the title text of the HTML document.
-     *
-     * @rawDoc the DOM Element to extract title Node from
-     * @return the title text
-     */
-    protected String getTitle(Element rawDoc) {
-        if (rawDoc == null) {
-            return null;
-        }
-
-        String title = "";
-
-        NodeList children = rawDoc.getElementsByTagName("title");
-        if (children.getLength() > 0) {
-            Element titleElement = ((Element) children.item(0));
-            Text text = (Text) titleElement.getFirstChild();
-            if (text != null) {
-                title = text.getData();
-            }
-	} 
-	if (title.length() == 0) {
-	    // If title is not found, try to extract the first
-	    // H1, H2, or H3 tag.
-	    NodeList body = rawDoc.getElementsByTagName("body");
-	    if (body.getLength() > 0) {
-		title = getHeader((Element) body.item(0));
-	    }
-	}
-        return title;
-    }
-
-    
-    // Gets the text contained in the first H1, H2 or H3 tag.
-    // Searches the given element recursively.
-    protected String getHeader(Element element) {
-	NodeList headers = element.getElementsByTagName("h1");
-	if (headers.getLength() == 0) {
-	    headers = element.getElementsByTagName("h2");
-	    if (headers.getLength() == 0) {
-		headers = element.getElementsByTagName("h3");
-	    }
-	}
-	if (headers.getLength() > 0) {
-	    String text = getText(headers.item(0));
-	    System.out.println(text);
-	    return text;
-	}
-	NodeList nodeList = element.getChildNodes();
-	if (nodeList.getLength() == 0) {
-	    return null;
-	} else {
-	    for(int i = 0; i < nodeList.getLength(); i++) {
-		Node childNode = nodeList.item(i);
-		if (childNode.getNodeType() == Node.ELEMENT_NODE) {
-		    Element child = ((Element) nodeList.item(i));
-		    String childHeader = getHeader(child);
-		    if (childHeader != null) {
-			return childHeader;
-		    }
-		}
-	    }
-	}
-	return "";
-    }
-
-    /**
-     * Gets the body text of the HTML document.
-     *
-     * @rawDoc the DOM Element to extract body Node from
-     * @return the body text
-     */
-    protected String getBody(Element rawDoc) {
-        if (rawDoc == null) {
-            return null;
-        }
-
-        String body = "";
-        NodeList children = rawDoc.getElementsByTagName("body");
-        if (children.getLength() > 0) {
-            body = getText(children.item(0));
-        }
-        return body;
-    }
-
-    /**
-     * Extracts text from the DOM node.
-     *
-     * @param node a DOM node
-     * @return the text value of the node
-     */
-    protected String getText(Node node) {
-        NodeList children = node.getChildNodes();
-        StringBuffer sb = new StringBuffer();
-        for (int i = 0; i < children.getLength(); i++) {
-            Node child = children.item(i);
-            switch (child.getNodeType()) {
-                case Node.ELEMENT_NODE:
-                    sb.append(getText(child));
-                    sb.append(" ");
-                    break;
-                case Node.TEXT_NODE:
-                    sb.append(((Text) child).getData());
-                    break;
-            }
-        }
-        return sb.toString();
-    }
-
-    public static void main(String args[]) throws Exception {
-        JTidyHTMLHandler handler = new JTidyHTMLHandler();
-        org.apache.lucene.document.Document doc = handler.getDocument(
-                new FileInputStream(new File(args[0])));
-        System.out.println(doc);
-    }
+
+package htmlparser;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.Text;
+import org.w3c.tidy.Tidy;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import util.Verbosity;
+
+public class JTidyHTMLHandler {
+
+    /**
+     * Reads and parses an HTML file once, extracting everything the build needs from it.
+     *
+     * @param f the HTML file
+     * @return the title, body text, word count and anchors of the page
+     */
+    public ParsedPage parse(File f) throws IOException {
+        return parse(f, Files.readAllBytes(f.toPath()));
+    }
+
+    // Parses the already read contents of an HTML file.
+    public ParsedPage parse(File f, byte[] content) {
+        String path = f.toString();
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        return parse(name, path, new ByteArrayInputStream(content),
+                     ParsedPage.countWords(new String(content)));
+    }
+
+    // Parses the HTML read from 'is' into a single DOM, and extracts the title,
+    // body text and anchors from it.
+    private ParsedPage parse(String name, String path, InputStream is, int wordCount) {
+        Tidy tidy = new Tidy();
+        tidy.setQuiet(true);
+        tidy.setShowWarnings(false);
+        org.w3c.dom.Document root = tidy.parseDOM(is, null);
+        Element rawDoc = root.getDocumentElement();
+
+        String title = getTitle(rawDoc);
+        String body = getBody(rawDoc);
+        List<ParsedPage.Anchor> anchors = new ArrayList<ParsedPage.Anchor>();
+        if (rawDoc != null) {
+            NodeList bodyNodes = rawDoc.getElementsByTagName("body");
+            if (bodyNodes.getLength() > 0) {
+                getAnchors(bodyNodes.item(0), anchors,
+                           false /* isHighlighted */);
+            }
+        }
+        return new ParsedPage(name, path, title, body, wordCount, anchors);
+    }
+
+    /**
+     * Gets the title text of the HTML document.
+     *
+     * @rawDoc the DOM Element to extract title Node from
+     * @return the title text
+     */
+    protected String getTitle(Element rawDoc) {
+        if (rawDoc == null) {
+            return null;
+        }
+
+        String title = "";
+
+        NodeList children = rawDoc.getElementsByTagName("title");
+        if (children.getLength() > 0) {
+            Element titleElement = ((Element) children.item(0));
+            Text text = (Text) titleElement.getFirstChild();
+            if (text != null) {
+                title = text.getData();
+            }
+	} 
+	if (title.length() == 0) {
+	    // If title is not found, try to extract the first
+	    // H1, H2, or H3 tag.
+	    NodeList body = rawDoc.getElementsByTagName("body");
+	    if (body.getLength() > 0) {
+		title = getHeader((Element) body.item(0));
+	    }
+	}
+        return title;
+    }
+
+    
+    // Gets the text contained in the first H1, H2 or H3 tag.
+    // Searches the given element recursively.
+    protected String getHeader(Element element) {
+	NodeList headers = element.getElementsByTagName("h1");
+	if (headers.getLength() == 0) {
+	    headers = element.getElementsByTagName("h2");
+	    if (headers.getLength() == 0) {
+		headers = element.getElementsByTagName("h3");
+	    }
+	}
+	if (headers.getLength() > 0) {
+	    String text = getText(headers.item(0));
+	    if (Verbosity.atLeast(Verbosity.DOCUMENTS)) {
+		System.out.println(text);
+	    }
+	    return text;
+	}
+	NodeList nodeList = element.getChildNodes();
+	if (nodeList.getLength() == 0) {
+	    return null;
+	} else {
+	    for(int i = 0; i < nodeList.getLength(); i++) {
+		Node childNode = nodeList.item(i);
+		if (childNode.getNodeType() == Node.ELEMENT_NODE) {
+		    Element child = ((Element) nodeList.item(i));
+		    String childHeader = getHeader(child);
+		    if (childHeader != null) {
+			return childHeader;
+		    }
+		}
+	    }
+	}
+	return "";
+    }
+
+    /**
+     * Gets the body text of the HTML document.
+     *
+     * @rawDoc the DOM Element to extract body Node from
+     * @return the body text
+     */
+    protected String getBody(Element rawDoc) {
+        if (rawDoc == null) {
+            return null;
+        }
+
+        String body = "";
+        NodeList children = rawDoc.getElementsByTagName("body");
+        if (children.getLength() > 0) {
+            body = getText(children.item(0));
+        }
+        return body;
+    }
+
+    /**
+     * Extracts text from the DOM node.
+     *
+     * @param node a DOM node
+     * @return the text value of the node
+     */
+    protected String getText(Node node) {
+        StringBuilder sb = new StringBuilder();
+        appendText(node, sb);
+        return sb.toString();
+    }
+
+    // Appends the text of the node to sb, with a space after each element. The whole
+    // subtree is written to the one buffer instead of concatenating a string per level.
+    private void appendText(Node node, StringBuilder sb) {
+        NodeList children = node.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            Node child = children.item(i);
+            switch (child.getNodeType()) {
+                case Node.ELEMENT_NODE:
+                    appendText(child, sb);
+                    sb.append(" ");
+                    break;
+                case Node.TEXT_NODE:
+                    sb.append(((Text) child).getData());
+                    break;
+            }
+        }
+    }
+
+    /* Recurses over the nodes in the DOM tree.
+     * Finds anchors and record information about their
+     * URLs and highlighting into 'anchors'.
+     */
+    protected void getAnchors(Node node, List<ParsedPage.Anchor> anchors, boolean isHighlighted) {
+        NodeList children = node.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            Node child = children.item(i);
+            switch (child.getNodeType()) {
+	    case Node.ELEMENT_NODE:
+		if (isAnchor( (Element) child)) {
+		    // This node is an anchor. Get its link, and record whether it was highlighted.
+		    Element childElement = (Element) child;
+		    String href = childElement.getAttribute("href");
+		    anchors.add(new ParsedPage.Anchor(href, isHighlighted));
+		} else if (isHeaderOrBold( (Element) child)) {
+		    getAnchors(child, anchors,
+			       true  /* isHighlighted */);
+		} else {
+		    // This Node is not an anchor. Recurse into its children.
+		    getAnchors(child, anchors, isHighlighted);
+		}
+		break;
+	    }
+	}
+    }
+
+    /* Determines whether the given Element is an anchor (an HTML tag of form <a> </a>).
+     */
+    protected boolean isAnchor(Element element) {
+	return element.getTagName().equalsIgnoreCase("a");
+    }
+
+    /* Determines whether the given Element is a header (<h1>, <h2>, <h3>, or <h4> tags),
+     * bold (<b>), or an emphasis (<em>).
+     */
+    protected boolean isHeaderOrBold(Element element) {
+	return element.getTagName().equalsIgnoreCase("b") ||
+	    element.getTagName().equalsIgnoreCase("em") ||
+	    element.getTagName().equalsIgnoreCase("h1") ||
+	    element.getTagName().equalsIgnoreCase("h2") ||
+	    element.getTagName().equalsIgnoreCase("h3") ||
+	    element.getTagName().equalsIgnoreCase("h4");
+    }
+
+    public static void main(String args[]) throws Exception {
+        ParsedPage page = new JTidyHTMLHandler().parse(new File(args[0]));
+        System.out.println("title: " + page.getTitle());
+        System.out.println("body: " + page.getBody());
+    }
 }
\ No newline at end of file
@@ -0,0 +1,168 @@
+package htmlparser;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of parsing one document: its title, body text, word count and
+ * outgoing anchors. A page is read and parsed once per build, and the PageRank
+ * computation, the duplicate detection and the indexer all work from this record.
+ */
+public class ParsedPage {
+
+    /* Captures information about an anchor on the page, such
+     * as its URL, and whether it is highlighted
+     */
+    public static class Anchor {
+	public final String url;
+	public final boolean isHighlighted;
+
+	public Anchor(String url, boolean isHighlighted) {
+	    this.url = url;
+	    this.isHighlighted = isHighlighted;
+	}
+    }
+
+    // The basename of the file, e.g. z.html for www.x.com/y/z.html
+    private final String name;
+
+    // The path of the file the page was read from.
+    private final String path;
+
+    private final String title;
+
+    private final String body;
+
+    // The number of whitespace separated tokens in the raw file, markup included.
+    private final int wordCount;
+
+    private final List<Anchor> anchors;
+
+    public ParsedPage(String name, String path, String title, String body,
+		      int wordCount, List<Anchor> anchors) {
+	this.name = name;
+	this.path = path;
+	this.title = title;
+	this.body = body;
+	this.wordCount = wordCount;
+	this.anchors = anchors;
+    }
+
+    // Creates the record for a plain text document, which has no title and no anchors.
+    public static ParsedPage fromText(String name, String path, String content) {
+	return new ParsedPage(name, path, "", content, countWords(content),
+			      Collections.<Anchor>emptyList());
+    }
+
+    public String getName() {
+	return name;
+    }
+
+    public String getPath() {
+	return path;
+    }
+
+    public String getTitle() {
+	return title;
+    }
+
+    public String getBody() {
+	return body;
+    }
+
+    // Whether the page has its body text. A page read back from a manifest doesn't
+    // (see withoutBody()).
+    public boolean hasBody() {
+	return body != null;
+    }
+
+    // Returns the page without its body text, which is all that the link analysis needs.
+    public ParsedPage withoutBody() {
+	return new ParsedPage(name, path, title, null, wordCount, anchors);
+    }
+
+    public int getWordCount() {
+	return wordCount;
+    }
+
+    public List<Anchor> getAnchors() {
+	return anchors;
+    }
+
+    // Returns the title and the body, which is the text used for duplicate detection.
+    public String getText() {
+	return (title == null ? "" : title) + " " + (body == null ? "" : body);
+    }
+
+    // Writes the page in a compact binary form, to be read back with read().
+    public void write(DataOutput out) throws IOException {
+	writeString(out, name);
+	writeString(out, path);
+	writeString(out, title);
+	writeString(out, body);
+	out.writeInt(wordCount);
+	out.writeInt(anchors.size());
+	for (Anchor anchor : anchors) {
+	    writeString(out, anchor.url);
+	    out.writeBoolean(anchor.isHighlighted);
+	}
+    }
+
+    // Reads a page written by write().
+    public static ParsedPage read(DataInput in) throws IOException {
+	String name = readString(in);
+	String path = readString(in);
+	String title = readString(in);
+	String body = readString(in);
+	int wordCount = in.readInt();
+	int numAnchors = in.readInt();
+	List<Anchor> anchors = new ArrayList<Anchor>(numAnchors);
+	for (int i = 0; i < numAnchors; ++i) {
+	    String url = readString(in);
+	    anchors.add(new Anchor(url, in.readBoolean()));
+	}
+	return new ParsedPage(name, path, title, body, wordCount, anchors);
+    }
+
+    // Writes a possibly null string of any length as UTF-8. (DataOutput.writeUTF is limited to 64KB.)
+    private static void writeString(DataOutput out, String s) throws IOException {
+	if (s == null) {
+	    out.writeInt(-1);
+	    return;
+	}
+	byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+	out.writeInt(bytes.length);
+	out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+	int length = in.readInt();
+	if (length < 0) {
+	    return null;
+	}
+	byte[] bytes = new byte[length];
+	in.readFully(bytes);
+	return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Counts the number of words in a text, as separated by the regular expression \s+
+    public static int countWords(String content) {
+	int count = 0;
+	boolean inWord = false;
+	for (int i = 0; i < content.length(); ++i) {
+	    char c = content.charAt(i);
+	    if (c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r') {
+		inWord = false;
+	    } else if (!inWord) {
+		inWord = true;
+		count++;
+	    }
+	}
+	return count;
+    }
+}
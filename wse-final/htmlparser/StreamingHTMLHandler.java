@@ -0,0 +1,665 @@
+package htmlparser;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Extracts the title, body text and anchors of an HTML page in a single pass over its
+ * bytes, without building a DOM. The text is appended to buffers that are reused from
+ * page to page, so a handler must be used by one thread at a time.
+ * <p>
+ * The result is the one JTidyHTMLHandler gets from the JTidy DOM, down to the spaces:
+ * runs of whitespace are collapsed, whitespace at the start and end of blocks is
+ * dropped, whitespace at the edges of inline elements moves out of them, and every
+ * element is followed by a space. That is only reproduced for well-formed pages made
+ * of a known set of block and inline elements (see TAGS). On anything else, such as
+ * comments in the body, unclosed inline elements, or unknown tags or entities, where
+ * JTidy would repair or rearrange the markup, the page is handed to JTidyHTMLHandler
+ * instead.
+ */
+public class StreamingHTMLHandler extends JTidyHTMLHandler {
+
+    // Kinds of tags.
+    private static final int STRUCTURE = 0;  // html, head, body
+    private static final int HEAD = 1;       // empty elements of the head
+    private static final int TITLE = 2;
+    private static final int BLOCK = 3;
+    private static final int INLINE = 4;
+
+    // The supported tags, their kinds, and whether anchors inside them are highlighted.
+    private static final String[] TAGS = {
+	"html", "head", "body", "meta", "link", "title",
+	"p", "div", "h1", "h2", "h3", "h4", "h5", "h6",
+	"a", "b", "i", "em", "strong", "u", "span", "code", "tt"
+    };
+    private static final int[] KINDS = {
+	STRUCTURE, STRUCTURE, STRUCTURE, HEAD, HEAD, TITLE,
+	BLOCK, BLOCK, BLOCK, BLOCK, BLOCK, BLOCK, BLOCK, BLOCK,
+	INLINE, INLINE, INLINE, INLINE, INLINE, INLINE, INLINE, INLINE, INLINE
+    };
+    private static final boolean[] HIGHLIGHTS = {
+	false, false, false, false, false, false,
+	false, false, true, true, true, true, false, false,
+	false, true, false, true, false, false, false, false, false
+    };
+    private static final int HTML = 0;
+    private static final int HEAD_TAG = 1;
+    private static final int BODY = 2;
+    private static final int P = 6;
+    private static final int DIV = 7;
+    private static final int H1 = 8;
+    private static final int H3 = 10;
+    private static final int A = 14;
+
+    // The tag names as lowercase bytes, for matching without creating strings.
+    private static final byte[][] TAG_BYTES = new byte[TAGS.length][];
+    static {
+	for (int i = 0; i < TAGS.length; ++i) {
+	    TAG_BYTES[i] = TAGS[i].getBytes();
+	}
+    }
+
+    // The named entities that are decoded. JTidy knows all the HTML 4 ones, the others
+    // send the page to JTidy.
+    private static final String[] ENTITIES = { "amp", "lt", "gt", "quot", "nbsp" };
+    private static final char[] ENTITY_CHARS = { '&', '<', '>', '"', '\u00a0' };
+    private static final int MAX_ENTITY_LENGTH = 8;
+
+    // Where the parser is.
+    private static final int IN_HEAD = 0;
+    private static final int IN_TITLE = 1;
+    private static final int IN_BODY = 2;
+    private static final int AFTER_BODY = 3;
+
+    private final StringBuilder body_ = new StringBuilder();
+    private final StringBuilder title_ = new StringBuilder();
+
+    // The open elements of the body, starting with the body itself: their tags, the
+    // length of the body text when they were opened, and their flags below.
+    private int[] openTags_ = new int[16];
+    private int[] openStarts_ = new int[16];
+    private int[] openFlags_ = new int[16];
+    private int depth_;
+
+    // The element has a child, text or element.
+    private static final int HAS_CHILD = 1;
+    // The element is an inline element that keeps the space at the start of its text (see
+    // JTidy's TrimInitialSpace): it is not the first child of its parent, and doesn't
+    // follow text that ends with a space.
+    private static final int KEEPS_SPACE = 2;
+    // The element is a paragraph whose leading whitespace was dropped.
+    private static final int DROPPED_SPACE = 4;
+
+    // Number of open elements in which anchors are highlighted.
+    private int highlightDepth_;
+
+    private int state_;
+    private boolean sawTitle_;
+
+    // A collapsed run of whitespace that is not in the body text yet, because it is
+    // dropped if the enclosing block ends first. JTidy moves the whitespace at the end
+    // of an inline element out of it, so this can outlive the element.
+    private boolean pendingSpace_;
+
+    // Whether the last character of the body text is a space that came from the text,
+    // rather than the one that follows an element.
+    private boolean endsWithTextSpace_;
+
+    // Whether whitespace is dropped: at the start of the body and of blocks, and after
+    // blocks in the body or a div.
+    private boolean dropSpace_;
+
+    // The text of the first h1, h2 and h3 elements, for pages without a title.
+    private final String[] headers_ = new String[3];
+
+    private List<ParsedPage.Anchor> anchors_;
+
+    // The position in the content, and the href of the last anchor that was read.
+    private int pos_;
+    private String href_;
+
+    @Override
+    public ParsedPage parse(File f, byte[] content) {
+	String path = f.toString();
+	String name = path.substring(path.lastIndexOf('/') + 1);
+	ParsedPage page = extract(name, path, content);
+	return page != null ? page : super.parse(f, content);
+    }
+
+    // Extracts the page from its contents, or returns null if JTidy has to parse it.
+    ParsedPage extract(String name, String path, byte[] content) {
+	if (!extract(content)) {
+	    return null;
+	}
+	String title = title_.toString();
+	if (title.length() == 0) {
+	    // Like JTidyHTMLHandler, fall back to the first h1, h2 or h3 header.
+	    for (String header : headers_) {
+		if (header != null) {
+		    title = header;
+		    break;
+		}
+	    }
+	    if (title.length() == 0) {
+		return null;
+	    }
+	}
+	return new ParsedPage(name, path, title, body_.toString(),
+			      ParsedPage.countWords(new String(content)), anchors_);
+    }
+
+    private boolean extract(byte[] content) {
+	body_.setLength(0);
+	title_.setLength(0);
+	depth_ = 0;
+	highlightDepth_ = 0;
+	state_ = IN_HEAD;
+	sawTitle_ = false;
+	pendingSpace_ = false;
+	endsWithTextSpace_ = false;
+	Arrays.fill(headers_, null);
+	anchors_ = new ArrayList<ParsedPage.Anchor>();
+	pos_ = 0;
+	while (pos_ < content.length) {
+	    int c = content[pos_] & 0xff;
+	    if (c == '<') {
+		if (!readTag(content)) {
+		    return false;
+		}
+	    } else if (c == '&') {
+		int decoded = readEntity(content);
+		if (decoded < 0 || !appendChar((char) decoded)) {
+		    return false;
+		}
+	    } else if (isSpace(c)) {
+		appendSpace();
+		pos_++;
+	    } else if (c < 0x20 || c == 0x7f) {
+		return false;
+	    } else {
+		// Like JTidy with its default ASCII input encoding, read the other bytes as Latin-1.
+		if (!appendChar((char) c)) {
+		    return false;
+		}
+		pos_++;
+	    }
+	}
+	if (state_ == IN_TITLE) {
+	    return false;
+	}
+	if (state_ == IN_BODY && depth_ > 1 && openTags_[depth_ - 1] == P &&
+	    (openFlags_[depth_ - 1] & DROPPED_SPACE) != 0) {
+	    // JTidy only trims the start of a paragraph when it is closed before the end of the page.
+	    body_.insert(openStarts_[depth_ - 1], ' ');
+	}
+	return endBody();
+    }
+
+    // Adds a collapsed whitespace character to the title or the body.
+    private void appendSpace() {
+	if (state_ == IN_TITLE) {
+	    if (title_.length() > 0 && title_.charAt(title_.length() - 1) != ' ') {
+		title_.append(' ');
+	    }
+	    return;
+	}
+	if (state_ != IN_BODY) {
+	    return;
+	}
+	int flags = openFlags_[depth_ - 1];
+	if (dropSpace_) {
+	    if (openTags_[depth_ - 1] == P && (flags & HAS_CHILD) == 0) {
+		openFlags_[depth_ - 1] |= DROPPED_SPACE;
+	    }
+	} else if ((flags & HAS_CHILD) != 0 || (flags & KEEPS_SPACE) != 0) {
+	    pendingSpace_ = true;
+	}
+    }
+
+    // Writes the pending whitespace to the body text.
+    private void flushSpace() {
+	if (pendingSpace_) {
+	    body_.append(' ');
+	    pendingSpace_ = false;
+	    endsWithTextSpace_ = true;
+	    openFlags_[depth_ - 1] |= HAS_CHILD;
+	}
+    }
+
+    // Adds a visible character to the title or the body, starting the body if needed.
+    private boolean appendChar(char c) {
+	if (state_ == IN_TITLE) {
+	    title_.append(c);
+	    return true;
+	}
+	if (state_ == AFTER_BODY) {
+	    return false;
+	}
+	startBody();
+	flushSpace();
+	body_.append(c);
+	endsWithTextSpace_ = false;
+	dropSpace_ = false;
+	openFlags_[depth_ - 1] |= HAS_CHILD;
+	return true;
+    }
+
+    private void startBody() {
+	if (state_ != IN_BODY) {
+	    state_ = IN_BODY;
+	    dropSpace_ = true;
+	    push(BODY, 0);
+	}
+    }
+
+    private void push(int tag, int flags) {
+	if (depth_ == openTags_.length) {
+	    openTags_ = Arrays.copyOf(openTags_, depth_ * 2);
+	    openStarts_ = Arrays.copyOf(openStarts_, depth_ * 2);
+	    openFlags_ = Arrays.copyOf(openFlags_, depth_ * 2);
+	}
+	openTags_[depth_] = tag;
+	openStarts_[depth_] = body_.length();
+	openFlags_[depth_] = flags;
+	depth_++;
+    }
+
+    // Reads the tag at pos_ and updates the state. Returns false if the page is not supported.
+    private boolean readTag(byte[] content) {
+	int start = pos_;
+	if (start + 1 >= content.length) {
+	    return false;
+	}
+	int next = content[start + 1] & 0xff;
+	if (next == '!') {
+	    return readDeclaration(content);
+	}
+	boolean isEnd = next == '/';
+	int nameStart = isEnd ? start + 2 : start + 1;
+	int nameEnd = nameStart;
+	while (nameEnd < content.length && isNameChar(content[nameEnd] & 0xff)) {
+	    nameEnd++;
+	}
+	if (nameEnd == nameStart || !isLetter(content[nameStart] & 0xff)) {
+	    // A '<' that doesn't start a tag.
+	    return false;
+	}
+	int tag = lookupTag(content, nameStart, nameEnd);
+	if (tag < 0) {
+	    return false;
+	}
+	pos_ = nameEnd;
+	href_ = null;
+	if (isEnd) {
+	    skipSpaces(content);
+	    if (pos_ >= content.length || content[pos_] != '>') {
+		return false;
+	    }
+	} else if (!readAttributes(content, tag == A)) {
+	    return false;
+	}
+	pos_++;
+	if (isEnd) {
+	    return endTag(tag);
+	}
+	if (!startTag(tag)) {
+	    return false;
+	}
+	if (KINDS[tag] == BLOCK || KINDS[tag] == INLINE) {
+	    // As in SGML, a newline right after a start tag is ignored.
+	    if (pos_ < content.length && content[pos_] == '\r') {
+		pos_++;
+	    }
+	    if (pos_ < content.length && content[pos_] == '\n') {
+		pos_++;
+	    }
+	}
+	return true;
+    }
+
+    private boolean startTag(int tag) {
+	switch (KINDS[tag]) {
+	case STRUCTURE:
+	    if (state_ != IN_HEAD) {
+		return false;
+	    }
+	    if (tag == BODY) {
+		startBody();
+	    }
+	    return true;
+	case HEAD:
+	    return state_ == IN_HEAD;
+	case TITLE:
+	    if (state_ != IN_HEAD || sawTitle_) {
+		return false;
+	    }
+	    state_ = IN_TITLE;
+	    sawTitle_ = true;
+	    return true;
+	}
+	if (state_ == IN_TITLE || state_ == AFTER_BODY) {
+	    return false;
+	}
+	startBody();
+	int flags = 0;
+	if (KINDS[tag] == BLOCK) {
+	    if (openTags_[depth_ - 1] == P && !endElement()) {
+		// A block closes the paragraph it's in.
+		return false;
+	    }
+	    for (int i = 1; i < depth_; ++i) {
+		if (openTags_[i] != DIV) {
+		    // Blocks inside inline elements or headers are moved around by JTidy.
+		    return false;
+		}
+	    }
+	    flushSpace();
+	    dropSpace_ = true;
+	} else {
+	    for (int i = 1; i < depth_; ++i) {
+		if (openTags_[i] == tag) {
+		    // JTidy closes or drops inline elements nested in themselves.
+		    return false;
+		}
+	    }
+	    flushSpace();
+	    if ((openFlags_[depth_ - 1] & HAS_CHILD) != 0 && !endsWithTextSpace_) {
+		flags = KEEPS_SPACE;
+	    }
+	    dropSpace_ = false;
+	}
+	openFlags_[depth_ - 1] |= HAS_CHILD;
+	push(tag, flags);
+	if (tag == A) {
+	    anchors_.add(new ParsedPage.Anchor(href_ == null ? "" : href_, highlightDepth_ > 0));
+	}
+	if (HIGHLIGHTS[tag]) {
+	    highlightDepth_++;
+	}
+	return true;
+    }
+
+    private boolean endTag(int tag) {
+	switch (KINDS[tag]) {
+	case STRUCTURE:
+	    if (tag == HEAD_TAG) {
+		return state_ == IN_HEAD;
+	    }
+	    if (tag == HTML && state_ == IN_BODY) {
+		if (depth_ > 1) {
+		    return false;
+		}
+		// JTidy keeps the whitespace at the end of a body that is closed by </html>.
+		flushSpace();
+	    }
+	    return endBody();
+	case HEAD:
+	    return false;
+	case TITLE:
+	    if (state_ != IN_TITLE) {
+		return false;
+	    }
+	    int length = title_.length();
+	    if (length > 0 && title_.charAt(length - 1) == ' ') {
+		title_.setLength(length - 1);
+	    }
+	    state_ = IN_HEAD;
+	    return true;
+	}
+	if (state_ != IN_BODY || depth_ <= 1 || openTags_[depth_ - 1] != tag) {
+	    return false;
+	}
+	return endElement();
+    }
+
+    // Closes the innermost open element of the body.
+    private boolean endElement() {
+	int tag = openTags_[depth_ - 1];
+	int start = openStarts_[depth_ - 1];
+	boolean isBlock = KINDS[tag] == BLOCK;
+	if (isBlock) {
+	    // The whitespace at the end of a block is dropped, at the end of an inline
+	    // element it moves out of it.
+	    pendingSpace_ = false;
+	}
+	if (body_.length() == start) {
+	    // JTidy drops (most) empty elements.
+	    return false;
+	}
+	if (tag >= H1 && tag <= H3 && headers_[tag - H1] == null) {
+	    headers_[tag - H1] = body_.substring(start);
+	}
+	// JTidyHTMLHandler.getText appends a space after every element.
+	body_.append(' ');
+	endsWithTextSpace_ = false;
+	dropSpace_ = isBlock;
+	depth_--;
+	if (HIGHLIGHTS[tag]) {
+	    highlightDepth_--;
+	}
+	return true;
+    }
+
+    // Ends the body at </body>, </html> or the end of the page, closing an open paragraph.
+    private boolean endBody() {
+	if (state_ == IN_BODY) {
+	    if (openTags_[depth_ - 1] == P && !endElement()) {
+		return false;
+	    }
+	    if (depth_ > 1) {
+		return false;
+	    }
+	}
+	pendingSpace_ = false;
+	state_ = AFTER_BODY;
+	return true;
+    }
+
+    // Reads the attributes of a start tag up to its '>', keeping the href of an anchor.
+    private boolean readAttributes(byte[] content, boolean isAnchor) {
+	while (true) {
+	    skipSpaces(content);
+	    if (pos_ >= content.length) {
+		return false;
+	    }
+	    int c = content[pos_] & 0xff;
+	    if (c == '>') {
+		return true;
+	    }
+	    int nameStart = pos_;
+	    while (pos_ < content.length && isNameChar(content[pos_] & 0xff)) {
+		pos_++;
+	    }
+	    if (pos_ == nameStart || !isLetter(content[nameStart] & 0xff)) {
+		return false;
+	    }
+	    boolean isHref = isAnchor && pos_ - nameStart == 4 && equalsIgnoreCase(content, nameStart, "href");
+	    skipSpaces(content);
+	    if (pos_ >= content.length || content[pos_] != '=') {
+		// An attribute without a value.
+		if (isHref) {
+		    return false;
+		}
+		continue;
+	    }
+	    pos_++;
+	    skipSpaces(content);
+	    if (pos_ >= content.length) {
+		return false;
+	    }
+	    int quote = content[pos_] & 0xff;
+	    int valueStart;
+	    int valueEnd;
+	    if (quote == '"' || quote == '\'') {
+		valueStart = ++pos_;
+		while (pos_ < content.length && content[pos_] != quote) {
+		    pos_++;
+		}
+		if (pos_ >= content.length) {
+		    return false;
+		}
+		valueEnd = pos_++;
+	    } else {
+		valueStart = pos_;
+		while (pos_ < content.length && !isSpace(content[pos_] & 0xff) && content[pos_] != '>') {
+		    pos_++;
+		}
+		valueEnd = pos_;
+	    }
+	    // JTidy decodes entities in values, and fixes up whitespace and other odd
+	    // characters in URLs.
+	    for (int i = valueStart; i < valueEnd; ++i) {
+		int v = content[i] & 0xff;
+		if (v <= 0x20 || v >= 0x7f || v == '&' || v == '<' || v == '"' || v == '\'' || v == '\\') {
+		    return false;
+		}
+	    }
+	    if (isHref) {
+		if (href_ != null) {
+		    return false;
+		}
+		href_ = new String(content, valueStart, valueEnd - valueStart);
+	    }
+	}
+    }
+
+    // Skips a comment or a DOCTYPE declaration in the head.
+    private boolean readDeclaration(byte[] content) {
+	if (state_ != IN_HEAD) {
+	    // JTidy keeps comments in the body as separate nodes, which changes the spacing.
+	    return false;
+	}
+	int end;
+	if (startsWith(content, pos_, "<!--")) {
+	    end = indexOf(content, pos_ + 4, "-->");
+	    if (end < 0) {
+		return false;
+	    }
+	    pos_ = end + 3;
+	    return true;
+	}
+	if (!equalsIgnoreCase(content, pos_ + 2, "doctype")) {
+	    return false;
+	}
+	end = indexOf(content, pos_, ">");
+	if (end < 0) {
+	    return false;
+	}
+	pos_ = end + 1;
+	return true;
+    }
+
+    // Reads the entity at pos_ and returns its character, or -1 if it is not supported.
+    private int readEntity(byte[] content) {
+	int start = pos_ + 1;
+	int end = start;
+	while (end < content.length && end - start < MAX_ENTITY_LENGTH && content[end] != ';') {
+	    end++;
+	}
+	if (end >= content.length || content[end] != ';') {
+	    return -1;
+	}
+	pos_ = end + 1;
+	int c;
+	if (start < end && content[start] == '#') {
+	    boolean hex = start + 1 < end && (content[start + 1] == 'x' || content[start + 1] == 'X');
+	    int i = hex ? start + 2 : start + 1;
+	    if (i == end) {
+		return -1;
+	    }
+	    c = 0;
+	    for (; i < end; ++i) {
+		int digit = Character.digit(content[i], hex ? 16 : 10);
+		if (digit < 0) {
+		    return -1;
+		}
+		c = c * (hex ? 16 : 10) + digit;
+	    }
+	    // Whitespace is not collapsed when written as a character reference. Control
+	    // characters and characters outside the BMP are left to JTidy.
+	    return (c > 0x20 && c < 0x7f) || (c >= 0xa0 && c < 0xd800) || (c >= 0xe000 && c < 0xfffe) ? c : -1;
+	}
+	for (int i = 0; i < ENTITIES.length; ++i) {
+	    String entity = ENTITIES[i];
+	    if (end - start == entity.length() && startsWith(content, start, entity)) {
+		return ENTITY_CHARS[i];
+	    }
+	}
+	return -1;
+    }
+
+    private void skipSpaces(byte[] content) {
+	while (pos_ < content.length && isSpace(content[pos_] & 0xff)) {
+	    pos_++;
+	}
+    }
+
+    // Returns the index of the tag content[start, end) in TAGS, or -1.
+    private static int lookupTag(byte[] content, int start, int end) {
+	for (int tag = 0; tag < TAG_BYTES.length; ++tag) {
+	    byte[] name = TAG_BYTES[tag];
+	    if (name.length != end - start) {
+		continue;
+	    }
+	    int i = 0;
+	    while (i < name.length && toLower(content[start + i]) == name[i]) {
+		i++;
+	    }
+	    if (i == name.length) {
+		return tag;
+	    }
+	}
+	return -1;
+    }
+
+    private static boolean equalsIgnoreCase(byte[] content, int start, String s) {
+	if (start + s.length() > content.length) {
+	    return false;
+	}
+	for (int i = 0; i < s.length(); ++i) {
+	    if (toLower(content[start + i]) != s.charAt(i)) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    private static boolean startsWith(byte[] content, int start, String s) {
+	if (start + s.length() > content.length) {
+	    return false;
+	}
+	for (int i = 0; i < s.length(); ++i) {
+	    if (content[start + i] != s.charAt(i)) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    private static int indexOf(byte[] content, int start, String s) {
+	for (int i = start; i + s.length() <= content.length; ++i) {
+	    if (startsWith(content, i, s)) {
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+    private static int toLower(byte b) {
+	return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    private static boolean isSpace(int c) {
+	return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    private static boolean isLetter(int c) {
+	return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isNameChar(int c) {
+	return isLetter(c) || (c >= '0' && c <= '9') || c == '-' || c == ':';
+    }
+}
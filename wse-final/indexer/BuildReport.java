@@ -0,0 +1,277 @@
+package indexer;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import util.Verbosity;
+
+/**
+ * Measures the stages of a build: the wall time, the number of documents and the docs/sec,
+ * the bytes read from the input files, the bytes allocated and the peak heap. Every stage
+ * is also recorded as a JFR event, so a build run with -XX:StartFlightRecording shows the
+ * stages on the timeline next to the GC and I/O events, and PageRank records an event per
+ * iteration. At the end of the build the report is written as JSON to FILE_NAME in the
+ * index directory.
+ * <p>
+ * The allocated bytes are counted by HotSpot per thread. They are summed over the live
+ * threads, plus the threads of the build that have ended, which run their tasks through
+ * countAllocations(). The short-lived ForkJoinPool threads of the parallel PageRank are not
+ * counted, but they allocate little. The peak heap is the sum of the peaks of the heap
+ * pools since the stage began, which bounds the real peak from above.
+ */
+public class BuildReport {
+
+    public static final String FILE_NAME = "build-report.json";
+
+    @Name("indexer.BuildStage")
+    @Label("Build Stage")
+    @Category("Indexer")
+    @Description("A stage of the index build")
+    static class StageEvent extends Event {
+	@Label("Stage")
+	String stage;
+
+	@Label("Documents")
+	long documents;
+
+	@Label("Bytes Read")
+	@DataAmount
+	long bytesRead;
+
+	@Label("Allocated")
+	@DataAmount
+	long allocatedBytes;
+
+	@Label("Peak Heap")
+	@DataAmount
+	long peakHeapBytes;
+    }
+
+    @Name("indexer.PageRankIteration")
+    @Label("PageRank Iteration")
+    @Category("Indexer")
+    @Description("An iteration of the PageRank power method")
+    static class PageRankIterationEvent extends Event {
+	@Label("Iteration")
+	int iteration;
+
+	@Label("Max Change")
+	double maxChange;
+    }
+
+    // A stage of the build, from begin() to end().
+    public static class Stage {
+	final String name;
+	final StageEvent event;
+	final long startNanos;
+	final long startAllocated;
+	long wallNanos;
+	long documents;
+	long bytesRead;
+	long allocatedBytes;
+	long peakHeapBytes;
+	// Other figures of the stage, such as the number of PageRank iterations.
+	final Map<String, Long> counters = new LinkedHashMap<String, Long>();
+
+	Stage(String name) {
+	    this.name = name;
+	    resetPeakHeap();
+	    this.startAllocated = allocatedBytes();
+	    this.event = new StageEvent();
+	    this.event.begin();
+	    this.startNanos = System.nanoTime();
+	}
+
+	// Records another figure of the stage in the report.
+	public void put(String counter, long value) {
+	    counters.put(counter, value);
+	}
+
+	double getDocsPerSecond() {
+	    return documents * 1e9 / Math.max(1, wallNanos);
+	}
+    }
+
+    // Bytes allocated by the threads of the build that have ended, by thread id. A thread can
+    // still be alive for a moment after it is recorded here, and must not be counted twice.
+    private static final ConcurrentHashMap<Long, Long> retiredAllocations_ = new ConcurrentHashMap<Long, Long>();
+
+    private final List<Stage> stages_ = new ArrayList<Stage>();
+    private final Map<String, Object> properties_ = new LinkedHashMap<String, Object>();
+    private final long startNanos_ = System.nanoTime();
+
+    public synchronized Stage begin(String name) {
+	return new Stage(name);
+    }
+
+    // Ends a stage that processed the given documents and read the given bytes.
+    public synchronized void end(Stage stage, long documents, long bytesRead) {
+	stage.wallNanos = System.nanoTime() - stage.startNanos;
+	stage.documents = documents;
+	stage.bytesRead = bytesRead;
+	stage.allocatedBytes = Math.max(0, allocatedBytes() - stage.startAllocated);
+	stage.peakHeapBytes = peakHeap();
+	stages_.add(stage);
+	if (stage.event.shouldCommit()) {
+	    stage.event.stage = stage.name;
+	    stage.event.documents = documents;
+	    stage.event.bytesRead = bytesRead;
+	    stage.event.allocatedBytes = stage.allocatedBytes;
+	    stage.event.peakHeapBytes = stage.peakHeapBytes;
+	    stage.event.commit();
+	}
+	if (Verbosity.atLeast(Verbosity.STAGES)) {
+	    System.out.printf("Stage %s: %.1f ms, %d docs (%.1f docs/sec), %d bytes read, %.1f MB allocated, peak heap %.1f MB%s\n",
+			      stage.name, stage.wallNanos / 1e6, documents, stage.getDocsPerSecond(), bytesRead,
+			      stage.allocatedBytes / 1048576.0, stage.peakHeapBytes / 1048576.0,
+			      stage.counters.isEmpty() ? "" : ", " + stage.counters);
+	}
+    }
+
+    // Records a property of the build, such as the input directory, in the report.
+    public synchronized void put(String property, Object value) {
+	properties_.put(property, value);
+    }
+
+    // Returns the report as a JSON object.
+    public synchronized String toJson() {
+	StringBuilder json = new StringBuilder("{\n");
+	for (Map.Entry<String, Object> property : properties_.entrySet()) {
+	    Object value = property.getValue();
+	    json.append("  ").append(quote(property.getKey())).append(": ")
+		.append(value instanceof Number || value instanceof Boolean ? value.toString() : quote(String.valueOf(value))).append(",\n");
+	}
+	json.append("  \"totalMillis\": ").append((System.nanoTime() - startNanos_) / 1000000).append(",\n");
+	json.append("  \"stages\": [");
+	for (int i = 0; i < stages_.size(); ++i) {
+	    Stage stage = stages_.get(i);
+	    json.append(i > 0 ? ",\n" : "\n");
+	    json.append("    {\"name\": ").append(quote(stage.name));
+	    json.append(", \"wallMillis\": ").append(String.format(Locale.ROOT, "%.3f", stage.wallNanos / 1e6));
+	    json.append(", \"documents\": ").append(stage.documents);
+	    json.append(", \"docsPerSecond\": ").append(String.format(Locale.ROOT, "%.1f", stage.getDocsPerSecond()));
+	    json.append(", \"bytesRead\": ").append(stage.bytesRead);
+	    json.append(", \"allocatedBytes\": ").append(stage.allocatedBytes);
+	    json.append(", \"peakHeapBytes\": ").append(stage.peakHeapBytes);
+	    for (Map.Entry<String, Long> counter : stage.counters.entrySet()) {
+		json.append(", ").append(quote(counter.getKey())).append(": ").append(counter.getValue());
+	    }
+	    json.append("}");
+	}
+	json.append("\n  ]\n}\n");
+	return json.toString();
+    }
+
+    // Writes the report to FILE_NAME in the given directory, and returns its path.
+    public Path write(Path dir) throws IOException {
+	Path path = dir.resolve(FILE_NAME);
+	Files.write(path, toJson().getBytes("UTF-8"));
+	return path;
+    }
+
+    private static String quote(String s) {
+	StringBuilder quoted = new StringBuilder("\"");
+	for (int i = 0; i < s.length(); ++i) {
+	    char c = s.charAt(i);
+	    if (c == '"' || c == '\\') {
+		quoted.append('\\').append(c);
+	    } else if (c < 0x20) {
+		quoted.append(String.format("\\u%04x", (int) c));
+	    } else {
+		quoted.append(c);
+	    }
+	}
+	return quoted.append('"').toString();
+    }
+
+    // Returns a thread factory whose threads add their allocations to the report when they end.
+    public static ThreadFactory newThreadFactory(final String name) {
+	final AtomicLong numThreads = new AtomicLong();
+	return new ThreadFactory() {
+	    public Thread newThread(Runnable r) {
+		return new Thread(countAllocations(r), name + "-" + numThreads.getAndIncrement());
+	    }
+	};
+    }
+
+    // Wraps the task of a thread, so that the bytes it allocated are still counted after it ended.
+    public static Runnable countAllocations(final Runnable task) {
+	return new Runnable() {
+	    public void run() {
+		try {
+		    task.run();
+		} finally {
+		    long threadId = Thread.currentThread().getId();
+		    long allocated = threadAllocatedBytes(threadId);
+		    if (allocated > 0) {
+			retiredAllocations_.put(threadId, allocated);
+		    }
+		}
+	    }
+	};
+    }
+
+    // Returns the bytes allocated so far by the live threads and the ended threads of the build,
+    // or 0 if the JVM doesn't count them.
+    static long allocatedBytes() {
+	java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+	    return 0;
+	}
+	long total = 0;
+	for (long allocated : retiredAllocations_.values()) {
+	    total += allocated;
+	}
+	long[] threadIds = threads.getAllThreadIds();
+	long[] allocated = ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threadIds);
+	for (int i = 0; i < threadIds.length; ++i) {
+	    if (allocated[i] > 0 && !retiredAllocations_.containsKey(threadIds[i])) {
+		total += allocated[i];
+	    }
+	}
+	return total;
+    }
+
+    private static long threadAllocatedBytes(long threadId) {
+	java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+	    return 0;
+	}
+	return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threadId);
+    }
+
+    private static void resetPeakHeap() {
+	for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+	    if (pool.getType() == MemoryType.HEAP) {
+		pool.resetPeakUsage();
+	    }
+	}
+    }
+
+    private static long peakHeap() {
+	long peak = 0;
+	for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+	    if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+		peak += pool.getPeakUsage().getUsed();
+	    }
+	}
+	return peak;
+    }
+}
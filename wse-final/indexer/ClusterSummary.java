@@ -0,0 +1,170 @@
+package indexer;
+
+import java.util.Arrays;
+
+/**
+ * Summarizes the clusters of near-duplicate documents in a single pass: for every
+ * cluster, the most authoritative document (the one with the highest PageRank) and
+ * its top k duplicates, in descending order of PageRank. Ties are broken by the
+ * lower document id.
+ * <p>
+ * The documents are grouped by cluster id with a counting sort into compressed sparse
+ * row arrays. Each cluster is then scanned once with a bounded heap of k + 1 documents,
+ * so a cluster of n documents takes O(n log k), however large it is. The per-document
+ * queries are array lookups.
+ */
+public class ClusterSummary {
+
+    // Number of documents.
+    private final int numDocs_;
+
+    // The cluster id of each document.
+    private final int[] clusterIds_;
+
+    // The documents of cluster c are members_[offsets_[c], offsets_[c + 1]), in increasing
+    // order of document id. Cluster ids are document ids, so there are numDocs_ slots.
+    private final int[] offsets_;
+    private final int[] members_;
+
+    // The most authoritative document of each cluster, or -1 for ids that are not cluster ids.
+    private final int[] authoritativeDocs_;
+
+    // The ranked duplicates of the authoritative document of cluster c are
+    // duplicates_[duplicateOffsets_[c], duplicateOffsets_[c + 1]).
+    private final int[] duplicateOffsets_;
+    private final int[] duplicates_;
+
+    /**
+     * Builds the summary. clusterIds gives the cluster id of each document, which must be
+     * a document id (such as the union-find root). pageRanks gives the PageRank of each
+     * document. At most maxDuplicates duplicates are kept for each cluster.
+     */
+    public ClusterSummary(int[] clusterIds, double[] pageRanks, int maxDuplicates) {
+	numDocs_ = clusterIds.length;
+	clusterIds_ = clusterIds;
+	offsets_ = new int[numDocs_ + 1];
+	for (int docId = 0; docId < numDocs_; ++docId) {
+	    offsets_[clusterIds[docId] + 1]++;
+	}
+	for (int c = 0; c < numDocs_; ++c) {
+	    offsets_[c + 1] += offsets_[c];
+	}
+	members_ = new int[numDocs_];
+	int[] next = Arrays.copyOf(offsets_, numDocs_);
+	for (int docId = 0; docId < numDocs_; ++docId) {
+	    members_[next[clusterIds[docId]]++] = docId;
+	}
+
+	authoritativeDocs_ = new int[numDocs_];
+	Arrays.fill(authoritativeDocs_, -1);
+	duplicateOffsets_ = new int[numDocs_ + 1];
+	int[] duplicates = new int[16];
+	int numDuplicates = 0;
+	// Heap of the best k + 1 documents of a cluster, with the worst one at the root.
+	int[] heap = new int[maxDuplicates + 1];
+	for (int c = 0; c < numDocs_; ++c) {
+	    duplicateOffsets_[c] = numDuplicates;
+	    int size = 0;
+	    for (int i = offsets_[c]; i < offsets_[c + 1]; ++i) {
+		int doc = members_[i];
+		if (size < heap.length) {
+		    heap[size] = doc;
+		    siftUp(heap, size++, pageRanks);
+		} else if (isBetter(doc, heap[0], pageRanks)) {
+		    heap[0] = doc;
+		    siftDown(heap, size, pageRanks);
+		}
+	    }
+	    if (size == 0) {
+		continue;
+	    }
+	    // Take the documents out worst first, and store them best first.
+	    if (numDuplicates + size - 1 > duplicates.length) {
+		duplicates = Arrays.copyOf(duplicates, Math.max(duplicates.length * 2, numDuplicates + size));
+	    }
+	    for (int rank = size - 1; rank >= 0; --rank) {
+		int doc = heap[0];
+		heap[0] = heap[rank];
+		siftDown(heap, rank, pageRanks);
+		if (rank == 0) {
+		    authoritativeDocs_[c] = doc;
+		} else {
+		    duplicates[numDuplicates + rank - 1] = doc;
+		}
+	    }
+	    numDuplicates += size - 1;
+	}
+	duplicateOffsets_[numDocs_] = numDuplicates;
+	duplicates_ = Arrays.copyOf(duplicates, numDuplicates);
+    }
+
+    public int getClusterId(int docId) {
+	return clusterIds_[docId];
+    }
+
+    // Returns the number of documents in the cluster of the document.
+    public int getClusterSize(int docId) {
+	int c = clusterIds_[docId];
+	return offsets_[c + 1] - offsets_[c];
+    }
+
+    // Returns the most authoritative document of the cluster of the document.
+    public int getAuthoritativeDoc(int docId) {
+	return authoritativeDocs_[clusterIds_[docId]];
+    }
+
+    public boolean isAuthoritative(int docId) {
+	return getAuthoritativeDoc(docId) == docId;
+    }
+
+    // Returns the top duplicates of the authoritative document of the cluster of the
+    // document, in descending order of PageRank.
+    public int[] getRankedDuplicates(int docId) {
+	int c = clusterIds_[docId];
+	return Arrays.copyOfRange(duplicates_, duplicateOffsets_[c], duplicateOffsets_[c + 1]);
+    }
+
+    // Whether document a ranks before document b.
+    private static boolean isBetter(int a, int b, double[] pageRanks) {
+	int cmp = Double.compare(pageRanks[a], pageRanks[b]);
+	return cmp > 0 || (cmp == 0 && a < b);
+    }
+
+    // Restores the heap order (worst document at the root) after heap[i] was added.
+    private static void siftUp(int[] heap, int i, double[] pageRanks) {
+	int doc = heap[i];
+	while (i > 0) {
+	    int parent = (i - 1) >>> 1;
+	    if (!isBetter(heap[parent], doc, pageRanks)) {
+		break;
+	    }
+	    heap[i] = heap[parent];
+	    i = parent;
+	}
+	heap[i] = doc;
+    }
+
+    // Restores the heap order of heap[0, size) after its root was replaced.
+    private static void siftDown(int[] heap, int size, double[] pageRanks) {
+	if (size == 0) {
+	    return;
+	}
+	int doc = heap[0];
+	int i = 0;
+	while (true) {
+	    int child = 2 * i + 1;
+	    if (child >= size) {
+		break;
+	    }
+	    if (child + 1 < size && isBetter(heap[child], heap[child + 1], pageRanks)) {
+		child++;
+	    }
+	    if (!isBetter(doc, heap[child], pageRanks)) {
+		break;
+	    }
+	    heap[i] = heap[child];
+	    i = child;
+	}
+	heap[i] = doc;
+    }
+}
@@ -1,13 +1,26 @@
 package indexer;
 
 import htmlparser.JTidyHTMLHandler;
+import htmlparser.ParsedPage;
+import htmlparser.StreamingHTMLHandler;
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -15,220 +28,850 @@ import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.codecs.lucene50.Lucene50StoredFieldsFormat;
+import org.apache.lucene.codecs.lucene54.Lucene54Codec;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.Version;
+import util.DocDictionary;
+import util.DocumentWalker;
+import util.NearDuplicateDetector;
+import util.SignatureStore;
 import util.UF;
 import util.Util;
+import util.Verbosity;
 
 public class Main {
 
+    // Number of pages that may wait in the queue for each indexing worker.
+    private static final int QUEUE_CAPACITY_PER_THREAD = 4;
+
+    // Tells an indexing worker that no more pages will be queued.
+    private static final Manifest.Entry END_OF_INPUT = new Manifest.Entry(null, 0, 0, 0, null);
+
     // The directory containing the input HTML files.
     String inputDir_;
 
     // The directory where the index should be written to.
     String indexDir_;
 
-    // Gives the unique integer identifier for each doc name.
-    HashMap<String, Integer> docNameToId_;
-
-    // Gives the doc name given the unique integer identifier for the document.
-    HashMap<Integer, String> idToDocName_;
+    // Gives the unique integer identifier for each doc name, and the doc name for each
+    // identifier. The ids are shared with PageRank and the union-find over clusters.
+    DocDictionary docIds_;
 
     // Number of documents in the collection.
     int numDocs_;
 
-    // Lucene IndexWriter
-    private IndexWriter writer_;
+    // The files of the collection, indexed by document id.
+    private List<DocumentWalker.Entry> files_;
+
+    // The parsed files of the collection, indexed by document id. Every file is read
+    // and parsed once, and PageRank, the duplicate detection and the indexing use these.
+    private List<ParsedPage> pages_;
+
+    // The manifest entries of the files, indexed by document id.
+    private List<Manifest.Entry> entries_;
+
+    // Whether to update the existing index instead of rebuilding it.
+    private boolean incremental_;
+
+    // The manifest written by the previous build. Empty for full builds.
+    private Manifest previousManifest_;
+
+    // Number of files that were read and parsed in this build.
+    private AtomicInteger numParsed_;
+
+    // Number of unchanged files that were parsed again for their body text (see loadBody()).
+    private AtomicInteger numReparsed_;
+
+    // Number of bytes read from the files parsed in this build.
+    private AtomicLong bytesRead_;
+
+    // The time, documents, bytes read and memory of each stage of the build.
+    private BuildReport report_;
 
-    // Utility to read text from HTML documents.
-    private JTidyHTMLHandler htmlHandler_;
+    // Number of threads that parse the files.
+    private int numThreads_;
+
+    // The Lucene IndexWriter of each shard, or the only one of an unsharded index.
+    private IndexWriter[] writers_;
+
+    // Whether HTML files are parsed with the JTidy DOM instead of the streaming extractor.
+    private boolean useJTidy_;
 
     private UF unionFindAlgo_;
 
-    private HashMap<String, Double> pageRanks_;
+    // Gives the cluster id (the union-find root) of each document id. Computed once so that
+    // the indexing workers don't race on the path compression in UF.find.
+    private int[] clusterIds_;
+
+    // The PageRank scores, indexed by document id.
+    private double[] pageRanks_;
+
+    // Whether PageRank starts from the scores of the previous build (see PageRankScores).
+    private boolean warmStartPageRank_;
+
+    // Number of PageRank iterations of the last build that started from the page qualities.
+    private int pageRankColdIterations_;
+
+    // The PageRank scores of the previous build, or null if there are none or the build
+    // is a full one without a warm start.
+    private PageRankScores previousPageRanks_;
 
-    private Map<Integer, List<String>> docsToComponentIds_;
+    // How far the PageRank scores may be from their limit (see PageRank.getTolerance()).
+    private double pageRankTolerance_;
 
-    private Map<Integer, DocInfo> componentToAuthoritativeDocMap_;
+    // Number of ranked duplicates stored with each authoritative document.
+    private static final int MAX_DUPLICATES = 5;
+
+    // The authoritative document and the ranked duplicates of every cluster.
+    private ClusterSummary clusterSummary_;
+
+    // The ids of the indexed documents that an incremental build keeps as they are.
+    // Their PageRank and cluster size doc values are updated in place.
+    private List<Integer> keptDocs_;
+
+    // Detects the near-duplicate pairs that are clustered together.
+    private NearDuplicateDetector duplicateDetector_;
+
+    // The schema profile of the indexed documents (see Schema).
+    private String profile_;
 
     public Main(String inputDir, String indexDir) throws IOException {
+	this(inputDir, indexDir, false);
+    }
+
+    /**
+     * @param incremental if true, the index in indexDir is updated using the manifest of the
+     *     previous build: only new or changed files are parsed, and only documents whose
+     *     content, authoritative status or duplicates changed are re-added or deleted.
+     *     Otherwise the index is rebuilt from scratch.
+     */
+    public Main(String inputDir, String indexDir, boolean incremental) throws IOException {
+	this(inputDir, indexDir, incremental, false);
+    }
+
+    /**
+     * @param bestCompression if true, stored fields are written with Lucene's BEST_COMPRESSION
+     *     mode, which makes them smaller and slower to load than the default BEST_SPEED mode.
+     */
+    public Main(String inputDir, String indexDir, boolean incremental, boolean bestCompression)
+	throws IOException {
+	this(inputDir, indexDir, incremental, bestCompression, 1);
+    }
+
+    /**
+     * @param numShards if greater than 1, the documents are hash-partitioned by path into
+     *     this many sub-indexes, each with its own IndexWriter (see Shards). An incremental
+     *     build must use the number of shards of the previous build.
+     */
+    public Main(String inputDir, String indexDir, boolean incremental, boolean bestCompression,
+		int numShards) throws IOException {
 	this.inputDir_ = inputDir;
 	this.indexDir_ = indexDir;
-	Directory dir = FSDirectory.open(FileSystems.getDefault().getPath(indexDir));
-	this.writer_ = new IndexWriter(dir, 
-				      new IndexWriterConfig(new StandardAnalyzer()));
-	this.htmlHandler_ = new JTidyHTMLHandler();
+	this.incremental_ = incremental;
+	Path indexPath = FileSystems.getDefault().getPath(indexDir);
+	this.previousManifest_ = incremental ? Manifest.read(indexPath) : new Manifest();
+	this.numParsed_ = new AtomicInteger(0);
+	this.numReparsed_ = new AtomicInteger(0);
+	this.bytesRead_ = new AtomicLong(0);
+	this.report_ = new BuildReport();
+	boolean sharded = numShards > 1;
+	if (previousManifest_.size() > 0 && Shards.getNumShards(indexPath) != (sharded ? numShards : 0)) {
+	    throw new IOException("The index has " + Math.max(1, Shards.getNumShards(indexPath)) +
+				  " shard(s), rebuild it to use " + Math.max(1, numShards));
+	}
+	if (!incremental) {
+	    Shards.deleteStaleShards(indexPath, sharded ? numShards : 0);
+	}
+	this.writers_ = new IndexWriter[sharded ? numShards : 1];
+	for (int shard = 0; shard < writers_.length; ++shard) {
+	    Path shardPath = sharded ? Shards.getShardDir(indexPath, shard) : indexPath;
+	    IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
+	    config.setOpenMode(incremental ? IndexWriterConfig.OpenMode.CREATE_OR_APPEND
+			       : IndexWriterConfig.OpenMode.CREATE);
+	    if (bestCompression) {
+		config.setCodec(new Lucene54Codec(Lucene50StoredFieldsFormat.Mode.BEST_COMPRESSION));
+	    }
+	    writers_[shard] = new IndexWriter(FSDirectory.open(shardPath), config);
+	}
 	numDocs_ = 0;
-	docNameToId_ = new HashMap<String, Integer>();
-        idToDocName_ = new HashMap<Integer, String>();
+	docIds_ = new DocDictionary();
+	duplicateDetector_ = new NearDuplicateDetector();
+	numThreads_ = 1;
+	profile_ = Schema.PROFILE_FULL;
+    }
+
+    // Sets the schema profile of the indexed documents, Schema.PROFILE_FULL or Schema.PROFILE_LEAN.
+    public void setSchemaProfile(String profile) {
+	Schema.checkProfile(profile);
+	this.profile_ = profile;
+    }
+
+    // Parses every HTML file with the JTidy DOM. By default, the pages that the streaming
+    // extractor can handle are parsed by it, which gives the same text and anchors.
+    public void setUseJTidy(boolean useJTidy) {
+	this.useJTidy_ = useJTidy;
+    }
+
+    private JTidyHTMLHandler newHTMLHandler() {
+	return useJTidy_ ? new JTidyHTMLHandler() : new StreamingHTMLHandler();
+    }
+
+    // Starts the PageRank iteration from the scores of the previous build in the index
+    // directory, if there are any. New pages start from their quality.
+    public void setWarmStartPageRank(boolean warmStart) {
+	this.warmStartPageRank_ = warmStart;
+    }
+
+    public void setNumThreads(int numThreads) {
+	this.numThreads_ = numThreads;
+    }
+
+    public void setDuplicateDetector(NearDuplicateDetector duplicateDetector) {
+	this.duplicateDetector_ = duplicateDetector;
     }
 
     
     public void initialize() throws Exception {
-	Collection<File> files = Util.walk(inputDir_);
-	for (File f : files) {
-	    String basename = Util.getBasename(f.toString());
-	    docNameToId_.put(basename, numDocs_);
-	    idToDocName_.put(numDocs_++, basename);
+	BuildReport.Stage stage = report_.begin("discovery");
+	this.files_ = DocumentWalker.list(inputDir_);
+	for (DocumentWalker.Entry f : files_) {
+	    if (docIds_.add(f.getName()) != numDocs_++) {
+		// Documents are identified by their basename, in links as well as in clusters.
+		throw new IOException("Duplicate document name: " + f);
+	    }
 	}
-	Set<String> algoPairs = Util.runShinglesAlgorithm(inputDir_);
+	report_.end(stage, numDocs_, 0);
+
+	stage = report_.begin("parse");
+	this.entries_ = extractPages(files_, numThreads_);
+	this.pages_ = new ArrayList<ParsedPage>(numDocs_);
+	for (Manifest.Entry entry : entries_) {
+	    pages_.add(entry.page);
+	}
+	stage.put("parsed", numParsed_.get());
+	report_.end(stage, numDocs_, bytesRead_.get());
+
+	stage = report_.begin("dedup");
+	Set<String> algoPairs = findDuplicatePairs(stage);
+	stage.put("duplicatePairs", algoPairs.size());
+	report_.end(stage, numDocs_, 0);
+
+	stage = report_.begin("clustering");
 	this.unionFindAlgo_ = assignClusters(algoPairs);
-	this.docsToComponentIds_ = mapDocsToComponentIds(unionFindAlgo_);
-	PageRank pageRank = new PageRank(inputDir_, 0.7);
-	pageRank.calculateQualities(new Util.HTMLFilesFilter());
+	this.clusterIds_ = new int[numDocs_];
+	for (int docId = 0; docId < numDocs_; ++docId) {
+	    clusterIds_[docId] = unionFindAlgo_.find(docId);
+	}
+	stage.put("clusters", unionFindAlgo_.count());
+	report_.end(stage, numDocs_, 0);
+
+	stage = report_.begin("page qualities");
+	PageRank pageRank = new PageRank(inputDir_, 0.7, docIds_);
+	pageRank.setParallelism(numThreads_);
+	FileFilter htmlFilter = new Util.HTMLFilesFilter();
+	List<ParsedPage> htmlPages = new ArrayList<ParsedPage>();
+	for (int docId = 0; docId < numDocs_; ++docId) {
+	    if (isReadable(files_.get(docId), htmlFilter)) {
+		htmlPages.add(pages_.get(docId));
+	    }
+	}
+	pageRank.calculateQualities(htmlPages);
+	report_.end(stage, htmlPages.size(), 0);
+
+	stage = report_.begin("link extraction");
         pageRank.readPages();
+	report_.end(stage, htmlPages.size(), 0);
+
+	// The scores of the previous build seed a warm start, and tell an incremental build
+	// which PageRank doc values of the documents it keeps have changed.
+	if (incremental_ || warmStartPageRank_) {
+	    stage = report_.begin("previous pagerank");
+	    previousPageRanks_ = PageRankScores.read(FileSystems.getDefault().getPath(indexDir_));
+	    if (warmStartPageRank_ && previousPageRanks_ != null) {
+		stage.put("seededPages", pageRank.seedRanks(previousPageRanks_.getScores()));
+	    }
+	    report_.end(stage, numDocs_, 0);
+	}
+	boolean warmStart = warmStartPageRank_ && previousPageRanks_ != null;
+
+	stage = report_.begin("pagerank");
         this.pageRanks_ = pageRank.calculatePageRanks();
-	this.componentToAuthoritativeDocMap_ = findMaxPageRankForComponents(pageRanks_, docsToComponentIds_);
+	this.pageRankTolerance_ = pageRank.getTolerance();
+	stage.put("iterations", pageRank.getNumIterations());
+	// A warm start is compared with the iterations of the last cold start.
+	pageRankColdIterations_ = warmStart ? previousPageRanks_.getColdIterations() : pageRank.getNumIterations();
+	stage.put("lastColdIterations", pageRankColdIterations_);
+	report_.put("pageRankStart", warmStart ? "warm" : "cold");
+	report_.end(stage, numDocs_, 0);
+
+	stage = report_.begin("cluster summary");
+	this.clusterSummary_ = new ClusterSummary(clusterIds_, pageRanks_, MAX_DUPLICATES);
+	report_.end(stage, numDocs_, 0);
+    }
+
+
+    // Finds the near-duplicate pairs with the signature store in the index directory, which
+    // only signs the documents that are new or changed since the previous build, and only
+    // compares them with the documents in their LSH buckets. A full build rebuilds the store.
+    private Set<String> findDuplicatePairs(BuildReport.Stage stage) throws IOException {
+	List<String> names = new ArrayList<String>(numDocs_);
+	long[] contentHashes = new long[numDocs_];
+	for (int docId = 0; docId < numDocs_; ++docId) {
+	    names.add(pages_.get(docId).getName());
+	    contentHashes[docId] = entries_.get(docId).contentHash;
+	}
+	SignatureStore store = SignatureStore.open(FileSystems.getDefault().getPath(indexDir_), duplicateDetector_,
+						   !incremental_);
+	Set<String> pairs;
+	try {
+	    // The store signs the documents it doesn't have, which needs their text.
+	    for (int docId = 0; docId < numDocs_; ++docId) {
+		if (!pages_.get(docId).hasBody() && !store.contains(names.get(docId), contentHashes[docId])) {
+		    pages_.set(docId, loadBody(entries_.get(docId)));
+		}
+	    }
+	    pairs = store.update(names, contentHashes, pages_);
+	} finally {
+	    store.close();
+	}
+	stage.put("signed", store.getNumSigned());
+	stage.put("reusedSignatures", store.getNumReused());
+	stage.put("candidatePairs", store.getNumCandidates());
+	if (Verbosity.atLeast(Verbosity.DOCUMENTS)) {
+	    System.out.println("Implementation results:");
+	    for (String pair : pairs) {
+		System.out.println(pair);
+	    }
+	}
+	return pairs;
+    }
+
+    // Reads and parses every file once, on numThreads threads. Each thread owns its own
+    // HTML handler. The returned entries are in the same order as the files.
+    private List<Manifest.Entry> extractPages(List<DocumentWalker.Entry> files, int numThreads)
+	throws IOException {
+	List<Manifest.Entry> entries = new ArrayList<Manifest.Entry>(files.size());
+	if (numThreads <= 1) {
+	    JTidyHTMLHandler handler = newHTMLHandler();
+	    for (DocumentWalker.Entry f : files) {
+		entries.add(extractPage(f, handler));
+	    }
+	    return entries;
+	}
+	final ThreadLocal<JTidyHTMLHandler> handlers = new ThreadLocal<JTidyHTMLHandler>() {
+	    protected JTidyHTMLHandler initialValue() {
+		return newHTMLHandler();
+	    }
+	};
+	ExecutorService executor = Executors.newFixedThreadPool(numThreads, BuildReport.newThreadFactory("parser"));
+	try {
+	    List<Future<Manifest.Entry>> futures = new ArrayList<Future<Manifest.Entry>>(files.size());
+	    for (final DocumentWalker.Entry f : files) {
+		futures.add(executor.submit(new Callable<Manifest.Entry>() {
+			public Manifest.Entry call() throws IOException {
+			    return extractPage(f, handlers.get());
+			}
+		    }));
+	    }
+	    for (Future<Manifest.Entry> future : futures) {
+		entries.add(future.get());
+	    }
+	} catch (InterruptedException e) {
+	    throw new IOException("Interrupted while parsing files", e);
+	} catch (ExecutionException e) {
+	    if (e.getCause() instanceof IOException) {
+		throw (IOException) e.getCause();
+	    }
+	    throw new IOException("Failed to parse files", e.getCause());
+	} finally {
+	    executor.shutdownNow();
+	}
+	return entries;
     }
 
+    // Creates the manifest entry of a file. The parsed page of the previous build is reused
+    // when the size and modification time, or else the content hash, are unchanged.
+    private Manifest.Entry extractPage(DocumentWalker.Entry f, JTidyHTMLHandler handler) throws IOException {
+	String path = f.toString();
+	long size = f.size;
+	long lastModified = f.lastModified;
+	Manifest.Entry previous = previousManifest_.get(path);
+	if (previous != null && previous.size == size && previous.lastModified == lastModified) {
+	    return new Manifest.Entry(path, size, lastModified, previous.contentHash, previous.page);
+	}
+	byte[] content = Files.readAllBytes(f.path);
+	bytesRead_.addAndGet(content.length);
+	long contentHash = Manifest.hash(content);
+	if (previous != null && previous.contentHash == contentHash) {
+	    return new Manifest.Entry(path, size, lastModified, contentHash, previous.page);
+	}
+	numParsed_.incrementAndGet();
+	return new Manifest.Entry(path, size, lastModified, contentHash,
+				  Util.extractPage(f.toFile(), content, handler));
+    }
+
+    // Returns the page of a manifest entry with its body text. The page of an unchanged
+    // file comes from the previous manifest, which doesn't keep the body, so the file is
+    // parsed again when the page is signed or indexed.
+    private ParsedPage loadBody(Manifest.Entry entry) throws IOException {
+	if (!entry.page.hasBody()) {
+	    numReparsed_.incrementAndGet();
+	    entry.page = Util.extractPage(new File(entry.path), newHTMLHandler());
+	}
+	return entry.page;
+    }
+
+    // Whether the document passes the filter. The walker already skipped hidden files and
+    // directories, and every listed file was read by extractPages().
+    private static boolean isReadable(DocumentWalker.Entry f, FileFilter filter) {
+	return filter == null || filter.accept(f.toFile());
+    }
 
     private UF assignClusters(Set<String> algoPairs) {
         UF unionFindAlgo = new UF(numDocs_);
         for (String pair : algoPairs) {
             String[] docs = pair.split(",");
-            int docId1 = docNameToId_.get(docs[0]);
-            int docId2 = docNameToId_.get(docs[1]);
+            int docId1 = docIds_.getId(docs[0]);
+            int docId2 = docIds_.getId(docs[1]);
             unionFindAlgo.union(docId1, docId2);
         }
 	return unionFindAlgo;
     }
 
+    public int index(FileFilter filter) throws FileNotFoundException, IOException {
+	BuildReport.Stage stage = report_.begin("indexing");
+	List<Manifest.Entry> toAdd = prepareIndexUpdate(filter);
+	for (Manifest.Entry entry : toAdd) {
+	    indexPage(entry);
+	}
+	report_.end(stage, toAdd.size(), 0);
+	return finishIndexUpdate();
+    }
+
     /**
-     * Map each doc to its component/cluster id, obtained using UF.find(int docId)
-     * Note: the call, unionFindAlgo.find(docId), also handles individual pages that are not duplicates
-     * or do not have any duplicates, by putting those pages in a cluster of just one document - that
-     * page itself. So, suppose docId 1 is a doc with name ("abc") and without any duplicates,
-     * componentIdToDocs will store a Map.Entry of (1, [abc]) for this doc.
-     *
-     * So when componentIdToDocs is passed to findMaxPageRankForComponents(..),
-     * the PR of cluster#1 will be that of doc "abc". So regardless of whether duplicates exist or not,
-     * every page is in a cluster/component. The size of the component can range from 1 to N (where N =
-     * max number of docs in folder), in the case that N-1 docs are duplicates of the remaining doc.
+     * Decides which documents go into the index and with which duplicates, and records
+     * that in the manifest entries. In a full build this returns the entries of all the
+     * authoritative documents. In an incremental build it deletes the documents that were
+     * removed or changed since the previous build, and returns only the entries that
+     * need to be (re-)added.
      */
+    private List<Manifest.Entry> prepareIndexUpdate(FileFilter filter) throws IOException {
+	String previousProfile = Schema.getProfile(writers_[0].getCommitData());
+	if (previousManifest_.size() > 0 && !previousProfile.equals(profile_)) {
+	    throw new IOException("The index has the " + previousProfile + " schema, rebuild it to use the " +
+				  profile_ + " schema");
+	}
+	List<Manifest.Entry> toAdd = new ArrayList<Manifest.Entry>();
+	Set<String> currentPaths = new HashSet<String>();
+	keptDocs_ = new ArrayList<Integer>();
+	int numDeleted = 0;
+	for (int docId = 0; docId < numDocs_; ++docId) {
+	    Manifest.Entry entry = entries_.get(docId);
+	    currentPaths.add(entry.path);
+	    entry.indexed = isReadable(files_.get(docId), filter) && clusterSummary_.isAuthoritative(docId);
+	    entry.duplicates = entry.indexed ? getDuplicatesField(docId) : "";
+	    entry.clusterSize = entry.indexed ? clusterSummary_.getClusterSize(docId) : 0;
+	    Manifest.Entry previous = previousManifest_.get(entry.path);
+	    if (previous != null &&
+		previous.indexed == entry.indexed &&
+		(!entry.indexed ||
+		 (previous.contentHash == entry.contentHash && previous.duplicates.equals(entry.duplicates)))) {
+		// The indexed document (if any) is up to date.
+		if (entry.indexed) {
+		    keptDocs_.add(docId);
+		}
+		continue;
+	    }
+	    if (previous != null && previous.indexed) {
+		getWriter(entry.path).deleteDocuments(new Term(Schema.KEY_FIELD, entry.path));
+		numDeleted++;
+	    }
+	    if (entry.indexed) {
+		toAdd.add(entry);
+	    }
+	}
+	for (Manifest.Entry previous : previousManifest_.entries()) {
+	    if (previous.indexed && !currentPaths.contains(previous.path)) {
+		getWriter(previous.path).deleteDocuments(new Term(Schema.KEY_FIELD, previous.path));
+		numDeleted++;
+	    }
+	}
+	if (incremental_ && Verbosity.atLeast(Verbosity.STAGES)) {
+	    System.out.println("Incremental update: adding " + toAdd.size() + " and deleting " +
+			       numDeleted + " documents");
+	}
+	return toAdd;
+    }
+
+    // Commits the index and writes the manifest for the next incremental build, and the
+    // report of the build.
+    private int finishIndexUpdate() throws IOException {
+	BuildReport.Stage stage = report_.begin("commit");
+	stage.put("updatedDocValues", updateKeptDocValues());
+	Map<String, String> commitData = new HashMap<String, String>();
+	commitData.put(Schema.DIR_KEY, inputDir_);
+	commitData.put(Schema.PROFILE_KEY, profile_);
+	commitAll(commitData);
+	Manifest manifest = new Manifest();
+	for (Manifest.Entry entry : entries_) {
+	    manifest.put(entry);
+	}
+	manifest.write(FileSystems.getDefault().getPath(indexDir_));
+	Map<String, Double> scores = new HashMap<String, Double>(numDocs_ * 2);
+	for (int docId = 0; docId < numDocs_; ++docId) {
+	    scores.put(docIds_.getName(docId), pageRanks_[docId]);
+	}
+	new PageRankScores(scores, pageRankColdIterations_).write(FileSystems.getDefault().getPath(indexDir_));
+	int numIndexed = 0;
+	for (IndexWriter writer : writers_) {
+	    numIndexed += writer.numDocs();
+	}
+	report_.end(stage, numIndexed, 0);
+	report_.put("inputDir", inputDir_);
+	report_.put("indexDir", indexDir_);
+	report_.put("incremental", incremental_);
+	report_.put("threads", numThreads_);
+	report_.put("shards", writers_.length);
+	report_.put("documents", numDocs_);
+	report_.put("reparsedDocuments", numReparsed_.get());
+	report_.put("indexedDocuments", numIndexed);
+	Path reportPath = report_.write(FileSystems.getDefault().getPath(indexDir_));
+	if (Verbosity.atLeast(Verbosity.STAGES)) {
+	    System.out.println("Build report: " + reportPath);
+	}
+        return numIndexed;
+    }
+
+    // Updates the PageRank and cluster size doc values of the documents that the build keeps
+    // as they are, where they changed, and returns the number of documents updated. The
+    // scores are only accurate to the PageRank tolerance, so a score that is within it of
+    // the indexed one isn't updated: the indexed score is kept in pageRanks_ instead, so
+    // that the next build compares with what is in the index.
+    private int updateKeptDocValues() throws IOException {
+	Map<String, Double> previousRanks = previousPageRanks_ == null ? Collections.<String, Double>emptyMap()
+	    : previousPageRanks_.getScores();
+	// Whether each shard has the doc value fields. Indexes built before they existed don't,
+	// and can't get them by updates.
+	Boolean[] hasDocValues = new Boolean[writers_.length];
+	int numUpdated = 0;
+	int numSkipped = 0;
+	for (int docId : keptDocs_) {
+	    Manifest.Entry entry = entries_.get(docId);
+	    int shard = getShard(entry.path);
+	    if (hasDocValues[shard] == null) {
+		hasDocValues[shard] = hasNumericDocValues(writers_[shard].getDirectory(), Schema.PAGERANK_FIELD) &&
+		    hasNumericDocValues(writers_[shard].getDirectory(), Schema.CLUSTER_SIZE_FIELD);
+	    }
+	    if (!hasDocValues[shard]) {
+		numSkipped++;
+		continue;
+	    }
+	    Term key = new Term(Schema.KEY_FIELD, entry.path);
+	    boolean updated = false;
+	    Double previousRank = previousRanks.get(docIds_.getName(docId));
+	    if (previousRank == null || Math.abs(previousRank - pageRanks_[docId]) > pageRankTolerance_) {
+		writers_[shard].updateNumericDocValue(key, Schema.PAGERANK_FIELD, Double.doubleToRawLongBits(pageRanks_[docId]));
+		updated = true;
+	    } else {
+		pageRanks_[docId] = previousRank;
+	    }
+	    if (entry.clusterSize != previousManifest_.get(entry.path).clusterSize) {
+		writers_[shard].updateNumericDocValue(key, Schema.CLUSTER_SIZE_FIELD, entry.clusterSize);
+		updated = true;
+	    }
+	    if (updated) {
+		numUpdated++;
+	    }
+	}
+	if (numSkipped > 0) {
+	    System.err.println("Not updating the PageRank of " + numSkipped + " unchanged documents, " +
+			       "rebuild the index to add it");
+	}
+	return numUpdated;
+    }
 
-    private Map<Integer, List<String>> mapDocsToComponentIds(UF unionFindAlgo) {
-        //initialize in constructor
-        Map<Integer, List<String>> componentIdToDocs = new HashMap<Integer, List<String>>();
+    // Whether the last commit of an index has the given numeric doc values field.
+    private static boolean hasNumericDocValues(Directory dir, String field) throws IOException {
+	DirectoryReader reader = DirectoryReader.open(dir);
+	try {
+	    FieldInfo info = MultiFields.getMergedFieldInfos(reader).fieldInfo(field);
+	    return info != null && info.getDocValuesType() == DocValuesType.NUMERIC;
+	} finally {
+	    reader.close();
+	}
+    }
 
-        Set<Integer> docIds = idToDocName_.keySet();
+    // Returns the shard of a document.
+    private int getShard(String path) {
+	return writers_.length == 1 ? 0 : Shards.shardOf(path, writers_.length);
+    }
 
-        for (Integer docId : docIds) {
-            String docName = idToDocName_.get(docId);
-            Integer componentId = unionFindAlgo.find(docId);
+    // Returns the writer of the shard of a document.
+    private IndexWriter getWriter(String path) {
+	return writers_[getShard(path)];
+    }
 
-            List<String> docsInComponent;
-            if (!componentIdToDocs.containsKey(componentId)) {
-                docsInComponent = new ArrayList<String>();
-            } else {
-                docsInComponent = componentIdToDocs.get(componentId);
-            }
-            docsInComponent.add(docName);
-            componentIdToDocs.put(componentId, docsInComponent);
-        }
-        return componentIdToDocs;
+    // Commits every shard with the given user data. The shards flush their last documents
+    // and sync their files in parallel.
+    private void commitAll(final Map<String, String> commitData) throws IOException {
+	if (writers_.length == 1) {
+	    writers_[0].setCommitData(commitData);
+	    writers_[0].commit();
+	    return;
+	}
+	ExecutorService executor = Executors.newFixedThreadPool(writers_.length, BuildReport.newThreadFactory("committer"));
+	try {
+	    List<Future<Void>> futures = new ArrayList<Future<Void>>(writers_.length);
+	    for (final IndexWriter writer : writers_) {
+		futures.add(executor.submit(new Callable<Void>() {
+			public Void call() throws IOException {
+			    writer.setCommitData(commitData);
+			    writer.commit();
+			    return null;
+			}
+		    }));
+	    }
+	    for (Future<Void> future : futures) {
+		future.get();
+	    }
+	} catch (InterruptedException e) {
+	    throw new IOException("Interrupted while committing", e);
+	} catch (ExecutionException e) {
+	    if (e.getCause() instanceof IOException) {
+		throw (IOException) e.getCause();
+	    }
+	    throw new IOException("Failed to commit", e.getCause());
+	} finally {
+	    executor.shutdownNow();
+	}
     }
 
     /**
-     * Returns a mapping of the component/cluster id and
-     * the most authoritative doc for that component
+     * Indexes the parsed pages on numThreads worker threads. The calling thread queues
+     * the pages that need to be indexed into a bounded queue, and the workers build their
+     * Lucene documents and add them to the shared (thread-safe) IndexWriter, or to the
+     * writer of their shard, so that the shards are built in parallel. The resulting
+     * index holds the same documents as the one built by index(filter), possibly in a
+     * different order.
      */
-    //pass your this.pageRanks_ as 1st param
-    public Map<Integer, DocInfo> findMaxPageRankForComponents(Map<String, Double> pageRanks_, 
-							      Map<Integer, List<String>> componentIdToDocs) {
-
-        Map<Integer, DocInfo> componentToAuthoritativeDocMap = new HashMap<Integer, DocInfo>();
-
-        for (Integer componentId : componentIdToDocs.keySet()) {
-            List<String> docsInComponent = componentIdToDocs.get(componentId);
-            double maxPageRankSoFarInComponent = Double.MIN_VALUE;
-            String docWithMaxPageRankInComponent = null;
-
-            for (String doc : docsInComponent) {
-		System.out.println(doc);
-                double pageRankForDoc = pageRanks_.get(doc);
-                if (pageRankForDoc > maxPageRankSoFarInComponent) {
-                    maxPageRankSoFarInComponent = pageRankForDoc;
-                    docWithMaxPageRankInComponent = doc;
-                }
-            }
-            DocInfo authoritativeDocForComponent =
-                new DocInfo(docWithMaxPageRankInComponent, maxPageRankSoFarInComponent);
-            componentToAuthoritativeDocMap.put(componentId, authoritativeDocForComponent);
-        }
+    public int index(FileFilter filter, int numThreads) throws IOException {
+	if (numThreads <= 1) {
+	    return index(filter);
+	}
+	BuildReport.Stage stage = report_.begin("indexing");
+	List<Manifest.Entry> toAdd = prepareIndexUpdate(filter);
+	final BlockingQueue<Manifest.Entry> queue =
+	    new ArrayBlockingQueue<Manifest.Entry>(QUEUE_CAPACITY_PER_THREAD * numThreads);
+	final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+	Thread[] workers = new Thread[numThreads];
+	for (int i = 0; i < numThreads; ++i) {
+	    workers[i] = new Thread(BuildReport.countAllocations(new Runnable() {
+		    public void run() {
+			try {
+			    Manifest.Entry entry = queue.take();
+			    while (entry != END_OF_INPUT) {
+				// After a failure, keep draining the queue so that the producer never blocks.
+				if (failure.get() == null) {
+				    try {
+					indexPage(entry);
+				    } catch (Throwable t) {
+					failure.compareAndSet(null, t);
+				    }
+				}
+				entry = queue.take();
+			    }
+			} catch (InterruptedException e) {
+			    failure.compareAndSet(null, e);
+			}
+		    }
+		}), "indexer-" + i);
+	    workers[i].start();
+	}
+	try {
+	    for (Manifest.Entry entry : toAdd) {
+		if (failure.get() != null) {
+		    break;
+		}
+		queue.put(entry);
+	    }
+	} catch (InterruptedException e) {
+	    failure.compareAndSet(null, e);
+	} finally {
+	    for (int i = 0; i < numThreads; ++i) {
+		putUninterruptibly(queue, END_OF_INPUT);
+	    }
+	    for (Thread worker : workers) {
+		joinUninterruptibly(worker);
+	    }
+	}
+	Throwable t = failure.get();
+	if (t instanceof IOException) {
+	    throw (IOException) t;
+	} else if (t != null) {
+	    throw new IOException("Indexing failed", t);
+	}
+	report_.end(stage, toAdd.size(), 0);
+	return finishIndexUpdate();
+    }
 
-        return componentToAuthoritativeDocMap;
+    private static void putUninterruptibly(BlockingQueue<Manifest.Entry> queue, Manifest.Entry item) {
+	while (true) {
+	    try {
+		queue.put(item);
+		return;
+	    } catch (InterruptedException e) {
+		// retry; the worker threads must always receive their end marker
+	    }
+	}
     }
 
-    public int index(FileFilter filter) throws FileNotFoundException, IOException {
-        Collection<File> files = Util.walk(inputDir_); 
-        
-        for (File f : files) {
-            if (!f.isDirectory() &&
-                !f.isHidden() &&
-                f.exists() &&
-                f.canRead() &&
-                (filter == null || filter.accept(f))) {
-                indexFile(f);
-            }
-        }
-        return writer_.numDocs();
-    }
-
-    private List<String> getRankedDuplicates(String basename) {
-        int docId = docNameToId_.get(basename);
-        int clusterId = unionFindAlgo_.find(docId);
-	List<String> docsInCluster = docsToComponentIds_.get(clusterId);
-	PriorityQueue<Map.Entry<String, Double>> pq = new PriorityQueue<Map.Entry<String, Double>>(docsInCluster.size(),
-                                                                                                   new Util.PageRankComparator());
-	HashMap<String, Double> subsetPageRanks = new HashMap<String, Double>();
-	for (String page : docsInCluster) {
-	    if (!page.equals(basename)) {
-		subsetPageRanks.put(page, this.pageRanks_.get(page));
-	    }
-	}
-        pq.addAll(subsetPageRanks.entrySet());
-	List<String> topDuplicates = new ArrayList<String>();
-        while (pq.size() > 0 && topDuplicates.size() < 5) {
-            Map.Entry<String, Double> entry = pq.poll();
-            topDuplicates.add(entry.getKey());
-        }
-	return topDuplicates;
-    }
-
-    private void indexFile(File f) throws FileNotFoundException, IOException {
-	String basename = Util.getBasename(f.toString());
-	int docId = docNameToId_.get(basename);
-	int clusterId = unionFindAlgo_.find(docId);
-	String authoritativeDoc = componentToAuthoritativeDocMap_.get(clusterId).getDocName();
-	if (basename.equals(authoritativeDoc)) {
-	    List<String> topDuplicates = getRankedDuplicates(basename);
-	    System.out.println("Indexing: " + basename);
-	    Document doc = htmlHandler_.getDocument(new FileInputStream(f));
-	    doc.add(new TextField("path", f.getPath(), Field.Store.YES));
-	    doc.add(new TextField("dir", inputDir_, Field.Store.YES));
-	    StringBuilder duplicates = new StringBuilder();
-	    for (int i = 0; i < topDuplicates.size(); ++i) {
-		duplicates.append(topDuplicates.get(i));
-		if (i < topDuplicates.size() - 1) {
-		    duplicates.append(',');
-		}
+    private static void joinUninterruptibly(Thread thread) {
+	while (true) {
+	    try {
+		thread.join();
+		return;
+	    } catch (InterruptedException e) {
+		// retry
+	    }
+	}
+    }
+
+    // Returns the value of the "duplicates" field of an authoritative document:
+    // its highest ranked duplicates, separated by commas.
+    private String getDuplicatesField(int docId) {
+	int[] topDuplicates = clusterSummary_.getRankedDuplicates(docId);
+	StringBuilder duplicates = new StringBuilder();
+	for (int i = 0; i < topDuplicates.length; ++i) {
+	    duplicates.append(docIds_.getName(topDuplicates[i]));
+	    if (i < topDuplicates.length - 1) {
+		duplicates.append(',');
+	    }
+	}
+	return duplicates.toString();
+    }
+
+    // Adds the page of a manifest entry to the index, with the duplicates recorded in the entry.
+    private void indexPage(Manifest.Entry entry) throws IOException {
+	if (entry.indexed) {
+	    ParsedPage page = loadBody(entry);
+	    String basename = page.getName();
+	    if (Verbosity.atLeast(Verbosity.DOCUMENTS)) {
+		System.out.println("Indexing: " + basename);
+	    }
+	    boolean lean = Schema.PROFILE_LEAN.equals(profile_);
+	    Document doc = newDocument(page, !lean);
+	    doc.add(new StringField(Schema.KEY_FIELD, entry.path, Field.Store.NO));
+	    if (entry.duplicates.length() > 0 && Verbosity.atLeast(Verbosity.DOCUMENTS)) {
+		System.out.println("Duplicates: " + entry.duplicates);
 	    }
-	    if (duplicates.length() > 0) {
-		System.out.println("Duplicates: " + duplicates.toString());
+	    if (lean) {
+		// The data directory is in the commit user data.
+		doc.add(new StoredField(Schema.PATH_FIELD, page.getPath()));
+		if (entry.duplicates.length() > 0) {
+		    doc.add(new StoredField(Schema.DUPLICATES_FIELD, entry.duplicates));
+		}
+	    } else {
+		doc.add(new TextField(Schema.PATH_FIELD, page.getPath(), Field.Store.YES));
+		doc.add(new TextField(Schema.DIR_FIELD, inputDir_, Field.Store.YES));
+		doc.add(new TextField(Schema.DUPLICATES_FIELD, entry.duplicates, Field.Store.YES));
 	    }
-	    doc.add(new TextField("duplicates", duplicates.toString(), Field.Store.YES));
-	    writer_.addDocument(doc);
+	    int docId = docIds_.getId(basename);
+	    doc.add(new NumericDocValuesField(Schema.PAGERANK_FIELD, Double.doubleToRawLongBits(pageRanks_[docId])));
+	    doc.add(new NumericDocValuesField(Schema.CLUSTER_SIZE_FIELD, clusterSummary_.getClusterSize(docId)));
+	    getWriter(entry.path).addDocument(doc);
 	}
     }
 
+    // The body field, indexed with the character offsets of every term occurrence so that
+    // result snippets can be cut out without re-analyzing the text, stored or not.
+    private static final FieldType STORED_BODY_TYPE = bodyType(true);
+    private static final FieldType BODY_TYPE = bodyType(false);
+
+    private static FieldType bodyType(boolean stored) {
+	FieldType type = new FieldType(stored ? TextField.TYPE_STORED : TextField.TYPE_NOT_STORED);
+	type.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+	type.freeze();
+	return type;
+    }
+
+    // Builds the Lucene document with the title and body fields of a page. The body is
+    // always indexed with offsets, and only stored if storeBody is true.
+    private static Document newDocument(ParsedPage page, boolean storeBody) {
+	Document doc = new Document();
+	String title = page.getTitle();
+	String body = page.getBody();
+	if ((title != null) && (!title.equals(""))) {
+	    doc.add(new TextField(Schema.TITLE_FIELD, title, Field.Store.YES));
+	}
+	if ((body != null) && (!body.equals(""))) {
+	    doc.add(new Field(Schema.BODY_FIELD, body, storeBody ? STORED_BODY_TYPE : BODY_TYPE));
+	}
+	return doc;
+    }
+
     public void close() throws IOException {
-        writer_.close();
+	for (IndexWriter writer : writers_) {
+	    writer.close();
+	}
+    }
+
+    // Prints the size of the index, and the average time to load the stored fields that
+    // Retriever shows for a hit, over all the documents. This reads the whole index, so it
+    // is only done on request (--report-index-stats).
+    public void reportIndexStats() throws IOException {
+	long size = 0;
+	IndexReader[] shardReaders = new IndexReader[writers_.length];
+	for (int shard = 0; shard < writers_.length; ++shard) {
+	    Directory dir = writers_[shard].getDirectory();
+	    for (String file : dir.listAll()) {
+		if (!file.startsWith(Manifest.FILE_NAME) && !file.equals(BuildReport.FILE_NAME) &&
+		    !file.equals(IndexWriter.WRITE_LOCK_NAME) && !file.startsWith(Shards.DIR_PREFIX) &&
+		    !file.startsWith(SignatureStore.FILE_PREFIX) && !file.startsWith(PageRankScores.FILE_NAME)) {
+		    size += dir.fileLength(file);
+		}
+	    }
+	    shardReaders[shard] = DirectoryReader.open(dir);
+	}
+	IndexReader reader = shardReaders.length == 1 ? shardReaders[0] : new MultiReader(shardReaders);
+	try {
+	    IndexSearcher searcher = new IndexSearcher(reader);
+	    // The first pass warms up the JIT and the OS cache, the second one is timed.
+	    long start = 0;
+	    int numLoaded = 0;
+	    for (int pass = 0; pass < 2; ++pass) {
+		start = System.nanoTime();
+		numLoaded = 0;
+		for (int doc = 0; doc < reader.maxDoc(); ++doc) {
+		    searcher.doc(doc, Schema.HIT_FIELDS);
+		    numLoaded++;
+		}
+	    }
+	    double micros = (System.nanoTime() - start) / 1e3;
+	    System.out.printf("Index size: %d bytes (%s schema, %d shard(s)); hit fields load in %.1f us/hit over %d documents\n",
+			      size, profile_, writers_.length, micros / Math.max(1, numLoaded), numLoaded);
+	} finally {
+	    reader.close();
+	}
     }
 
     public static void main(String args[]) throws IOException,ParseException {
@@ -243,19 +886,68 @@ public class Main {
                           .hasArg()
                           .isRequired()
                           .create('i'));
+        options.addOption(OptionBuilder.withLongOpt("threads")
+                          .withDescription("Number of threads that parse and index documents (default 1)")
+                          .hasArg()
+                          .create('t'));
+        options.addOption(OptionBuilder.withLongOpt("schema")
+                          .withDescription("Schema profile: full (default) stores the body, lean doesn't")
+                          .hasArg()
+                          .create());
+        options.addOption(OptionBuilder.withLongOpt("best-compression")
+                          .withDescription("Write stored fields in the smaller and slower BEST_COMPRESSION mode")
+                          .create());
+        options.addOption(OptionBuilder.withLongOpt("jtidy")
+                          .withDescription("Parse every HTML file with the JTidy DOM instead of the streaming extractor")
+                          .create());
+        options.addOption(OptionBuilder.withLongOpt("incremental")
+                          .withDescription("Update the existing index, re-indexing only new, changed or removed documents")
+                          .create());
+        options.addOption(OptionBuilder.withLongOpt("report-index-stats")
+                          .withDescription("After the build, print the index size and time loading the hit fields of every document")
+                          .create());
+        options.addOption(OptionBuilder.withLongOpt("warm-start")
+                          .withDescription("Start PageRank from the scores of the previous build in the index directory")
+                          .create());
+        options.addOption(OptionBuilder.withLongOpt("shards")
+                          .withDescription("Number of sub-indexes the documents are hash-partitioned into (default 1)")
+                          .hasArg()
+                          .create());
+        options.addOption(OptionBuilder.withLongOpt("verbosity")
+                          .withDescription("0: only the summary, 1: a line per stage (default), " +
+                                           "2: every document, link and score")
+                          .hasArg()
+                          .create('v'));
+        NearDuplicateDetector.addOptions(options);
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options, args);
 
         String dataDir = cmd.getOptionValue("d");
         String indexDir = cmd.getOptionValue("i");
+        int numThreads = Integer.parseInt(cmd.getOptionValue("t", "1"));
+        Verbosity.setLevel(Integer.parseInt(cmd.getOptionValue("v", String.valueOf(Verbosity.STAGES))));
 	
-	Main indexer = new Main(dataDir, indexDir);
+	Main indexer = new Main(dataDir, indexDir, cmd.hasOption("incremental"), cmd.hasOption("best-compression"),
+				Integer.parseInt(cmd.getOptionValue("shards", "1")));
+	indexer.setSchemaProfile(cmd.getOptionValue("schema", Schema.PROFILE_FULL));
+	indexer.setDuplicateDetector(NearDuplicateDetector.fromCommandLine(cmd));
+	indexer.setNumThreads(numThreads);
+	indexer.setUseJTidy(cmd.hasOption("jtidy"));
+	indexer.setWarmStartPageRank(cmd.hasOption("warm-start"));
         long start = System.currentTimeMillis();
         int numIndexed = 0;
         try {
 	    indexer.initialize();
 	    FileFilter filter = new Util.HTMLFilesFilter();
-            numIndexed = indexer.index(filter);
+            long indexStart = System.currentTimeMillis();
+            numIndexed = indexer.index(filter, numThreads);
+            long indexMillis = Math.max(1, System.currentTimeMillis() - indexStart);
+            System.out.printf("Indexed %d documents on %d thread(s) in %d ms (%.1f docs/sec)\n",
+                              numIndexed, numThreads, indexMillis, numIndexed * 1000.0 / indexMillis);
+            System.out.printf("Total build time: %d ms\n", System.currentTimeMillis() - start);
+            if (cmd.hasOption("report-index-stats")) {
+                indexer.reportIndexStats();
+            }
         } catch (Exception e) {
             System.out.println("Exception caught: " + e); 
 	    e.printStackTrace();
@@ -0,0 +1,156 @@
+package indexer;
+
+import htmlparser.ParsedPage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records the state of every document after a build: its path, size, modification
+ * time and content hash, whether it was added to the index and with which duplicates,
+ * and its parsed page without the body text. The next incremental build uses the
+ * manifest to find the new, changed and removed documents, and reuses the titles, word
+ * counts and anchors of the unchanged ones.
+ * The manifest is stored in the index directory, next to the Lucene files.
+ */
+public class Manifest {
+
+    // Name of the manifest file in the index directory.
+    public static final String FILE_NAME = "manifest";
+
+    private static final int MAGIC = 0x574D4E46;  // "WMNF"
+    private static final int VERSION = 2;
+
+    // The state of one document.
+    public static class Entry {
+	public final String path;
+	public final long size;
+	public final long lastModified;
+	public final long contentHash;
+	// The parsed page. Its body text is only kept for the build that parsed it.
+	public ParsedPage page;
+
+	// Whether the document is in the index, i.e. it was the most authoritative of its cluster.
+	public boolean indexed;
+
+	// The value of the "duplicates" field, if the document is in the index.
+	public String duplicates;
+
+	// The cluster size doc value, if the document is in the index, or -1 if a manifest
+	// of version 1 didn't record it.
+	public int clusterSize;
+
+	public Entry(String path, long size, long lastModified, long contentHash, ParsedPage page) {
+	    this.path = path;
+	    this.size = size;
+	    this.lastModified = lastModified;
+	    this.contentHash = contentHash;
+	    this.page = page;
+	    this.indexed = false;
+	    this.duplicates = "";
+	    this.clusterSize = 0;
+	}
+    }
+
+    // The entries, keyed by path.
+    private final Map<String, Entry> entries_;
+
+    public Manifest() {
+	entries_ = new LinkedHashMap<String, Entry>();
+    }
+
+    public Entry get(String path) {
+	return entries_.get(path);
+    }
+
+    public void put(Entry entry) {
+	entries_.put(entry.path, entry);
+    }
+
+    public Collection<Entry> entries() {
+	return entries_.values();
+    }
+
+    public int size() {
+	return entries_.size();
+    }
+
+    // Reads the manifest from the index directory. Returns an empty manifest if there is none.
+    public static Manifest read(Path indexDir) throws IOException {
+	Manifest manifest = new Manifest();
+	Path file = indexDir.resolve(FILE_NAME);
+	if (!Files.exists(file)) {
+	    return manifest;
+	}
+	DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+	try {
+	    int version = in.readInt() == MAGIC ? in.readInt() : -1;
+	    if (version != 1 && version != VERSION) {
+		throw new IOException("Unsupported manifest format: " + file);
+	    }
+	    int numEntries = in.readInt();
+	    for (int i = 0; i < numEntries; ++i) {
+		String path = in.readUTF();
+		long size = in.readLong();
+		long lastModified = in.readLong();
+		long contentHash = in.readLong();
+		boolean indexed = in.readBoolean();
+		String duplicates = in.readUTF();
+		int clusterSize = version >= 2 ? in.readInt() : -1;
+		Entry entry = new Entry(path, size, lastModified, contentHash, ParsedPage.read(in));
+		entry.indexed = indexed;
+		entry.duplicates = duplicates;
+		entry.clusterSize = clusterSize;
+		manifest.put(entry);
+	    }
+	} finally {
+	    in.close();
+	}
+	return manifest;
+    }
+
+    // Writes the manifest to the index directory, replacing the previous one.
+    public void write(Path indexDir) throws IOException {
+	Path tmp = indexDir.resolve(FILE_NAME + ".tmp");
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)));
+	try {
+	    out.writeInt(MAGIC);
+	    out.writeInt(VERSION);
+	    out.writeInt(entries_.size());
+	    for (Entry entry : entries_.values()) {
+		out.writeUTF(entry.path);
+		out.writeLong(entry.size);
+		out.writeLong(entry.lastModified);
+		out.writeLong(entry.contentHash);
+		out.writeBoolean(entry.indexed);
+		out.writeUTF(entry.duplicates);
+		out.writeInt(entry.clusterSize);
+		// Only the new and changed pages need their body, to be signed and indexed, and
+		// those are parsed again by the next build.
+		entry.page.withoutBody().write(out);
+	    }
+	} finally {
+	    out.close();
+	}
+	Files.move(tmp, indexDir.resolve(FILE_NAME), StandardCopyOption.REPLACE_EXISTING,
+		   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Computes the 64-bit FNV-1a hash of the contents of a file.
+    public static long hash(byte[] content) {
+	long h = 0xcbf29ce484222325L;
+	for (byte b : content) {
+	    h ^= (b & 0xff);
+	    h *= 0x100000001b3L;
+	}
+	return h;
+    }
+}
@@ -1,34 +1,23 @@
-
 // A Program to calculate Weighted Page Ranks for a set of Web Pages.
 
 package indexer;
 
-import java.text.*;
 import java.util.*;
-import java.nio.file.FileSystems;
-import java.nio.file.Path;
-import java.net.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.io.*;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.w3c.dom.Text;
-import org.w3c.tidy.Tidy;
+import htmlparser.JTidyHTMLHandler;
+import htmlparser.ParsedPage;
+import htmlparser.StreamingHTMLHandler;
+import util.DocDictionary;
+import util.DocumentWalker;
 import util.Util;
+import util.Verbosity;
 
 public class PageRank {
-    /* Captures information about an anchor on the page, such 
-     * as its URL, and whether it is highlighted
-     */
-    private class AnchorInfo {
-	String url;
-	boolean isHighlighted;
-
-	public AnchorInfo(String url, boolean isHighlighted) {
-	    this.url = url;
-	    this.isHighlighted = isHighlighted;
-	}
-    }
+
+    // Pages per fork/join task below which a range of pages is updated sequentially.
+    private static final int PAGES_PER_TASK = 1024;
 
     // The directory to read the documents from.
     String docsDir_;
@@ -36,231 +25,387 @@ public class PageRank {
     // The "F" parameter for the PageRank computation.
     Double f_;
 
-    // The initial qualities of the pages based on lengths.
-    HashMap<String, Double> pageQualities_;
+    // Number of pages. Pages are identified by ints between 0 and numPages_ - 1.
+    int numPages_;
+
+    // Gives the page id for each page name, and the page name for each page id.
+    DocDictionary pageIds_;
+
+    // The initial qualities of the pages based on lengths, indexed by page id.
+    double[] pageQualities_;
+
+    // The PageRank scores of the pages, indexed by page id.
+    double[] pageRanks_;
+
+    // The scores the next iteration starts from, indexed by page id, or null to start from
+    // the page qualities.
+    double[] initialRanks_;
+
+    // The weighted link graph in compressed sparse row form, grouped by the page the links
+    // point to: the links into page p are the entries between incomingOffsets_[p] (inclusive)
+    // and incomingOffsets_[p + 1] (exclusive) of incomingSources_ and incomingWeights_.
+    int[] incomingOffsets_;
+    int[] incomingSources_;
+    double[] incomingWeights_;
 
-    // The PageRank scores of the pages.
-    HashMap<String, Double> pageRanks_;
+    // The pages without outgoing links to pages in the collection. Rather than adding
+    // links from each of them to all N pages, their rank is spread uniformly over all
+    // pages once per iteration, which gives the same scores in O(N).
+    int[] danglingPages_;
 
-    // The weights of the links, as calculated based on link counts and emphasis.
-    HashMap<String, HashMap<String, Double>> incomingLinkWeights_;
+    // The parsed pages.
+    Collection<ParsedPage> pages_;
 
-    // The list of files.
-    Collection<File> files_;
+    // Number of threads for the power iteration. 1 runs the iteration serially.
+    int parallelism_;
+
+    // Number of iterations the last calculatePageRanks() needed to converge.
+    int numIterations_;
 
     public PageRank(String docsDir, Double f) {
+	this(docsDir, f, new DocDictionary());
+    }
+
+    // Creates a PageRank computation whose page ids are the ids of the given dictionary,
+    // so that the scores can be looked up by the ids the caller already uses. Every
+    // name in the dictionary is a page; names without a parsed page have no links and
+    // no initial quality.
+    public PageRank(String docsDir, Double f, DocDictionary pageIds) {
 	this.docsDir_ = docsDir;
 	this.f_ = f;
-	this.pageQualities_ = new HashMap<String, Double>();
-	this.pageRanks_ = new HashMap<String, Double>();
-	// this.outgoingLinks_ = new HashMap<String, Set<String>>();
-	this.incomingLinkWeights_ = new HashMap<String, HashMap<String, Double>>();
-	this.files_ = new Vector<File>();
+	this.numPages_ = pageIds.size();
+	this.pageIds_ = pageIds;
+	this.pageQualities_ = new double[0];
+	this.pageRanks_ = new double[0];
+	this.initialRanks_ = null;
+	this.pages_ = new Vector<ParsedPage>();
+	this.parallelism_ = 1;
+	this.numIterations_ = 0;
+    }
+
+    // Sets the number of threads for the power iteration. With more than one thread, each
+    // iteration splits the per-page updates and the convergence check over a ForkJoinPool.
+    public void setParallelism(int parallelism) {
+	this.parallelism_ = Math.max(1, parallelism);
+    }
+
+    public int getNumIterations() {
+	return numIterations_;
+    }
+
+    // Starts calculatePageRanks() from the scores of an earlier computation, by page name,
+    // instead of from the page qualities (a warm start). The iteration converges to the
+    // same scores, in fewer iterations when the links changed little. Pages without an
+    // earlier score start at their quality. Call this after calculateQualities(). Returns
+    // the number of pages that have an earlier score.
+    public int seedRanks(Map<String, Double> previousRanks) {
+	this.initialRanks_ = this.pageQualities_.clone();
+	int numSeeded = 0;
+	double seededSum = 0.0;
+	double qualitiesSum = 0.0;
+	for (int page = 0; page < this.numPages_; ++page) {
+	    qualitiesSum += this.pageQualities_[page];
+	    Double previous = previousRanks.get(this.pageIds_.getName(page));
+	    if (previous != null) {
+		this.initialRanks_[page] = previous;
+		numSeeded++;
+	    }
+	    seededSum += this.initialRanks_[page];
+	}
+	// The scores add up to the sum of the qualities. When pages were removed or added,
+	// the earlier ones don't, and the iteration would correct their total only by a
+	// factor of F per iteration, so they are scaled to it up front.
+	if (seededSum > 0) {
+	    for (int page = 0; page < this.numPages_; ++page) {
+		this.initialRanks_[page] *= qualitiesSum / seededSum;
+	    }
+	}
+	return numSeeded;
     }
 
     // Reads the documents, finds anchors, and calculates the weights for outgoing links
-    // from each document.
+    // from each document. The links are collected in a flat edge list and then grouped by
+    // their target into the compressed sparse row arrays.
     public void readPages() throws Exception {
-	for (File file : this.files_) {
+	EdgeList edges = new EdgeList();
+	int[] danglingPages = new int[this.numPages_];
+	int numDanglingPages = 0;
+	boolean[] parsed = new boolean[this.numPages_];
+	for (ParsedPage page : this.pages_) {
 	    // Normalize the documents by the base name. For instance, www.x.com/y/z.html
 	    // will be normalized to z.html
-	    String baseName = Util.getBasename(file.toString());
-	    System.out.println("Links from page: " + baseName);
-	    // Find the anchors on this page
-	    Vector<AnchorInfo> anchors = new Vector<AnchorInfo>();
-	    searchAnchors(file, anchors);
-	    HashMap<String, Double> myLinkWeights = new HashMap<String, Double>();
+	    String baseName = page.getName();
+	    int from = this.pageIds_.getId(baseName);
+	    parsed[from] = true;
+	    boolean verbose = Verbosity.atLeast(Verbosity.DOCUMENTS);
+	    if (verbose) {
+		System.out.println("Links from page: " + baseName);
+	    }
+	    // Maps the targets of this page's links to their accumulated weight.
+	    LinkedHashMap<Integer, Double> myLinkWeights = new LinkedHashMap<Integer, Double>();
 	    double totalScores = 0.0;
-	    for (AnchorInfo ai : anchors) {
-		System.out.println(ai.url + ", isHighlighted: " + ai.isHighlighted);
-		String outBaseName = Util.getBasename(ai.url);
-		if (this.pageQualities_.containsKey(outBaseName)) {
+	    for (ParsedPage.Anchor ai : page.getAnchors()) {
+		if (verbose) {
+		    System.out.println(ai.url + ", isHighlighted: " + ai.isHighlighted);
+		}
+		int to = this.pageIds_.getId(Util.getBasename(ai.url));
+		if (to >= 0) {
 		    // If there was another link found to this page, add to the previous weight.
 		    // Otherwise, set the weight to the currently computed weight
-		    double existingScore = myLinkWeights.containsKey(outBaseName) ? myLinkWeights.get(outBaseName) : 0.0;
+		    double existingScore = myLinkWeights.containsKey(to) ? myLinkWeights.get(to) : 0.0;
 		    double currentScore = getScore(ai);
 		    totalScores += currentScore;
-		    myLinkWeights.put(outBaseName, existingScore + currentScore);
+		    myLinkWeights.put(to, existingScore + currentScore);
 		}
 	    }
 	    if (totalScores > 0) {
 		// Scale the weights
-		for (Map.Entry<String, Double> entry : myLinkWeights.entrySet()) {
+		for (Map.Entry<Integer, Double> entry : myLinkWeights.entrySet()) {
 		    double scaled = entry.getValue() / totalScores;
-		    addIncomingLink(entry.getKey(), baseName, scaled);
-		    System.out.println(entry.getKey() + ":" + scaled);
+		    edges.add(entry.getKey(), from, scaled);
+		    if (verbose) {
+			System.out.println(this.pageIds_.getName(entry.getKey()) + ":" + scaled);
+		    }
 		}
 	    } else {
-		// If there are no outgoing links from this page, add "weights"
-		// of 1/N to all other pages in the collection.
-		double oneOverN = 1.0 / (this.pageQualities_.size() + 0.0);
-		for (String page : this.pageQualities_.keySet()) {
-		    addIncomingLink(page, baseName, oneOverN);
-		}
+		// If there are no outgoing links from this page, it links with "weights"
+		// of 1/N to all other pages in the collection. See calculatePageRanks().
+		danglingPages[numDanglingPages++] = from;
 	    }
 	}
+	// Pages of the dictionary that were not parsed have no outgoing links either.
+	for (int page = 0; page < this.numPages_; ++page) {
+	    if (!parsed[page]) {
+		danglingPages[numDanglingPages++] = page;
+	    }
+	}
+	buildIncomingLinks(edges);
+	this.danglingPages_ = Arrays.copyOf(danglingPages, numDanglingPages);
+    }
+
+    // A growable list of weighted links.
+    private static class EdgeList {
+	int size = 0;
+	int[] to = new int[16];
+	int[] from = new int[16];
+	double[] weight = new double[16];
+
+	void add(int t, int f, double w) {
+	    if (size == to.length) {
+		to = Arrays.copyOf(to, size * 2);
+		from = Arrays.copyOf(from, size * 2);
+		weight = Arrays.copyOf(weight, size * 2);
+	    }
+	    to[size] = t;
+	    from[size] = f;
+	    weight[size] = w;
+	    size++;
+	}
     }
-    
-    // Adds information about an incoming link to the incomingLinkWeights_ hash map.
-    private void addIncomingLink(String to, String from, Double weight) {
-	if (!this.incomingLinkWeights_.containsKey(to)) {
-	    this.incomingLinkWeights_.put(to, new HashMap<String, Double>());
+
+    // Groups the links by their target (a counting sort) into the CSR arrays.
+    private void buildIncomingLinks(EdgeList edges) {
+	this.incomingOffsets_ = new int[this.numPages_ + 1];
+	for (int e = 0; e < edges.size; ++e) {
+	    this.incomingOffsets_[edges.to[e] + 1]++;
+	}
+	for (int p = 0; p < this.numPages_; ++p) {
+	    this.incomingOffsets_[p + 1] += this.incomingOffsets_[p];
+	}
+	this.incomingSources_ = new int[edges.size];
+	this.incomingWeights_ = new double[edges.size];
+	int[] next = Arrays.copyOf(this.incomingOffsets_, this.numPages_);
+	for (int e = 0; e < edges.size; ++e) {
+	    int slot = next[edges.to[e]]++;
+	    this.incomingSources_[slot] = edges.from[e];
+	    this.incomingWeights_[slot] = edges.weight[e];
 	}
-	this.incomingLinkWeights_.get(to).put(from, weight);
     }
-    
-    // Calculates the PageRank scores for all documents.
-    public HashMap<String, Double> calculatePageRanks() {
+
+    // Calculates the PageRank scores for all documents. Returns the scores indexed by page id.
+    public double[] calculatePageRanks() {
 	// initialize
-	this.pageRanks_ = this.pageQualities_;
+	double[] ranks = (this.initialRanks_ != null ? this.initialRanks_ : this.pageQualities_).clone();
+	double[] updatedRanks = new double[this.numPages_];
 	boolean changed = true;
-	double epsilon = 0.01 / (this.pageQualities_.size() + 0.0);
-	do {
-	    HashMap<String, Double> updatedPageRanks = new HashMap<String, Double>();
-	    changed = false;
-	    for (String page : this.pageQualities_.keySet()) {
-		double base = this.pageQualities_.get(page);
-		double sumIncoming = 0.0;
-		if (this.incomingLinkWeights_.containsKey(page)) {
-		    for (Map.Entry<String, Double> entry : 
-			 this.incomingLinkWeights_.get(page).entrySet()) {
-			sumIncoming += (entry.getValue() * this.pageRanks_.get(entry.getKey()));
-		    }
+	double epsilon = getTolerance();
+	double oneOverN = 1.0 / (this.numPages_ + 0.0);
+	ForkJoinPool pool = this.parallelism_ > 1 ? new ForkJoinPool(this.parallelism_) : null;
+	this.numIterations_ = 0;
+	long start = System.nanoTime();
+	try {
+	    do {
+		// Every page receives 1/N of the rank of each dangling page.
+		double danglingRank = 0.0;
+		for (int page : this.danglingPages_) {
+		    danglingRank += ranks[page];
 		}
-		double newScore = (1.0 - this.f_) * base + (this.f_ * sumIncoming);
-		if (Math.abs(newScore - this.pageRanks_.get(page)) > epsilon) {
-		    changed = true;
+		double danglingShare = danglingRank * oneOverN;
+		BuildReport.PageRankIterationEvent event = new BuildReport.PageRankIterationEvent();
+		event.begin();
+		double maxChange;
+		if (pool == null) {
+		    maxChange = updateRanks(ranks, updatedRanks, danglingShare, 0, this.numPages_);
+		} else {
+		    maxChange = pool.invoke(new UpdateTask(ranks, updatedRanks, danglingShare, 0, this.numPages_));
 		}
-		updatedPageRanks.put(page, newScore);
-	    }
-	    if (changed) {
-		this.pageRanks_ = updatedPageRanks;
+		this.numIterations_++;
+		if (event.shouldCommit()) {
+		    event.iteration = this.numIterations_;
+		    event.maxChange = maxChange;
+		    event.commit();
+		}
+		changed = maxChange > epsilon;
+		if (changed) {
+		    double[] swap = ranks;
+		    ranks = updatedRanks;
+		    updatedRanks = swap;
+		}
+	    } while (changed);
+	} finally {
+	    if (pool != null) {
+		pool.shutdown();
 	    }
-	} while (changed);
+	}
+	double millis = (System.nanoTime() - start) / 1e6;
+	if (Verbosity.atLeast(Verbosity.STAGES)) {
+	    System.out.printf("PageRank converged after %d iterations from a %s start on %d thread(s) (%.3f ms/iteration)\n",
+			      this.numIterations_, this.initialRanks_ != null ? "warm" : "cold", this.parallelism_,
+			      millis / Math.max(1, this.numIterations_));
+	}
+	this.pageRanks_ = ranks;
+	if (!Verbosity.atLeast(Verbosity.DOCUMENTS)) {
+	    return ranks;
+	}
 	System.out.println("\n\nPageRank Scores:\n\n");
 	// Sort the documents in descending order of their PageRank scores for the final output of the algorithm.
-	PriorityQueue<Map.Entry<String, Double>> pq = new PriorityQueue<Map.Entry<String, Double>>(this.pageQualities_.size(),
-												   new Util.PageRankComparator());
-	pq.addAll(this.pageRanks_.entrySet());
-	while (pq.size() > 0) {
-	    Map.Entry<String, Double> entry = pq.poll();
-	    System.out.printf("%s: %.4f\n", entry.getKey(), entry.getValue());
+	final double[] sortedRanks = ranks;
+	Integer[] order = new Integer[this.numPages_];
+	for (int page = 0; page < this.numPages_; ++page) {
+	    order[page] = page;
+	}
+	Arrays.sort(order, new Comparator<Integer>() {
+		public int compare(Integer a, Integer b) {
+		    return -1 * Double.compare(sortedRanks[a], sortedRanks[b]);
+		}
+	    });
+	for (int page : order) {
+	    System.out.printf("%s: %.4f\n", this.pageIds_.getName(page), ranks[page]);
 	}
-	return this.pageRanks_;
+	return ranks;
     }
 
-    // Gets the "score" or weight for an anchor. A link is worth '1', or '2' when it's highlighted/emphasized.
-    private double getScore(AnchorInfo ai) {
-	return ai.isHighlighted ? 2.0 : 1.0;
+    // Returns the largest change of a score in the last iteration at which the iteration
+    // stops. The scores are only accurate to about this much.
+    public double getTolerance() {
+	return 0.01 / (this.numPages_ + 0.0);
     }
 
-    /* Parse the HTML using JTidy and iterate over the DOM tree to find anchors.
-     */
-    public void searchAnchors(File file, Vector<AnchorInfo> anchors) throws FileNotFoundException {
-        Tidy tidy = new Tidy();
-        tidy.setQuiet(true);
-        tidy.setShowWarnings(false);
-        org.w3c.dom.Document root = tidy.parseDOM(new FileInputStream(file), null);
-        Element rawDoc = root.getDocumentElement();
-	NodeList body = rawDoc.getElementsByTagName("body");
-	if (body.getLength() > 0) {
-	    getAnchors(body.item(0), anchors, 
-		       false /* isHighlighted */);
-	}
+    // Returns the score of a page from the last calculatePageRanks(), or 0 for an unknown page.
+    public double getPageRank(String name) {
+	int id = this.pageIds_.getId(name);
+	return id >= 0 && id < this.pageRanks_.length ? this.pageRanks_[id] : 0.0;
     }
 
-    /* Recurses over the nodes in the DOM tree. 
-     * Finds anchors and record information about their
-     * URLs and highlighting into 'anchors'.
-     */
-    protected void getAnchors(Node node, Vector<AnchorInfo> anchors, boolean isHighlighted) {
-        NodeList children = node.getChildNodes();
-        for (int i = 0; i < children.getLength(); i++) {
-            Node child = children.item(i);
-            switch (child.getNodeType()) {
-	    case Node.ELEMENT_NODE:
-		if (isAnchor( (Element) child)) {
-		    // This node is an anchor. Get its link, and record whether it was highlighted.
-		    Element childElement = (Element) child;
-		    String href = childElement.getAttribute("href");
-		    AnchorInfo anchorInfo = new AnchorInfo(href, isHighlighted);
-		    anchors.add(anchorInfo);
-		} else if (isHeaderOrBold( (Element) child)) {
-		    getAnchors(child, anchors, 
-			       true  /* isHighlighted */);
-		} else {
-		    // This Node is not an anchor. Recurse into its children.
-		    getAnchors(child, anchors, isHighlighted);
-		}
-		break;
+    public DocDictionary getPageIds() {
+	return this.pageIds_;
+    }
+
+    // Computes the updated scores of the pages in [begin, end) from 'ranks' into 'updatedRanks'.
+    // Returns the largest absolute change of a score in the range.
+    private double updateRanks(double[] ranks, double[] updatedRanks, double danglingShare,
+			       int begin, int end) {
+	double f = this.f_;
+	double maxChange = 0.0;
+	for (int page = begin; page < end; ++page) {
+	    double sumIncoming = danglingShare;
+	    for (int e = this.incomingOffsets_[page]; e < this.incomingOffsets_[page + 1]; ++e) {
+		sumIncoming += this.incomingWeights_[e] * ranks[this.incomingSources_[e]];
 	    }
+	    double newScore = (1.0 - f) * this.pageQualities_[page] + (f * sumIncoming);
+	    maxChange = Math.max(maxChange, Math.abs(newScore - ranks[page]));
+	    updatedRanks[page] = newScore;
 	}
+	return maxChange;
     }
 
-    /* Determines whether the given Element is an anchor (an HTML tag of form <a> </a>).
-     */
-    protected boolean isAnchor(Element element) {
-	return element.getTagName().equalsIgnoreCase("a");
+    // Updates a range of pages, splitting it in halves until it is small enough.
+    // The result is the largest absolute change of a score in the range.
+    private class UpdateTask extends RecursiveTask<Double> {
+	private static final long serialVersionUID = 1L;
+
+	final double[] ranks;
+	final double[] updatedRanks;
+	final double danglingShare;
+	final int begin;
+	final int end;
+
+	UpdateTask(double[] ranks, double[] updatedRanks, double danglingShare, int begin, int end) {
+	    this.ranks = ranks;
+	    this.updatedRanks = updatedRanks;
+	    this.danglingShare = danglingShare;
+	    this.begin = begin;
+	    this.end = end;
+	}
+
+	protected Double compute() {
+	    if (end - begin <= PAGES_PER_TASK) {
+		return updateRanks(ranks, updatedRanks, danglingShare, begin, end);
+	    }
+	    int middle = (begin + end) >>> 1;
+	    UpdateTask left = new UpdateTask(ranks, updatedRanks, danglingShare, begin, middle);
+	    left.fork();
+	    double right = new UpdateTask(ranks, updatedRanks, danglingShare, middle, end).compute();
+	    return Math.max(left.join(), right);
+	}
     }
 
-    /* Determines whether the given Element is a header (<h1>, <h2>, <h3>, or <h4> tags), 
-     * bold (<b>), or an emphasis (<em>).
-     */
-    protected boolean isHeaderOrBold(Element element) {
-	return element.getTagName().equalsIgnoreCase("b") || 
-	    element.getTagName().equalsIgnoreCase("em") || 
-	    element.getTagName().equalsIgnoreCase("h1") || 
-	    element.getTagName().equalsIgnoreCase("h2") ||
-	    element.getTagName().equalsIgnoreCase("h3") ||
-	    element.getTagName().equalsIgnoreCase("h4");
+    // Gets the "score" or weight for an anchor. A link is worth '1', or '2' when it's highlighted/emphasized.
+    private double getScore(ParsedPage.Anchor ai) {
+	return ai.isHighlighted ? 2.0 : 1.0;
     }
 
-    // Calculates the initial quality (P.base) of each page based on the word count 
+    // Calculates the initial quality (P.base) of each page based on the word count
     // of the page. P.base is initially calculated as the log base 2 of the page's word count.
     // P.base values are then scaled.
     public void calculateQualities(FileFilter filter) throws FileNotFoundException, IOException {
-        Collection<File> files = Util.walk(docsDir_); 
-        double pageQualitiesSum = 0;
-	HashMap<String, Double> unscaledPageQualities = new HashMap<String, Double>();
-        for (File f : files) {
-            if (!f.isDirectory() &&
-                !f.isHidden() &&
-                f.exists() &&
-                f.canRead() &&
-                (filter == null || filter.accept(f))) {
-		this.files_.add(f);
-		int numWords = numWords(f);
-		// P.base = log_2 WordCount(P)
-		double pageQuality = Math.log(numWords) / Math.log(2);
-		pageQualitiesSum += pageQuality;
-		unscaledPageQualities.put(Util.getBasename(f.toString()), 
-					  pageQuality);
-		System.out.println(f.toString() + ":" + numWords + ":" + pageQuality);
-            }
+	JTidyHTMLHandler htmlHandler = new StreamingHTMLHandler();
+	Vector<ParsedPage> pages = new Vector<ParsedPage>();
+        for (DocumentWalker.Entry f : DocumentWalker.list(docsDir_, filter)) {
+	    pages.add(htmlHandler.parse(f.toFile()));
         }
-	System.out.println("-");
-	// Scale the page qualities.
-	for (Map.Entry<String, Double> entry : unscaledPageQualities.entrySet()) {
-	    double scaled = entry.getValue() / pageQualitiesSum;
-	    this.pageQualities_.put(entry.getKey(), scaled);
-	    System.out.println(entry.getKey() + ":" + scaled);
-	}	
+	calculateQualities(pages);
     }
 
-    // Counts the number of words in a file.
-    private int numWords(File f) throws FileNotFoundException, IOException {
-	BufferedReader reader = new BufferedReader(new FileReader(f));
-	int count = 0;
-	String line = reader.readLine();
-	while (line != null) {
-	    String[] tokens = line.split("\\s+");
-	    for (String t : tokens) {
-		if (t.length() > 0) {
-		    count++;
-		}
+    // Calculates the initial qualities of the given, already parsed pages, and assigns
+    // the page ids. The anchors of these pages are used by readPages().
+    public void calculateQualities(Collection<ParsedPage> pages) {
+        double pageQualitiesSum = 0;
+	double[] unscaledPageQualities = new double[this.numPages_ + pages.size()];
+        for (ParsedPage page : pages) {
+	    this.pages_.add(page);
+	    int numWords = page.getWordCount();
+	    // P.base = log_2 WordCount(P)
+	    double pageQuality = Math.log(numWords) / Math.log(2);
+	    pageQualitiesSum += pageQuality;
+	    int id = this.pageIds_.add(page.getName());
+	    unscaledPageQualities[id] = pageQuality;
+	    if (Verbosity.atLeast(Verbosity.DOCUMENTS)) {
+		System.out.println(page.getPath() + ":" + numWords + ":" + pageQuality);
+	    }
+        }
+	if (Verbosity.atLeast(Verbosity.DOCUMENTS)) {
+	    System.out.println("-");
+	}
+	this.numPages_ = this.pageIds_.size();
+	// Scale the page qualities.
+	this.pageQualities_ = new double[this.numPages_];
+	for (int page = 0; page < this.numPages_; ++page) {
+	    double scaled = unscaledPageQualities[page] / pageQualitiesSum;
+	    this.pageQualities_[page] = scaled;
+	    if (Verbosity.atLeast(Verbosity.DOCUMENTS)) {
+		System.out.println(this.pageIds_.getName(page) + ":" + scaled);
 	    }
-	    line = reader.readLine();
 	}
-	return count;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,94 @@
+package indexer;
+
+import java.io.BufferedReader;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import util.DocDictionary;
+import util.Util;
+
+/**
+ * Regression check of the PageRank computation: computes the scores of the HTML pages
+ * of a directory and compares them with the expected scores in a file, with one
+ * "name score" line per page and # comment lines. wiki-input.pagerank holds the scores
+ * of wiki-input from the implementation that linked every dangling page to all pages,
+ * which the current one must reproduce. Exits with status 1 if any score is off by
+ * more than the tolerance, or a page is missing on either side.
+ */
+public class PageRankCheck {
+
+    public static void main(String[] args) throws Exception {
+	Options options = new Options();
+        options.addOption(OptionBuilder.withLongOpt("docs")
+                          .withDescription("Path to the directory containing the documents")
+                          .hasArg()
+                          .isRequired()
+                          .create('d'));
+	options.addOption(OptionBuilder.withLongOpt("scores")
+                          .withDescription("File with the expected scores, one \"name score\" line per page")
+                          .hasArg()
+                          .isRequired()
+                          .create('s'));
+	options.addOption(OptionBuilder.withLongOpt("tolerance")
+                          .withDescription("Largest allowed difference of a score (default 1e-12)")
+                          .hasArg()
+                          .create());
+	CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(options, args);
+	double tolerance = Double.parseDouble(cmd.getOptionValue("tolerance", "1e-12"));
+
+	Map<String, Double> expected = new LinkedHashMap<String, Double>();
+	BufferedReader reader = Files.newBufferedReader(FileSystems.getDefault().getPath(cmd.getOptionValue("scores")));
+	try {
+	    String line;
+	    while ((line = reader.readLine()) != null) {
+		line = line.trim();
+		if (line.length() == 0 || line.startsWith("#")) {
+		    continue;
+		}
+		String[] fields = line.split("\\s+");
+		expected.put(fields[0], Double.parseDouble(fields[1]));
+	    }
+	} finally {
+	    reader.close();
+	}
+
+	PageRank pageRank = new PageRank(cmd.getOptionValue("d"), 0.7);
+	pageRank.calculateQualities(new Util.HTMLFilesFilter());
+	pageRank.readPages();
+	pageRank.calculatePageRanks();
+
+	DocDictionary pageIds = pageRank.getPageIds();
+	int numFailed = 0;
+	double maxDifference = 0.0;
+	for (Map.Entry<String, Double> score : expected.entrySet()) {
+	    if (pageIds.getId(score.getKey()) < 0) {
+		System.out.println("Missing page: " + score.getKey());
+		numFailed++;
+		continue;
+	    }
+	    double actual = pageRank.getPageRank(score.getKey());
+	    double difference = Math.abs(actual - score.getValue());
+	    maxDifference = Math.max(maxDifference, difference);
+	    if (difference > tolerance) {
+		System.out.println(score.getKey() + ": expected " + score.getValue() + ", got " + actual);
+		numFailed++;
+	    }
+	}
+	for (int page = 0; page < pageIds.size(); ++page) {
+	    if (!expected.containsKey(pageIds.getName(page))) {
+		System.out.println("Unexpected page: " + pageIds.getName(page));
+		numFailed++;
+	    }
+	}
+	System.out.printf("%d pages, largest difference %g, %d failed\n",
+			  expected.size(), maxDifference, numFailed);
+	System.exit(numFailed == 0 ? 0 : 1);
+    }
+}
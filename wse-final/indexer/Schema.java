@@ -0,0 +1,59 @@
+package indexer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The fields of the indexed documents, shared by the indexer and the retriever.
+ * <p>
+ * There are two schema profiles. The full profile stores the body, and indexes the
+ * path, the duplicates and the data directory as tokenized, stored text in every
+ * document. The lean profile indexes the body without storing it, and stores the path
+ * and the duplicates as plain stored fields that are not indexed. Instead of being
+ * repeated in every document, the data directory is written once, to the user data of
+ * the index commit. In both profiles the title is indexed and stored, and the PageRank
+ * and the cluster size are numeric doc values.
+ */
+public class Schema {
+
+    public static final String PROFILE_FULL = "full";
+    public static final String PROFILE_LEAN = "lean";
+
+    public static final String TITLE_FIELD = "title";
+    public static final String BODY_FIELD = "body";
+    public static final String PATH_FIELD = "path";
+    public static final String DIR_FIELD = "dir";
+    public static final String DUPLICATES_FIELD = "duplicates";
+
+    // Untokenized field holding the path of a document, used to delete it in incremental builds.
+    public static final String KEY_FIELD = "key";
+
+    // Numeric doc values holding the PageRank of a document (as the raw bits of the double)
+    // and the number of documents in its cluster. Retriever reads them as a static prior.
+    public static final String PAGERANK_FIELD = "pagerank";
+    public static final String CLUSTER_SIZE_FIELD = "clusterSize";
+
+    // Keys of the commit user data: the data directory and the schema profile of the index.
+    public static final String DIR_KEY = "dir";
+    public static final String PROFILE_KEY = "schema";
+
+    // The stored fields needed to show a hit on a results page.
+    public static final Set<String> HIT_FIELDS =
+	Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(TITLE_FIELD, PATH_FIELD, DUPLICATES_FIELD)));
+
+    public static void checkProfile(String profile) {
+	if (!PROFILE_FULL.equals(profile) && !PROFILE_LEAN.equals(profile)) {
+	    throw new IllegalArgumentException("Unknown schema profile: " + profile);
+	}
+    }
+
+    // Returns the schema profile recorded in commit user data. Indexes that predate the
+    // profiles don't record one and have the full schema.
+    public static String getProfile(Map<String, String> commitData) {
+	String profile = commitData == null ? null : commitData.get(PROFILE_KEY);
+	return profile == null ? PROFILE_FULL : profile;
+    }
+}
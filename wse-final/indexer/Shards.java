@@ -0,0 +1,84 @@
+package indexer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexWriter;
+
+/**
+ * The layout of a sharded index, shared by the indexer and the retriever. A sharded
+ * index directory holds one Lucene index per shard, in the subdirectories shard-0 to
+ * shard-(N-1), next to the manifest and the build report of the whole collection. An
+ * unsharded index has the Lucene files directly in the index directory.
+ * <p>
+ * Each document goes to the shard given by the hash of its path, so an incremental build
+ * finds it in the same shard as long as the number of shards doesn't change.
+ */
+public class Shards {
+
+    public static final String DIR_PREFIX = "shard-";
+
+    // Returns the directory of a shard in an index directory.
+    public static Path getShardDir(Path indexDir, int shard) {
+	return indexDir.resolve(DIR_PREFIX + shard);
+    }
+
+    // Returns the shard of the document with the given path.
+    public static int shardOf(String path, int numShards) {
+	// String.hashCode() is fixed by its specification, so the assignment is the same in
+	// every JVM. Its high bits are mixed into the low ones, since paths that differ only
+	// in their last characters differ mostly in the low bits.
+	int h = path.hashCode() * 0x9E3779B9;
+	h ^= h >>> 16;
+	return Math.floorMod(h, numShards);
+    }
+
+    // Returns the number of shards of the index in a directory, or 0 if it isn't sharded.
+    public static int getNumShards(Path indexDir) {
+	int numShards = 0;
+	while (Files.isDirectory(getShardDir(indexDir, numShards))) {
+	    numShards++;
+	}
+	return numShards;
+    }
+
+    // Deletes the shards from numShards on, left by an earlier build with more shards. A
+    // sharded build also deletes the Lucene files of an earlier unsharded build, which are
+    // directly in the index directory.
+    static void deleteStaleShards(Path indexDir, int numShards) throws IOException {
+	for (int shard = numShards; Files.isDirectory(getShardDir(indexDir, shard)); ++shard) {
+	    deleteRecursively(getShardDir(indexDir, shard).toFile());
+	}
+	if (numShards > 0) {
+	    File[] files = indexDir.toFile().listFiles();
+	    if (files != null) {
+		for (File file : files) {
+		    if (file.isFile() && isLuceneFile(file.getName())) {
+			deleteRecursively(file);
+		    }
+		}
+	    }
+	}
+    }
+
+    // Whether a file name is one of the files of a Lucene index. The manifest, the build
+    // report and the other files that the indexer keeps next to the index are not.
+    private static boolean isLuceneFile(String name) {
+	return name.startsWith(IndexFileNames.SEGMENTS) || name.startsWith(IndexFileNames.PENDING_SEGMENTS) ||
+	    name.equals(IndexWriter.WRITE_LOCK_NAME) || IndexFileNames.CODEC_FILE_PATTERN.matcher(name).matches();
+    }
+
+    private static void deleteRecursively(File file) throws IOException {
+	File[] children = file.listFiles();
+	if (children != null) {
+	    for (File child : children) {
+		deleteRecursively(child);
+	    }
+	}
+	if (!file.delete()) {
+	    throw new IOException("Failed to delete " + file);
+	}
+    }
+}
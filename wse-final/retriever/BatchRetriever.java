@@ -0,0 +1,348 @@
+package retriever;
+
+import indexer.Schema;
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Rescorer;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+
+import util.Util;
+
+/**
+ * Runs a file of queries against an index, concurrently on a pool of threads that share
+ * one IndexSearcher, and writes the rankings in TREC run format or as JSON lines. Each
+ * line of the query file is <tt>qid&lt;TAB&gt;query</tt>, or just the query, which then
+ * gets its line number as qid. Empty lines and lines starting with # are skipped.
+ * <p>
+ * The rankings are written in the order of the query file, whatever order the queries
+ * finish in. At the end the throughput of the batch and the p50/p95/p99 latency of the
+ * queries are reported. The latency of a query covers parsing, searching, rescoring and
+ * loading the document names, but not writing the results. The index can be warmed up
+ * with head queries first, and the time to the first query and the page faults of the
+ * opening, the warm-up and the batch are reported (see IndexWarmer).
+ */
+public class BatchRetriever {
+
+    public static final String FORMAT_TREC = "trec";
+    public static final String FORMAT_JSON = "json";
+
+    public static final int DEFAULT_DEPTH = 100;
+
+    public static final String DEFAULT_RUN_TAG = "wse";
+
+    // The only stored field a ranking needs: the document name is taken from the path.
+    private static final Set<String> PATH_FIELDS = Collections.singleton(Schema.PATH_FIELD);
+
+    // A query of the batch.
+    static class BatchQuery {
+	final String qid;
+	final String text;
+
+	BatchQuery(String qid, String text) {
+	    this.qid = qid;
+	    this.text = text;
+	}
+    }
+
+    // The ranking of a query, or the error that prevented it.
+    static class BatchResult {
+	final BatchQuery query;
+	final String[] docs;
+	final float[] scores;
+	final long latencyNanos;
+	final String error;
+
+	BatchResult(BatchQuery query, String[] docs, float[] scores, long latencyNanos, String error) {
+	    this.query = query;
+	    this.docs = docs;
+	    this.scores = scores;
+	    this.latencyNanos = latencyNanos;
+	    this.error = error;
+	}
+    }
+
+    private final IndexSearcher searcher_;
+    private final Rescorer rescorer_;
+    private final int depth_;
+
+    // When the first query of the batch finished, with results or an error, or 0.
+    final AtomicLong firstQueryNanos_ = new AtomicLong();
+
+    // Each thread has its own analyzer and query parser, since QueryParser is not thread-safe.
+    private final ThreadLocal<QueryParser> parsers_ = new ThreadLocal<QueryParser>() {
+	protected QueryParser initialValue() {
+	    return new QueryParser("body", new StandardAnalyzer());
+	}
+    };
+
+    public BatchRetriever(IndexSearcher searcher, Rescorer rescorer, int depth) {
+	searcher_ = searcher;
+	rescorer_ = rescorer;
+	depth_ = depth;
+    }
+
+    // Runs one query and times it. A query that doesn't parse gets an empty ranking and an error.
+    BatchResult run(BatchQuery query) throws IOException {
+	long start = System.nanoTime();
+	Query parsed;
+	try {
+	    parsed = parsers_.get().parse(query.text);
+	} catch (ParseException e) {
+	    long end = System.nanoTime();
+	    firstQueryNanos_.compareAndSet(0, end);
+	    return new BatchResult(query, new String[0], new float[0], end - start, e.getMessage());
+	}
+	TopDocs hits = Retriever.topDocs(searcher_, parsed, depth_, rescorer_);
+	String[] docs = new String[hits.scoreDocs.length];
+	float[] scores = new float[hits.scoreDocs.length];
+	for (int i = 0; i < hits.scoreDocs.length; ++i) {
+	    ScoreDoc scoreDoc = hits.scoreDocs[i];
+	    docs[i] = Util.getBasename(searcher_.doc(scoreDoc.doc, PATH_FIELDS).get(Schema.PATH_FIELD));
+	    scores[i] = scoreDoc.score;
+	}
+	long end = System.nanoTime();
+	firstQueryNanos_.compareAndSet(0, end);
+	return new BatchResult(query, docs, scores, end - start, null);
+    }
+
+    // Runs the queries on the given number of threads, and returns their results in the same order.
+    List<BatchResult> runAll(List<BatchQuery> queries, int numThreads) throws Exception {
+	ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+	try {
+	    List<Future<BatchResult>> futures = new ArrayList<Future<BatchResult>>(queries.size());
+	    for (final BatchQuery query : queries) {
+		futures.add(executor.submit(new Callable<BatchResult>() {
+		    public BatchResult call() throws IOException {
+			return run(query);
+		    }
+		}));
+	    }
+	    List<BatchResult> results = new ArrayList<BatchResult>(queries.size());
+	    for (Future<BatchResult> future : futures) {
+		results.add(future.get());
+	    }
+	    return results;
+	} finally {
+	    executor.shutdown();
+	}
+    }
+
+    // Reads a query file: one query per line, optionally preceded by its id and a tab.
+    static List<BatchQuery> readQueries(String path) throws IOException {
+	List<BatchQuery> queries = new ArrayList<BatchQuery>();
+	BufferedReader reader = Files.newBufferedReader(FileSystems.getDefault().getPath(path), StandardCharsets.UTF_8);
+	try {
+	    String line;
+	    int lineNumber = 0;
+	    while ((line = reader.readLine()) != null) {
+		lineNumber++;
+		line = line.trim();
+		if (line.length() == 0 || line.startsWith("#")) {
+		    continue;
+		}
+		int tab = line.indexOf('\t');
+		if (tab >= 0) {
+		    queries.add(new BatchQuery(line.substring(0, tab).trim(), line.substring(tab + 1).trim()));
+		} else {
+		    queries.add(new BatchQuery(String.valueOf(lineNumber), line));
+		}
+	    }
+	} finally {
+	    reader.close();
+	}
+	return queries;
+    }
+
+    // Writes a ranking as TREC run lines: qid Q0 docno rank score tag.
+    static void writeTrec(PrintWriter out, BatchResult result, String runTag) {
+	for (int i = 0; i < result.docs.length; ++i) {
+	    out.print(result.query.qid);
+	    out.print(" Q0 ");
+	    out.print(result.docs[i]);
+	    out.print(' ');
+	    out.print(i + 1);
+	    out.print(' ');
+	    out.print(String.format(Locale.ROOT, "%.6f", result.scores[i]));
+	    out.print(' ');
+	    out.println(runTag);
+	}
+    }
+
+    // Writes a ranking as a JSON object on one line.
+    static void writeJson(PrintWriter out, BatchResult result) {
+	StringBuilder line = new StringBuilder();
+	line.append("{\"qid\":").append(Retriever.jsonString(result.query.qid));
+	line.append(",\"query\":").append(Retriever.jsonString(result.query.text));
+	line.append(",\"latencyMillis\":").append(String.format(Locale.ROOT, "%.3f", result.latencyNanos / 1e6));
+	if (result.error != null) {
+	    line.append(",\"error\":").append(Retriever.jsonString(result.error));
+	}
+	line.append(",\"hits\":[");
+	for (int i = 0; i < result.docs.length; ++i) {
+	    if (i > 0) {
+		line.append(',');
+	    }
+	    line.append("{\"doc\":").append(Retriever.jsonString(result.docs[i]));
+	    line.append(",\"rank\":").append(i + 1);
+	    line.append(",\"score\":").append(String.format(Locale.ROOT, "%.6f", result.scores[i]));
+	    line.append('}');
+	}
+	line.append("]}");
+	out.println(line);
+    }
+
+    // Returns the given percentile of sorted latencies by the nearest-rank method.
+    static long percentile(long[] sorted, double percentile) {
+	if (sorted.length == 0) {
+	    return 0;
+	}
+	int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+	return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+    }
+
+    public static void main(String args[]) throws Exception {
+	Options options = new Options();
+        options.addOption(OptionBuilder.withLongOpt("index")
+                          .withDescription("Path to the directory where the index should be read from")
+                          .hasArg()
+                          .isRequired()
+                          .create('i'));
+        options.addOption(OptionBuilder.withLongOpt("queries")
+                          .withDescription("File with one query per line, optionally preceded by its id and a tab")
+                          .hasArg()
+                          .isRequired()
+                          .create());
+        options.addOption(OptionBuilder.withLongOpt("threads")
+                          .withDescription("Number of threads that run the queries (default: the number of processors)")
+                          .hasArg()
+                          .create('t'));
+        options.addOption(OptionBuilder.withLongOpt("format")
+                          .withDescription("Output format: " + FORMAT_TREC + " (default) or " + FORMAT_JSON + " (JSON lines)")
+                          .hasArg()
+                          .create());
+        options.addOption(OptionBuilder.withLongOpt("output")
+                          .withDescription("File the rankings are written to (default: standard output)")
+                          .hasArg()
+                          .create('o'));
+        options.addOption(OptionBuilder.withLongOpt("depth")
+                          .withDescription("Number of hits ranked per query (default " + DEFAULT_DEPTH + ")")
+                          .hasArg()
+                          .create('k'));
+        options.addOption(OptionBuilder.withLongOpt("run-tag")
+                          .withDescription("Run tag of the TREC output (default " + DEFAULT_RUN_TAG + ")")
+                          .hasArg()
+                          .create());
+	Retriever.addScoringOptions(options);
+	IndexWarmer.addDirectoryOption(options);
+	IndexWarmer.addWarmupOption(options);
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(options, args);
+
+	String format = cmd.getOptionValue("format", FORMAT_TREC);
+	if (!FORMAT_TREC.equals(format) && !FORMAT_JSON.equals(format)) {
+	    throw new IllegalArgumentException("Unknown output format: " + format);
+	}
+	int numThreads = Integer.parseInt(cmd.getOptionValue("t", String.valueOf(Runtime.getRuntime().availableProcessors())));
+	int depth = Integer.parseInt(cmd.getOptionValue("k", String.valueOf(DEFAULT_DEPTH)));
+	String runTag = cmd.getOptionValue("run-tag", DEFAULT_RUN_TAG);
+	String scoring = cmd.getOptionValue("scoring", Retriever.SCORING_TEXT);
+	Rescorer rescorer = Retriever.getRescorer(scoring, Retriever.getPriorWeight(cmd));
+	List<BatchQuery> queries = readQueries(cmd.getOptionValue("queries"));
+
+	// The summary goes to standard error when the rankings go to standard output.
+	PrintStream log = cmd.hasOption("o") ? System.out : System.err;
+	PrintWriter out = new PrintWriter(cmd.hasOption("o") ?
+					  new OutputStreamWriter(new FileOutputStream(cmd.getOptionValue("o")), StandardCharsets.UTF_8) :
+					  new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+
+	String directoryType = cmd.getOptionValue("directory", IndexWarmer.DIRECTORY_FS);
+	IndexWarmer warmer = new IndexWarmer(IndexWarmer.getWarmupQueries(cmd), rescorer);
+	long openStart = System.nanoTime();
+	IndexWarmer.PageFaults openFaults = IndexWarmer.PageFaults.read();
+	IndexReader reader = ShardedSearcherManager.openReader(cmd.getOptionValue("i"), directoryType);
+	// Each query searches the shards of a sharded index concurrently, besides the queries
+	// running concurrently.
+	ExecutorService executor = ShardedSearcherManager.newSearchExecutor(reader);
+	try {
+	    IndexSearcher searcher = Retriever.newSearcher(reader, scoring, executor);
+	    log.printf("Opened the index (%s) in %.1f ms, %s\n", directoryType,
+		       (System.nanoTime() - openStart) / 1e6, IndexWarmer.PageFaults.read().since(openFaults));
+	    if (warmer.getNumQueries() > 0) {
+		long warmStart = System.nanoTime();
+		IndexWarmer.PageFaults warmFaults = IndexWarmer.PageFaults.read();
+		int numRun = warmer.warm(searcher);
+		log.printf("Warmed up with %d queries in %.1f ms, %s\n", numRun,
+			   (System.nanoTime() - warmStart) / 1e6, IndexWarmer.PageFaults.read().since(warmFaults));
+	    }
+	    BatchRetriever retriever = new BatchRetriever(searcher, rescorer, depth);
+	    long start = System.nanoTime();
+	    IndexWarmer.PageFaults batchFaults = IndexWarmer.PageFaults.read();
+	    List<BatchResult> results = retriever.runAll(queries, numThreads);
+	    long wallNanos = System.nanoTime() - start;
+	    if (retriever.firstQueryNanos_.get() != 0) {
+		log.printf("First query answered %.1f ms after the index was opened\n",
+			   (retriever.firstQueryNanos_.get() - openStart) / 1e6);
+	    }
+
+	    long[] latencies = new long[results.size()];
+	    int numErrors = 0;
+	    for (int i = 0; i < results.size(); ++i) {
+		BatchResult result = results.get(i);
+		latencies[i] = result.latencyNanos;
+		if (result.error != null) {
+		    numErrors++;
+		    log.println("Query " + result.query.qid + " failed: " + result.error.split("\n")[0]);
+		}
+		if (FORMAT_JSON.equals(format)) {
+		    writeJson(out, result);
+		} else {
+		    writeTrec(out, result, runTag);
+		}
+	    }
+	    out.flush();
+	    Arrays.sort(latencies);
+	    log.printf("%d queries (%d failed) on %d threads in %.1f ms: %.1f queries/sec\n",
+		       results.size(), numErrors, numThreads, wallNanos / 1e6, results.size() * 1e9 / Math.max(1, wallNanos));
+	    log.printf("Latency p50 %.3f ms, p95 %.3f ms, p99 %.3f ms, max %.3f ms\n",
+		       percentile(latencies, 50) / 1e6, percentile(latencies, 95) / 1e6,
+		       percentile(latencies, 99) / 1e6, percentile(latencies, 100) / 1e6);
+	    log.println("Queries: " + IndexWarmer.PageFaults.read().since(batchFaults));
+	} finally {
+	    out.close();
+	    if (executor != null) {
+		executor.shutdown();
+	    }
+	    reader.close();
+	}
+    }
+}
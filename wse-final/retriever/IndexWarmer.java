@@ -0,0 +1,169 @@
+package retriever;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Rescorer;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.FileSwitchDirectory;
+import org.apache.lucene.store.MMapDirectory;
+
+/**
+ * Opens an index for searching and warms it up before it serves queries. A freshly
+ * deployed index is not in the page cache, so without a warm-up the first queries read
+ * the terms index, the norms and the doc values from disk.
+ * <p>
+ * In the mmap mode the index is memory-mapped, and the files every query reads are
+ * preloaded into memory when they are opened: the terms index (tip), the doc values of
+ * the PageRank prior (dvd, dvm) and the norms (nvd, nvm). Small segments are written as
+ * compound files (cfs, cfe), whose parts can't be mapped on their own, so they are
+ * preloaded whole. The other files, mainly the postings and the stored fields, are
+ * mapped without preloading and paged in on demand.
+ * <p>
+ * The warm-up replays a list of head queries on a new searcher, the way Retriever runs
+ * them, so that the postings and stored fields of the frequent queries are in memory
+ * too. The page faults of the process are read from /proc/self/stat, to show how many
+ * pages the opening, the warm-up and the first queries had to bring in.
+ */
+public class IndexWarmer {
+
+    public static final String DIRECTORY_FS = "fs";
+    public static final String DIRECTORY_MMAP = "mmap";
+
+    // Extensions of the files that are preloaded in the mmap mode.
+    static final Set<String> HOT_EXTENSIONS =
+	Collections.unmodifiableSet(new HashSet<String>(Arrays.asList("tip", "dvd", "dvm", "nvd", "nvm", "cfs", "cfe")));
+
+    private final List<String> queries_;
+    private final Rescorer rescorer_;
+
+    // Warms up searchers with the given queries, ranked with the given rescorer (or null).
+    public IndexWarmer(List<String> queries, Rescorer rescorer) {
+	queries_ = queries;
+	rescorer_ = rescorer;
+    }
+
+    // Adds the option that selects how the index files are accessed.
+    static void addDirectoryOption(Options options) {
+        options.addOption(OptionBuilder.withLongOpt("directory")
+                          .withDescription("How the index files are read: " + DIRECTORY_FS + " (default) or " +
+					   DIRECTORY_MMAP + " (memory-mapped, with the terms index, norms and doc values preloaded)")
+                          .hasArg()
+                          .create());
+    }
+
+    // Adds the option that names the warm-up queries.
+    static void addWarmupOption(Options options) {
+        options.addOption(OptionBuilder.withLongOpt("warmup-queries")
+                          .withDescription("File with queries that are run on the index before it serves queries, " +
+					   "one per line, optionally preceded by an id and a tab")
+                          .hasArg()
+                          .create());
+    }
+
+    // Returns the queries of the --warmup-queries file, or none.
+    static List<String> getWarmupQueries(CommandLine cmd) throws IOException {
+	List<String> queries = new ArrayList<String>();
+	if (cmd.hasOption("warmup-queries")) {
+	    for (BatchRetriever.BatchQuery query : BatchRetriever.readQueries(cmd.getOptionValue("warmup-queries"))) {
+		queries.add(query.text);
+	    }
+	}
+	return queries;
+    }
+
+    // Opens the index directory in the given mode.
+    public static Directory openDirectory(String indexDir, String type) throws IOException {
+	Path path = FileSystems.getDefault().getPath(indexDir);
+	if (type == null || DIRECTORY_FS.equals(type)) {
+	    return FSDirectory.open(path);
+	}
+	if (!DIRECTORY_MMAP.equals(type)) {
+	    throw new IllegalArgumentException("Unknown directory type: " + type);
+	}
+	MMapDirectory hot = new MMapDirectory(path);
+	hot.setPreload(true);
+	return new FileSwitchDirectory(HOT_EXTENSIONS, hot, new MMapDirectory(path), true);
+    }
+
+    public int getNumQueries() {
+	return queries_.size();
+    }
+
+    // Runs the warm-up queries on a searcher, and returns the number that ran. Queries that
+    // don't parse are skipped.
+    public int warm(IndexSearcher is) throws IOException {
+	QueryParser parser = new QueryParser("body", new StandardAnalyzer());
+	int numRun = 0;
+	for (String query : queries_) {
+	    try {
+		Retriever.search(is, parser, query, 0, rescorer_);
+		numRun++;
+	    } catch (ParseException e) {
+		System.err.println("Skipping warm-up query " + query + ": " + e.getMessage().split("\n")[0]);
+	    }
+	}
+	return numRun;
+    }
+
+    // The page faults of the process so far: minor faults map a page that is already in
+    // memory, major faults have to read it from disk.
+    public static class PageFaults {
+	public final long minor;
+	public final long major;
+
+	PageFaults(long minor, long major) {
+	    this.minor = minor;
+	    this.major = major;
+	}
+
+	// Reads the counts of this process from /proc/self/stat, or returns -1 counts where
+	// there is no /proc (the counts are then reported as unavailable).
+	public static PageFaults read() {
+	    try {
+		String stat = new String(Files.readAllBytes(FileSystems.getDefault().getPath("/proc/self/stat")),
+					 StandardCharsets.US_ASCII);
+		// The second field, the command name, is in parentheses and may contain spaces.
+		// minflt and majflt are the 10th and 12th fields.
+		String[] fields = stat.substring(stat.lastIndexOf(')') + 2).trim().split(" ");
+		return new PageFaults(Long.parseLong(fields[7]), Long.parseLong(fields[9]));
+	    } catch (IOException e) {
+		return new PageFaults(-1, -1);
+	    } catch (RuntimeException e) {
+		return new PageFaults(-1, -1);
+	    }
+	}
+
+	public boolean isAvailable() {
+	    return minor >= 0;
+	}
+
+	// Returns the faults since an earlier reading.
+	public PageFaults since(PageFaults earlier) {
+	    if (!isAvailable() || !earlier.isAvailable()) {
+		return new PageFaults(-1, -1);
+	    }
+	    return new PageFaults(minor - earlier.minor, major - earlier.major);
+	}
+
+	public String toString() {
+	    return isAvailable() ? minor + " minor, " + major + " major page faults" : "page faults unavailable";
+	}
+    }
+}
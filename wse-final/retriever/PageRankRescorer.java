@@ -0,0 +1,96 @@
+package retriever;
+
+import indexer.Schema;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Rescorer;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+
+/**
+ * Re-ranks the first-pass hits of a query by blending their text score with the
+ * PageRank of the documents as a static prior:
+ * <pre>
+ *   score = textScore + weight * log(pageRank * numDocs)
+ * </pre>
+ * pageRank * numDocs is 1 for a page of average rank, so average pages keep their
+ * text score, and better linked pages move up. The PageRank is read from the numeric
+ * doc values written by the indexer, which is a column lookup per hit: no stored
+ * fields are loaded. Documents without a PageRank (e.g. in indexes built before it
+ * was recorded) get no prior.
+ */
+public class PageRankRescorer extends Rescorer {
+
+    private final double weight_;
+
+    public PageRankRescorer(double weight) {
+	weight_ = weight;
+    }
+
+    public TopDocs rescore(IndexSearcher searcher, TopDocs firstPassTopDocs, int topN) throws IOException {
+	ScoreDoc[] hits = firstPassTopDocs.scoreDocs.clone();
+	// Visit the hits in doc id order, so that each segment's doc values are fetched once.
+	Arrays.sort(hits, new Comparator<ScoreDoc>() {
+		public int compare(ScoreDoc a, ScoreDoc b) {
+		    return Integer.compare(a.doc, b.doc);
+		}
+	    });
+	List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+	double numDocs = Math.max(1, searcher.getIndexReader().numDocs());
+	int leaf = -1;
+	int docBase = 0;
+	NumericDocValues pageRanks = null;
+	for (ScoreDoc hit : hits) {
+	    int nextLeaf = ReaderUtil.subIndex(hit.doc, leaves);
+	    if (nextLeaf != leaf) {
+		leaf = nextLeaf;
+		LeafReaderContext context = leaves.get(leaf);
+		docBase = context.docBase;
+		pageRanks = context.reader().getNumericDocValues(Schema.PAGERANK_FIELD);
+	    }
+	    hit.score = combine(hit.score, pageRanks == null ? 0 : pageRanks.get(hit.doc - docBase), numDocs);
+	}
+	Arrays.sort(hits, new Comparator<ScoreDoc>() {
+		public int compare(ScoreDoc a, ScoreDoc b) {
+		    int cmp = Float.compare(b.score, a.score);
+		    return cmp != 0 ? cmp : Integer.compare(a.doc, b.doc);
+		}
+	    });
+	if (hits.length > topN) {
+	    hits = Arrays.copyOf(hits, topN);
+	}
+	float maxScore = hits.length > 0 ? hits[0].score : Float.NaN;
+	return new TopDocs(firstPassTopDocs.totalHits, hits, maxScore);
+    }
+
+    public Explanation explain(IndexSearcher searcher, Explanation firstPassExplanation, int docID)
+	throws IOException {
+	List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+	LeafReaderContext context = leaves.get(ReaderUtil.subIndex(docID, leaves));
+	LeafReader reader = context.reader();
+	NumericDocValues pageRanks = reader.getNumericDocValues(Schema.PAGERANK_FIELD);
+	long bits = pageRanks == null ? 0 : pageRanks.get(docID - context.docBase);
+	double numDocs = Math.max(1, searcher.getIndexReader().numDocs());
+	float score = combine(firstPassExplanation.getValue(), bits, numDocs);
+	return Explanation.match(score, "text score blended with the PageRank prior",
+				 firstPassExplanation,
+				 Explanation.match((float) Double.longBitsToDouble(bits), "PageRank"));
+    }
+
+    // Adds the prior of a document with the given PageRank bits to its text score.
+    private float combine(float textScore, long pageRankBits, double numDocs) {
+	double pageRank = Double.longBitsToDouble(pageRankBits);
+	if (!(pageRank > 0)) {
+	    return textScore;
+	}
+	return (float) (textScore + weight_ * Math.log(pageRank * numDocs));
+    }
+}
@@ -0,0 +1,130 @@
+package retriever;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least-recently-used cache of query results, keyed by the normalized query and the
+ * results page. The cache is bounded by the approximate memory weight of the cached
+ * results. Every entry is tagged with the version of the index reader it was computed
+ * on, which changes with each commit. As soon as a lookup or insertion sees a newer
+ * version, all the entries of older versions are dropped.
+ * <p>
+ * All methods are synchronized, so one cache can be shared by the request threads.
+ */
+public class QueryCache {
+
+    private static class Entry {
+	final long version;
+	final Retriever.Results results;
+	final long weight;
+
+	Entry(long version, Retriever.Results results, long weight) {
+	    this.version = version;
+	    this.results = results;
+	    this.weight = weight;
+	}
+    }
+
+    // Maximum total weight (approximate bytes) of the cached results.
+    private final long maxWeight_;
+
+    // The entries in access order, least recently used first.
+    private final LinkedHashMap<String, Entry> entries_;
+
+    // Total weight of the cached results.
+    private long weight_;
+
+    // The index version of the cached entries.
+    private long version_;
+
+    private long hits_;
+    private long misses_;
+    private long evictions_;
+
+    public QueryCache(long maxWeight) {
+	maxWeight_ = maxWeight;
+	entries_ = new LinkedHashMap<String, Entry>(16, 0.75f, true /* accessOrder */);
+	weight_ = 0;
+	version_ = Long.MIN_VALUE;
+    }
+
+    // Builds the cache key of a query: runs of whitespace are collapsed, and leading and
+    // trailing whitespace is dropped. Case is kept, since the query syntax is case sensitive.
+    public static String key(String queryStr, int page) {
+	return queryStr.trim().replaceAll("\\s+", " ") + "\u0000" + page;
+    }
+
+    // Returns the cached results for the key on the given index version, or null.
+    public synchronized Retriever.Results get(String key, long version) {
+	checkVersion(version);
+	Entry entry = entries_.get(key);
+	if (entry == null || entry.version != version) {
+	    misses_++;
+	    return null;
+	}
+	hits_++;
+	return entry.results;
+    }
+
+    // Caches the results for the key on the given index version.
+    public synchronized void put(String key, long version, Retriever.Results results) {
+	checkVersion(version);
+	if (version != version_) {
+	    // Results computed on an older searcher while a newer one was already in use.
+	    return;
+	}
+	long weight = weigh(key, results);
+	if (weight > maxWeight_) {
+	    return;
+	}
+	Entry previous = entries_.put(key, new Entry(version, results, weight));
+	if (previous != null) {
+	    weight_ -= previous.weight;
+	}
+	weight_ += weight;
+	Iterator<Entry> it = entries_.values().iterator();
+	while (weight_ > maxWeight_ && it.hasNext()) {
+	    weight_ -= it.next().weight;
+	    it.remove();
+	    evictions_++;
+	}
+    }
+
+    // Drops all entries if the index version moved forward.
+    private void checkVersion(long version) {
+	if (version > version_) {
+	    entries_.clear();
+	    weight_ = 0;
+	    version_ = version;
+	}
+    }
+
+    // Approximates the memory used by a cache entry.
+    private static long weigh(String key, Retriever.Results results) {
+	long weight = 64 + 2L * key.length() + 2L * length(results.query) + 2L * length(results.dataDir);
+	for (Retriever.Hit hit : results.hits) {
+	    weight += 56 + 2L * length(hit.title) + 2L * length(hit.basename) + 2L * length(hit.snippet);
+	    for (String dup : hit.duplicates) {
+		weight += 40 + 2L * length(dup);
+	    }
+	}
+	return weight;
+    }
+
+    private static int length(String s) {
+	return s == null ? 0 : s.length();
+    }
+
+    public synchronized int size() {
+	return entries_.size();
+    }
+
+    public synchronized String stats() {
+	long lookups = hits_ + misses_;
+	return String.format("entries=%d weight=%d/%d hits=%d misses=%d evictions=%d hitRate=%.3f version=%d",
+			     entries_.size(), weight_, maxWeight_, hits_, misses_, evictions_,
+			     lookups == 0 ? 0.0 : hits_ / (lookups + 0.0), version_);
+    }
+}
@@ -6,10 +6,16 @@
 package retriever;
 
 
+import indexer.Schema;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.file.FileSystems;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -18,14 +24,15 @@ import org.apache.commons.cli.Options;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Rescorer;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.search.similarities.BM25Similarity;
 
 import util.Util;
 
@@ -33,6 +40,26 @@ public class Retriever {
 
     private static final String DOCUMENT_REPO = "http://cims.nyu.edu/~es2697/docs/";
 
+    // Number of hits on a results page.
+    public static final int HITS_PER_PAGE = 10;
+
+    // Scoring modes: the text score of the default similarity alone, or BM25 blended
+    // with the PageRank of the documents (see PageRankRescorer).
+    public static final String SCORING_TEXT = "text";
+    public static final String SCORING_PAGERANK = "pagerank";
+
+    public static final double DEFAULT_PRIOR_WEIGHT = 1.0;
+
+    // Number of first-pass hits that are re-ranked with the PageRank prior.
+    public static final int RESCORE_WINDOW = 100;
+
+    // The stored fields loaded for a hit: the ones shown on the results page, and the body
+    // the snippet is cut from.
+    private static final Set<String> SNIPPET_HIT_FIELDS = new HashSet<String>(Schema.HIT_FIELDS);
+    static {
+	SNIPPET_HIT_FIELDS.add(Schema.BODY_FIELD);
+    }
+
     public static void main(String args[]) throws Exception {
 	Options options = new Options();
         options.addOption(OptionBuilder.withLongOpt("query")
@@ -45,57 +72,276 @@ public class Retriever {
                           .hasArg()
                           .isRequired()
                           .create('i'));
+	addScoringOptions(options);
+	IndexWarmer.addDirectoryOption(options);
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options, args);
 
         String query = cmd.getOptionValue("q");
         String indexDir = cmd.getOptionValue("i");
-	search(indexDir, query);
+	String scoring = cmd.getOptionValue("scoring", SCORING_TEXT);
+	search(indexDir, query, scoring, getRescorer(scoring, getPriorWeight(cmd)),
+	       cmd.getOptionValue("directory", IndexWarmer.DIRECTORY_FS));
     }
-    
+
     public static void search(String indexDir, String queryStr) throws IOException, ParseException {
-	Directory dir = FSDirectory.open(FileSystems.getDefault().getPath(indexDir));
+	search(indexDir, queryStr, SCORING_TEXT, null);
+    }
+
+    public static void search(String indexDir, String queryStr, String scoring, Rescorer rescorer)
+	throws IOException, ParseException {
+	search(indexDir, queryStr, scoring, rescorer, IndexWarmer.DIRECTORY_FS);
+    }
 
-	IndexSearcher is = new IndexSearcher(DirectoryReader.open(dir));
+    // Runs a query and prints the results page, reading the index files as the given
+    // directory type (see IndexWarmer).
+    public static void search(String indexDir, String queryStr, String scoring, Rescorer rescorer,
+			      String directoryType) throws IOException, ParseException {
+	IndexReader reader = ShardedSearcherManager.openReader(indexDir, directoryType);
+	// The shards of a sharded index are searched concurrently.
+	ExecutorService executor = ShardedSearcherManager.newSearchExecutor(reader);
+	try {
+	    IndexSearcher is = newSearcher(reader, scoring, executor);
 
-	QueryParser parser = new QueryParser("body", new StandardAnalyzer());
+	    QueryParser parser = new QueryParser("body", new StandardAnalyzer());
 
-	Query query = parser.parse(queryStr);
+	    System.out.print(toHtml(search(is, parser, queryStr, 0, rescorer)));
+	} finally {
+	    if (executor != null) {
+		executor.shutdown();
+	    }
+	    reader.close();
+	}
+    }
 
-	TopDocs hits = is.search(query, 10);
+    // Adds the options that select the scoring mode.
+    static void addScoringOptions(Options options) {
+        options.addOption(OptionBuilder.withLongOpt("scoring")
+                          .withDescription("Scoring mode: " + SCORING_TEXT + " (default) or " + SCORING_PAGERANK +
+					   " (BM25 with the PageRank prior)")
+                          .hasArg()
+                          .create());
+        options.addOption(OptionBuilder.withLongOpt("prior-weight")
+                          .withDescription("Weight of the PageRank prior in the " + SCORING_PAGERANK +
+					   " scoring mode (default " + DEFAULT_PRIOR_WEIGHT + ")")
+                          .hasArg()
+                          .create());
+    }
 
-	Document firstDoc = is.doc(0);
-	String dataDir = ""; 
-	if (firstDoc != null) {
-	    dataDir = firstDoc.get("dir");
+    static double getPriorWeight(CommandLine cmd) {
+	return Double.parseDouble(cmd.getOptionValue("prior-weight", String.valueOf(DEFAULT_PRIOR_WEIGHT)));
+    }
+
+    // Returns the rescorer of a scoring mode, or null if the hits are ranked by the text score alone.
+    public static Rescorer getRescorer(String scoring, double priorWeight) {
+	if (SCORING_PAGERANK.equals(scoring)) {
+	    return new PageRankRescorer(priorWeight);
+	}
+	if (!SCORING_TEXT.equals(scoring)) {
+	    throw new IllegalArgumentException("Unknown scoring mode: " + scoring);
 	}
-	
-	System.out.println("<html><head><title>Search Results</title></head><body>"); 
-	System.out.println("<h1>Results for query <u>" + queryStr + "</u> " +
-			   "in directory <u>" + dataDir + "</u></h1>"); 
-	
-	int result = 1;
-	for (ScoreDoc scoreDoc : hits.scoreDocs) {
-	    Document doc = is.doc(scoreDoc.doc);
-	    System.out.println("<p><h3>" + result++ + ". " + doc.get("title") + "</h3>");
-	    String path = doc.get("path");
-	    String basename = Util.getBasename(path);
-	    String link = DOCUMENT_REPO + basename;
-	    System.out.println("<p><a href=\"" + link + "\">" + basename + "</a></p>");
+	return null;
+    }
+
+    // Creates a searcher with the similarity of a scoring mode.
+    public static IndexSearcher newSearcher(IndexReader reader, String scoring) {
+	return newSearcher(reader, scoring, null);
+    }
+
+    // Creates a searcher with the similarity of a scoring mode, which searches the segments
+    // of the index concurrently on the given executor, unless it's null.
+    public static IndexSearcher newSearcher(IndexReader reader, String scoring, ExecutorService executor) {
+	IndexSearcher is = new IndexSearcher(reader, executor);
+	if (SCORING_PAGERANK.equals(scoring)) {
+	    is.setSimilarity(new BM25Similarity());
+	}
+	return is;
+    }
+
+    // A search hit, as shown on the results page.
+    public static class Hit {
+	public final String title;
+	public final String basename;
+	public final String[] duplicates;
+	// The HTML snippet of the body with the query terms highlighted, or "".
+	public final String snippet;
+
+	public Hit(String title, String basename, String[] duplicates, String snippet) {
+	    this.title = title;
+	    this.basename = basename;
+	    this.duplicates = duplicates;
+	    this.snippet = snippet;
+	}
+    }
+
+    // The results of a query.
+    public static class Results {
+	public final String query;
+	public final String dataDir;
+	// The results page, starting from 0.
+	public final int page;
+	public final List<Hit> hits;
+
+	public Results(String query, String dataDir, int page, List<Hit> hits) {
+	    this.query = query;
+	    this.dataDir = dataDir;
+	    this.page = page;
+	    this.hits = hits;
+	}
+    }
+
+    // Runs a query against an open searcher and loads the top 10 hits.
+    public static Results search(IndexSearcher is, QueryParser parser, String queryStr)
+	throws IOException, ParseException {
+	return search(is, parser, queryStr, 0);
+    }
+
+    // Runs a query against an open searcher and loads the hits of the given results page.
+    public static Results search(IndexSearcher is, QueryParser parser, String queryStr, int page)
+	throws IOException, ParseException {
+	return search(is, parser, queryStr, page, null);
+    }
+
+    // Runs a query against an open searcher and loads the hits of the given results page.
+    // If a rescorer is given, the top RESCORE_WINDOW hits (or more, for later pages) of the
+    // query are re-ranked by it.
+    public static Results search(IndexSearcher is, QueryParser parser, String queryStr, int page,
+				 Rescorer rescorer) throws IOException, ParseException {
+	Query query = parser.parse(queryStr);
+
+	int first = page * HITS_PER_PAGE;
+	TopDocs hits = topDocs(is, query, first + HITS_PER_PAGE, rescorer);
+
+	String dataDir = getDataDir(is);
+
+	SnippetGenerator snippets = new SnippetGenerator(is, query, SnippetGenerator.DEFAULT_WINDOW);
+	List<Hit> results = new ArrayList<Hit>();
+	for (int i = first; i < hits.scoreDocs.length; ++i) {
+	    ScoreDoc scoreDoc = hits.scoreDocs[i];
+	    // Only the fields shown on the results page are loaded, and the body for the snippet.
+	    Document doc = is.doc(scoreDoc.doc, SNIPPET_HIT_FIELDS);
+	    String basename = Util.getBasename(doc.get("path"));
 	    String duplicates = doc.get("duplicates");
-	    if (duplicates.length() > 0) {
-		System.out.println("<p>Duplicates: </p>");
-		String[] dups = duplicates.split(",");
-		System.out.println("<ul>");
-		for (String dup : dups) {
+	    String[] dups = (duplicates == null || duplicates.length() == 0) ? new String[0] : duplicates.split(",");
+	    String snippet = snippets.getSnippet(scoreDoc.doc, doc.get(Schema.BODY_FIELD));
+	    results.add(new Hit(doc.get("title"), basename, dups, snippet));
+	}
+	return new Results(queryStr, dataDir, page, results);
+    }
+
+    // Returns the top numHits hits of a query. If a rescorer is given, the top RESCORE_WINDOW
+    // hits (or more, for deeper rankings) are re-ranked by it.
+    public static TopDocs topDocs(IndexSearcher is, Query query, int numHits, Rescorer rescorer)
+	throws IOException {
+	if (rescorer == null) {
+	    return is.search(query, numHits);
+	}
+	TopDocs hits = is.search(query, Math.max(RESCORE_WINDOW, numHits));
+	return rescorer.rescore(is, hits, numHits);
+    }
+
+    // Returns the data directory of the index. Indexes with the lean schema record it in the
+    // commit user data (of every shard), others store it in every document.
+    static String getDataDir(IndexSearcher is) throws IOException {
+	IndexReader reader = is.getIndexReader();
+	List<DirectoryReader> shards = ShardedSearcherManager.getShardReaders(reader);
+	if (!shards.isEmpty()) {
+	    String dataDir = shards.get(0).getIndexCommit().getUserData().get(Schema.DIR_KEY);
+	    if (dataDir != null) {
+		return dataDir;
+	    }
+	}
+	if (reader.maxDoc() > 0) {
+	    Document firstDoc = is.doc(0, Collections.singleton(Schema.DIR_FIELD));
+	    if (firstDoc != null && firstDoc.get(Schema.DIR_FIELD) != null) {
+		return firstDoc.get(Schema.DIR_FIELD);
+	    }
+	}
+	return "";
+    }
+
+    // Renders the results as the HTML page shown by the CGI script.
+    public static String toHtml(Results results) {
+	StringBuilder out = new StringBuilder();
+	out.append("<html><head><title>Search Results</title></head><body>\n");
+	out.append("<h1>Results for query <u>" + results.query + "</u> " +
+		   "in directory <u>" + results.dataDir + "</u></h1>\n");
+
+	int result = results.page * HITS_PER_PAGE + 1;
+	for (Hit hit : results.hits) {
+	    out.append("<p><h3>" + result++ + ". " + hit.title + "</h3>\n");
+	    String link = DOCUMENT_REPO + hit.basename;
+	    out.append("<p><a href=\"" + link + "\">" + hit.basename + "</a></p>\n");
+	    if (hit.snippet.length() > 0) {
+		out.append("<p>" + hit.snippet + "</p>\n");
+	    }
+	    if (hit.duplicates.length > 0) {
+		out.append("<p>Duplicates: </p>\n");
+		out.append("<ul>\n");
+		for (String dup : hit.duplicates) {
 		    String dupLink = DOCUMENT_REPO + dup;
-		    System.out.println("<li>" + "<a href=\"" + dupLink + "\">" + dup + "</a>");
+		    out.append("<li>" + "<a href=\"" + dupLink + "\">" + dup + "</a>\n");
 		}
-		System.out.println("</ul>");
+		out.append("</ul>\n");
 	    }
-	    System.out.println("</p>");
+	    out.append("</p>\n");
 	}
 
-	System.out.println("</body></html>");
+	out.append("</body></html>\n");
+	return out.toString();
+    }
+
+    // Renders the results as a JSON object.
+    public static String toJson(Results results) {
+	StringBuilder out = new StringBuilder();
+	out.append("{\"query\":").append(jsonString(results.query));
+	out.append(",\"dir\":").append(jsonString(results.dataDir));
+	out.append(",\"hits\":[");
+	for (int i = 0; i < results.hits.size(); ++i) {
+	    Hit hit = results.hits.get(i);
+	    if (i > 0) {
+		out.append(',');
+	    }
+	    out.append("{\"title\":").append(jsonString(hit.title));
+	    out.append(",\"url\":").append(jsonString(DOCUMENT_REPO + hit.basename));
+	    out.append(",\"snippet\":").append(jsonString(hit.snippet));
+	    out.append(",\"duplicates\":[");
+	    for (int j = 0; j < hit.duplicates.length; ++j) {
+		if (j > 0) {
+		    out.append(',');
+		}
+		out.append(jsonString(DOCUMENT_REPO + hit.duplicates[j]));
+	    }
+	    out.append("]}");
+	}
+	out.append("]}\n");
+	return out.toString();
+    }
+
+    // Quotes and escapes a string for JSON.
+    static String jsonString(String s) {
+	if (s == null) {
+	    return "null";
+	}
+	StringBuilder sb = new StringBuilder(s.length() + 2);
+	sb.append('"');
+	for (int i = 0; i < s.length(); ++i) {
+	    char c = s.charAt(i);
+	    switch (c) {
+	    case '"': sb.append("\\\""); break;
+	    case '\\': sb.append("\\\\"); break;
+	    case '\n': sb.append("\\n"); break;
+	    case '\r': sb.append("\\r"); break;
+	    case '\t': sb.append("\\t"); break;
+	    default:
+		if (c < 0x20) {
+		    sb.append(String.format("\\u%04x", (int) c));
+		} else {
+		    sb.append(c);
+		}
+	    }
+	}
+	sb.append('"');
+	return sb.toString();
     }
-}
\ No newline at end of file
+}
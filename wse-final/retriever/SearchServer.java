@@ -0,0 +1,314 @@
+package retriever;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Rescorer;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+
+/**
+ * A long-running search service. It keeps the index open in a SearcherManager, so
+ * that queries don't pay for JVM startup and cold index opens, and serves
+ * <tt>GET /search?query=...[&amp;page=N][&amp;format=json]</tt> over HTTP on localhost.
+ * The response is the same HTML page that Retriever prints, or the JSON form of the
+ * results. The searcher is refreshed periodically, so a rebuilt index is picked up
+ * without restarting the service.
+ * <p>
+ * Results are cached in a QueryCache, which is invalidated whenever the refreshed
+ * searcher sees a new index version. <tt>GET /stats</tt> reports the cache counters.
+ * <p>
+ * Every new searcher, the first one and the refreshed ones, can be warmed up with a list
+ * of head queries before it serves requests, and the index can be memory-mapped with its
+ * hot files preloaded (see IndexWarmer). The time to the first query and the page faults
+ * until then are printed.
+ * <p>
+ * A sharded index is kept open in a ShardedSearcherManager instead, and every query
+ * searches the shards concurrently.
+ */
+public class SearchServer {
+
+    // Default bound on the approximate memory used by cached results.
+    public static final long DEFAULT_CACHE_BYTES = 64L << 20;
+
+    // A SearcherManager, or a ShardedSearcherManager for a sharded index.
+    private final ReferenceManager<IndexSearcher> searcherManager_;
+
+    // Searches the shards of a sharded index concurrently, null otherwise.
+    private final ExecutorService searchExecutor_;
+
+    private final QueryCache cache_;
+
+    // Re-ranks the hits in the PageRank scoring mode, null otherwise.
+    private final Rescorer rescorer_;
+
+    // Each thread has its own analyzer and query parser, since QueryParser is not thread-safe.
+    private final ThreadLocal<QueryParser> parsers_ = new ThreadLocal<QueryParser>() {
+	protected QueryParser initialValue() {
+	    return new QueryParser("body", new StandardAnalyzer());
+	}
+    };
+
+    // Replays the head queries on every new searcher before it is used.
+    private final IndexWarmer warmer_;
+
+    // When the server started to open the index, and the page faults of the process then.
+    private final long startNanos_;
+    private final IndexWarmer.PageFaults startFaults_;
+
+    private final AtomicBoolean firstQueryDone_ = new AtomicBoolean();
+
+    private HttpServer server_;
+    private ExecutorService requestExecutor_;
+    private ScheduledExecutorService refreshExecutor_;
+
+    public SearchServer(String indexDir) throws IOException {
+	this(indexDir, DEFAULT_CACHE_BYTES, Retriever.SCORING_TEXT, Retriever.DEFAULT_PRIOR_WEIGHT);
+    }
+
+    public SearchServer(String indexDir, long cacheBytes, String scoring, double priorWeight)
+	throws IOException {
+	this(indexDir, cacheBytes, scoring, priorWeight, IndexWarmer.DIRECTORY_FS, new ArrayList<String>());
+    }
+
+    // Creates a server that ranks the hits with the given scoring mode (see Retriever), reads
+    // the index as the given directory type, and warms up every searcher with the given
+    // queries before it serves requests (see IndexWarmer).
+    public SearchServer(String indexDir, long cacheBytes, final String scoring, double priorWeight,
+			String directoryType, List<String> warmupQueries) throws IOException {
+	startNanos_ = System.nanoTime();
+	startFaults_ = IndexWarmer.PageFaults.read();
+	rescorer_ = Retriever.getRescorer(scoring, priorWeight);
+	warmer_ = new IndexWarmer(warmupQueries, rescorer_);
+	Directory[] shards = ShardedSearcherManager.openShards(indexDir, directoryType);
+	searchExecutor_ = shards == null ? null : ShardedSearcherManager.newSearchExecutor(shards.length);
+	SearcherFactory factory = new SearcherFactory() {
+		public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader) throws IOException {
+		    IndexSearcher is = Retriever.newSearcher(reader, scoring, searchExecutor_);
+		    if (warmer_.getNumQueries() > 0) {
+			long start = System.nanoTime();
+			IndexWarmer.PageFaults faults = IndexWarmer.PageFaults.read();
+			int numRun = warmer_.warm(is);
+			System.out.printf("Warmed up the searcher with %d queries in %.1f ms, %s\n", numRun,
+					  (System.nanoTime() - start) / 1e6, IndexWarmer.PageFaults.read().since(faults));
+		    }
+		    return is;
+		}
+	    };
+	if (shards == null) {
+	    searcherManager_ = new SearcherManager(IndexWarmer.openDirectory(indexDir, directoryType), factory);
+	} else {
+	    searcherManager_ = new ShardedSearcherManager(shards, factory);
+	}
+	cache_ = new QueryCache(cacheBytes);
+	System.out.printf("Opened the index (%s) in %.1f ms, %s\n",
+			  directoryType, (System.nanoTime() - startNanos_) / 1e6,
+			  IndexWarmer.PageFaults.read().since(startFaults_));
+    }
+
+    // Runs a query on the current searcher, or answers it from the cache.
+    // format is "html" or "json".
+    public String search(String queryStr, int page, String format) throws IOException, ParseException {
+	IndexSearcher is = searcherManager_.acquire();
+	try {
+	    long version = ShardedSearcherManager.getVersion(is.getIndexReader());
+	    String key = QueryCache.key(queryStr, page);
+	    Retriever.Results results = cache_.get(key, version);
+	    if (results == null) {
+		results = Retriever.search(is, parsers_.get(), queryStr, page, rescorer_);
+		cache_.put(key, version, results);
+	    }
+	    if (firstQueryDone_.compareAndSet(false, true)) {
+		System.out.printf("First query answered %.1f ms after the server started, %s since then\n",
+				  (System.nanoTime() - startNanos_) / 1e6,
+				  IndexWarmer.PageFaults.read().since(startFaults_));
+	    }
+	    return "json".equals(format) ? Retriever.toJson(results) : Retriever.toHtml(results);
+	} finally {
+	    searcherManager_.release(is);
+	}
+    }
+
+    public QueryCache getCache() {
+	return cache_;
+    }
+
+    // Starts serving on localhost:port with numThreads request threads, and checks for
+    // a new index every refreshSeconds.
+    public void start(int port, int numThreads, long refreshSeconds) throws IOException {
+	server_ = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+	server_.createContext("/search", new SearchHandler());
+	server_.createContext("/stats", new StatsHandler());
+	requestExecutor_ = Executors.newFixedThreadPool(numThreads);
+	server_.setExecutor(requestExecutor_);
+	refreshExecutor_ = Executors.newSingleThreadScheduledExecutor();
+	refreshExecutor_.scheduleWithFixedDelay(new Runnable() {
+		public void run() {
+		    try {
+			searcherManager_.maybeRefresh();
+		    } catch (IOException e) {
+			System.err.println("Failed to refresh the searcher: " + e);
+		    }
+		}
+	    }, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+	server_.start();
+	System.out.println("Serving searches on http://localhost:" + port + "/search");
+    }
+
+    public void stop() throws IOException {
+	if (server_ != null) {
+	    server_.stop(0);
+	    requestExecutor_.shutdown();
+	    refreshExecutor_.shutdown();
+	}
+	searcherManager_.close();
+	if (searchExecutor_ != null) {
+	    searchExecutor_.shutdown();
+	}
+    }
+
+    private class SearchHandler implements HttpHandler {
+	public void handle(HttpExchange exchange) throws IOException {
+	    Map<String, String> params = parseQueryString(exchange.getRequestURI().getRawQuery());
+	    String format = params.containsKey("format") ? params.get("format") : "html";
+	    String contentType = "json".equals(format) ? "application/json" : "text/html";
+	    int status = 200;
+	    String response;
+	    if (!params.containsKey("query")) {
+		status = 400;
+		response = "Missing query parameter\n";
+		contentType = "text/plain";
+	    } else {
+		try {
+		    int page = params.containsKey("page") ? Math.max(0, Integer.parseInt(params.get("page"))) : 0;
+		    response = search(params.get("query"), page, format);
+		} catch (NumberFormatException e) {
+		    status = 400;
+		    response = "Invalid page: " + params.get("page") + "\n";
+		    contentType = "text/plain";
+		} catch (ParseException e) {
+		    status = 400;
+		    response = "Invalid query: " + e.getMessage() + "\n";
+		    contentType = "text/plain";
+		} catch (IOException e) {
+		    status = 500;
+		    response = "Search failed: " + e + "\n";
+		    contentType = "text/plain";
+		}
+	    }
+	    respond(exchange, status, contentType, response);
+	}
+    }
+
+    private class StatsHandler implements HttpHandler {
+	public void handle(HttpExchange exchange) throws IOException {
+	    respond(exchange, 200, "text/plain", "cache: " + cache_.stats() + "\n");
+	}
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, String response)
+	throws IOException {
+	byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+	exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+	exchange.sendResponseHeaders(status, bytes.length);
+	OutputStream os = exchange.getResponseBody();
+	try {
+	    os.write(bytes);
+	} finally {
+	    os.close();
+	}
+    }
+
+    // Parses name=value pairs separated by '&', URL-decoding the values.
+    static Map<String, String> parseQueryString(String rawQuery) throws UnsupportedEncodingException {
+	Map<String, String> params = new HashMap<String, String>();
+	if (rawQuery == null) {
+	    return params;
+	}
+	for (String pair : rawQuery.split("&")) {
+	    int eq = pair.indexOf('=');
+	    if (eq > 0) {
+		params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+			   URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+	    }
+	}
+	return params;
+    }
+
+    public static void main(String args[]) throws Exception {
+	Options options = new Options();
+        options.addOption(OptionBuilder.withLongOpt("index")
+                          .withDescription("Path to the directory where the index should be read from")
+                          .hasArg()
+                          .isRequired()
+                          .create('i'));
+        options.addOption(OptionBuilder.withLongOpt("port")
+                          .withDescription("Port to listen on (default 8580)")
+                          .hasArg()
+                          .create('p'));
+        options.addOption(OptionBuilder.withLongOpt("threads")
+                          .withDescription("Number of request threads (default 4)")
+                          .hasArg()
+                          .create('t'));
+        options.addOption(OptionBuilder.withLongOpt("cache-mb")
+                          .withDescription("Memory bound of the query result cache in MB, 0 disables it (default 64)")
+                          .hasArg()
+                          .create());
+	Retriever.addScoringOptions(options);
+	IndexWarmer.addDirectoryOption(options);
+	IndexWarmer.addWarmupOption(options);
+        options.addOption(OptionBuilder.withLongOpt("refresh")
+                          .withDescription("Seconds between checks for a new index (default 10)")
+                          .hasArg()
+                          .create());
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(options, args);
+
+	final SearchServer server = new SearchServer(cmd.getOptionValue("i"),
+						     Long.parseLong(cmd.getOptionValue("cache-mb", "64")) << 20,
+						     cmd.getOptionValue("scoring", Retriever.SCORING_TEXT),
+						     Retriever.getPriorWeight(cmd),
+						     cmd.getOptionValue("directory", IndexWarmer.DIRECTORY_FS),
+						     IndexWarmer.getWarmupQueries(cmd));
+	server.start(Integer.parseInt(cmd.getOptionValue("p", "8580")),
+		     Integer.parseInt(cmd.getOptionValue("t", "4")),
+		     Long.parseLong(cmd.getOptionValue("refresh", "10")));
+	Runtime.getRuntime().addShutdownHook(new Thread() {
+		public void run() {
+		    try {
+			server.stop();
+		    } catch (IOException e) {
+			System.err.println("Failed to stop the server: " + e);
+		    }
+		}
+	    });
+    }
+}
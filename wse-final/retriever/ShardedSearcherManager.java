@@ -0,0 +1,196 @@
+package retriever;
+
+import indexer.Shards;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.store.Directory;
+
+/**
+ * Keeps the shards of a sharded index (see indexer.Shards) open for searching, like a
+ * SearcherManager does for an unsharded one. The searcher reads a MultiReader over the
+ * shards, so the term statistics that the scores are computed from (document frequencies,
+ * total term frequencies and field lengths) are those of the whole collection, and the
+ * scores are comparable across shards. With an executor the searcher searches the
+ * segments of all shards concurrently and merges their top hits exactly.
+ * <p>
+ * A refresh reopens the shards that changed, and keeps sharing the others.
+ */
+public class ShardedSearcherManager extends ReferenceManager<IndexSearcher> {
+
+    private final SearcherFactory factory_;
+
+    public ShardedSearcherManager(Directory[] shards, SearcherFactory factory) throws IOException {
+	factory_ = factory;
+	DirectoryReader[] readers = new DirectoryReader[shards.length];
+	boolean[] opened = new boolean[shards.length];
+	try {
+	    for (int shard = 0; shard < shards.length; ++shard) {
+		readers[shard] = DirectoryReader.open(shards[shard]);
+		opened[shard] = true;
+	    }
+	} catch (IOException e) {
+	    release(readers, opened);
+	    throw e;
+	}
+	current = newSearcher(readers, opened, null);
+    }
+
+    protected void decRef(IndexSearcher reference) throws IOException {
+	reference.getIndexReader().decRef();
+    }
+
+    protected IndexSearcher refreshIfNeeded(IndexSearcher reference) throws IOException {
+	List<DirectoryReader> shards = getShardReaders(reference.getIndexReader());
+	DirectoryReader[] readers = new DirectoryReader[shards.size()];
+	boolean[] opened = new boolean[shards.size()];
+	boolean changed = false;
+	try {
+	    for (int shard = 0; shard < readers.length; ++shard) {
+		readers[shard] = DirectoryReader.openIfChanged(shards.get(shard));
+		if (readers[shard] == null) {
+		    readers[shard] = shards.get(shard);
+		} else {
+		    opened[shard] = true;
+		    changed = true;
+		}
+	    }
+	} catch (IOException e) {
+	    release(readers, opened);
+	    throw e;
+	}
+	if (!changed) {
+	    return null;
+	}
+	return newSearcher(readers, opened, reference.getIndexReader());
+    }
+
+    protected boolean tryIncRef(IndexSearcher reference) {
+	return reference.getIndexReader().tryIncRef();
+    }
+
+    protected int getRefCount(IndexSearcher reference) {
+	return reference.getIndexReader().getRefCount();
+    }
+
+    // Creates a searcher over the shards. The MultiReader holds its own reference to every
+    // shard, so the references of the shards opened here are released.
+    private IndexSearcher newSearcher(DirectoryReader[] readers, boolean[] opened, IndexReader previous)
+	throws IOException {
+	MultiReader reader;
+	try {
+	    reader = new MultiReader(readers, false);
+	} finally {
+	    release(readers, opened);
+	}
+	try {
+	    return factory_.newSearcher(reader, previous);
+	} catch (IOException e) {
+	    reader.decRef();
+	    throw e;
+	} catch (RuntimeException e) {
+	    reader.decRef();
+	    throw e;
+	}
+    }
+
+    private static void release(DirectoryReader[] readers, boolean[] opened) throws IOException {
+	for (int shard = 0; shard < readers.length; ++shard) {
+	    if (opened[shard] && readers[shard] != null) {
+		readers[shard].decRef();
+	    }
+	}
+    }
+
+    // Opens the index in a directory for searching: a DirectoryReader if it's unsharded, or
+    // a MultiReader over its shards. Closing the reader closes the shards.
+    public static IndexReader openReader(String indexDir, String directoryType) throws IOException {
+	Directory[] shards = openShards(indexDir, directoryType);
+	if (shards == null) {
+	    return DirectoryReader.open(IndexWarmer.openDirectory(indexDir, directoryType));
+	}
+	DirectoryReader[] readers = new DirectoryReader[shards.length];
+	for (int shard = 0; shard < shards.length; ++shard) {
+	    readers[shard] = DirectoryReader.open(shards[shard]);
+	}
+	return new MultiReader(readers);
+    }
+
+    // Returns the directories of the shards of an index, or null if it isn't sharded.
+    public static Directory[] openShards(String indexDir, String directoryType) throws IOException {
+	Path path = FileSystems.getDefault().getPath(indexDir);
+	int numShards = Shards.getNumShards(path);
+	if (numShards == 0) {
+	    return null;
+	}
+	Directory[] shards = new Directory[numShards];
+	for (int shard = 0; shard < numShards; ++shard) {
+	    shards[shard] = IndexWarmer.openDirectory(Shards.getShardDir(path, shard).toString(), directoryType);
+	}
+	return shards;
+    }
+
+    // Returns the readers of the shards of a reader opened by openReader() or by this manager,
+    // or the reader itself if the index isn't sharded.
+    public static List<DirectoryReader> getShardReaders(IndexReader reader) {
+	if (reader instanceof DirectoryReader) {
+	    return Collections.singletonList((DirectoryReader) reader);
+	}
+	List<DirectoryReader> shards = new ArrayList<DirectoryReader>();
+	List<IndexReaderContext> children = reader.getContext().children();
+	if (children != null) {
+	    for (IndexReaderContext child : children) {
+		if (child.reader() instanceof DirectoryReader) {
+		    shards.add((DirectoryReader) child.reader());
+		}
+	    }
+	}
+	return shards;
+    }
+
+    // Returns a number that grows with every commit to any shard, for tagging cached results.
+    public static long getVersion(IndexReader reader) {
+	long version = 0;
+	for (DirectoryReader shard : getShardReaders(reader)) {
+	    version += shard.getVersion();
+	}
+	return version;
+    }
+
+    // Returns an executor that searches the shards of a reader concurrently, or null if the
+    // index isn't sharded. Its threads are daemons, so it needn't be shut down on exit.
+    public static ExecutorService newSearchExecutor(IndexReader reader) {
+	int numShards = getShardReaders(reader).size();
+	if (reader instanceof DirectoryReader || numShards <= 1) {
+	    return null;
+	}
+	return newSearchExecutor(numShards);
+    }
+
+    // Returns an executor for searching the given number of shards concurrently.
+    public static ExecutorService newSearchExecutor(int numShards) {
+	final AtomicInteger numThreads = new AtomicInteger();
+	return Executors.newFixedThreadPool(Math.min(numShards, Runtime.getRuntime().availableProcessors()),
+					    new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+		    Thread thread = new Thread(r, "shard-searcher-" + numThreads.getAndIncrement());
+		    thread.setDaemon(true);
+		    return thread;
+		}
+	    });
+    }
+}
@@ -0,0 +1,231 @@
+package retriever;
+
+import indexer.Schema;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+
+/**
+ * Builds the result snippet of a hit, in the style of Lucene's PostingsHighlighter.
+ * The body is indexed with the character offsets of its terms. So the occurrences of
+ * the query terms in a hit are read straight from the postings, without analyzing or
+ * scanning the text. The passage of at most window characters with the most distinct
+ * query terms (then the most occurrences) is found with a sliding window over the
+ * occurrences. Only that passage of the body is escaped and highlighted.
+ * <p>
+ * The body text itself comes from the stored field, since the postings only hold the
+ * offsets. Indexes with the lean schema don't store it and get no snippets.
+ */
+public class SnippetGenerator {
+
+    public static final int DEFAULT_WINDOW = 200;
+
+    // Occurrences of a query term read from the postings of a hit, so that very
+    // frequent terms in long pages don't make a snippet expensive.
+    private static final int MAX_OCCURRENCES_PER_TERM = 256;
+
+    private final IndexSearcher searcher_;
+
+    // The terms of the query on the body field.
+    private final List<Term> terms_;
+
+    private final int window_;
+
+    public SnippetGenerator(IndexSearcher searcher, Query query, int window) throws IOException {
+	searcher_ = searcher;
+	window_ = window;
+	Set<Term> allTerms = new HashSet<Term>();
+	searcher.createNormalizedWeight(query, false).extractTerms(allTerms);
+	terms_ = new ArrayList<Term>();
+	for (Term term : allTerms) {
+	    if (Schema.BODY_FIELD.equals(term.field())) {
+		terms_.add(term);
+	    }
+	}
+    }
+
+    // Returns the HTML snippet of a hit with the given stored body, or "" if there is no body.
+    public String getSnippet(int docId, String body) throws IOException {
+	if (body == null || body.length() == 0) {
+	    return "";
+	}
+	Occurrences occurrences = findOccurrences(docId);
+	int numOccurrences = occurrences.size;
+	int[] starts = occurrences.starts;
+	int[] ends = occurrences.ends;
+	int[] termIndexes = occurrences.termIndexes;
+	int first = 0;
+	int last = -1;
+	if (numOccurrences > 0) {
+	    // Slide a window over the occurrences: for each first occurrence, extend the window
+	    // as far as it fits, and keep the window with the best score.
+	    int[] counts = new int[terms_.size()];
+	    int distinct = 0;
+	    long bestScore = -1;
+	    int j = 0;
+	    for (int i = 0; i < numOccurrences; ++i) {
+		while (j < numOccurrences && ends[j] - starts[i] <= window_) {
+		    if (counts[termIndexes[j]]++ == 0) {
+			distinct++;
+		    }
+		    j++;
+		}
+		if (j > i) {
+		    long score = ((long) distinct << 32) + (j - i);
+		    if (score > bestScore) {
+			bestScore = score;
+			first = i;
+			last = j - 1;
+		    }
+		    if (--counts[termIndexes[i]] == 0) {
+			distinct--;
+		    }
+		} else {
+		    // A single occurrence longer than the window.
+		    j = i + 1;
+		}
+	    }
+	}
+	// Center the occurrences in the window, and snap it to whole words.
+	int begin = 0;
+	if (last >= first) {
+	    int slack = Math.max(0, window_ - (ends[last] - starts[first]));
+	    begin = Math.max(0, starts[first] - slack / 2);
+	}
+	int end = Math.min(body.length(), begin + window_);
+	if (end - begin < window_) {
+	    begin = Math.max(0, end - window_);
+	}
+	if (begin > 0) {
+	    int space = body.indexOf(' ', begin);
+	    if (space >= 0 && (last < first || space < starts[first])) {
+		begin = space + 1;
+	    }
+	}
+	if (end < body.length()) {
+	    int space = body.lastIndexOf(' ', end);
+	    if (space > begin && (last < first || space >= ends[last])) {
+		end = space;
+	    }
+	}
+	StringBuilder snippet = new StringBuilder();
+	if (begin > 0) {
+	    snippet.append("... ");
+	}
+	int pos = begin;
+	for (int i = first; i <= last; ++i) {
+	    if (starts[i] < pos || ends[i] > end) {
+		continue;
+	    }
+	    appendEscaped(snippet, body, pos, starts[i]);
+	    snippet.append("<b>");
+	    appendEscaped(snippet, body, starts[i], ends[i]);
+	    snippet.append("</b>");
+	    pos = ends[i];
+	}
+	appendEscaped(snippet, body, pos, end);
+	if (end < body.length()) {
+	    snippet.append(" ...");
+	}
+	return snippet.toString();
+    }
+
+    // The occurrences of the query terms in a document, sorted by start offset.
+    private static class Occurrences {
+	int size = 0;
+	int[] starts = new int[16];
+	int[] ends = new int[16];
+	int[] termIndexes = new int[16];
+
+	void add(int start, int end, int termIndex) {
+	    if (size == starts.length) {
+		starts = Arrays.copyOf(starts, size * 2);
+		ends = Arrays.copyOf(ends, size * 2);
+		termIndexes = Arrays.copyOf(termIndexes, size * 2);
+	    }
+	    starts[size] = start;
+	    ends[size] = end;
+	    termIndexes[size] = termIndex;
+	    size++;
+	}
+
+	// Sorts the occurrences by start offset.
+	void sort() {
+	    long[] keys = new long[size];
+	    for (int i = 0; i < size; ++i) {
+		keys[i] = ((long) starts[i] << 32) | i;
+	    }
+	    Arrays.sort(keys);
+	    int[] sortedStarts = new int[size];
+	    int[] sortedEnds = new int[size];
+	    int[] sortedTermIndexes = new int[size];
+	    for (int i = 0; i < size; ++i) {
+		int from = (int) keys[i];
+		sortedStarts[i] = starts[from];
+		sortedEnds[i] = ends[from];
+		sortedTermIndexes[i] = termIndexes[from];
+	    }
+	    starts = sortedStarts;
+	    ends = sortedEnds;
+	    termIndexes = sortedTermIndexes;
+	}
+    }
+
+    // Reads the offsets of the query terms in the document from the postings.
+    private Occurrences findOccurrences(int docId) throws IOException {
+	Occurrences occurrences = new Occurrences();
+	List<LeafReaderContext> leaves = searcher_.getIndexReader().leaves();
+	LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(docId, leaves));
+	int leafDoc = docId - leaf.docBase;
+	Terms terms = leaf.reader().terms(Schema.BODY_FIELD);
+	if (terms == null || !terms.hasOffsets()) {
+	    return occurrences;
+	}
+	TermsEnum termsEnum = terms.iterator();
+	PostingsEnum postings = null;
+	for (int t = 0; t < terms_.size(); ++t) {
+	    if (!termsEnum.seekExact(terms_.get(t).bytes())) {
+		continue;
+	    }
+	    postings = termsEnum.postings(postings, PostingsEnum.OFFSETS);
+	    if (postings.advance(leafDoc) != leafDoc) {
+		continue;
+	    }
+	    int freq = Math.min(postings.freq(), MAX_OCCURRENCES_PER_TERM);
+	    for (int i = 0; i < freq; ++i) {
+		postings.nextPosition();
+		int start = postings.startOffset();
+		int end = postings.endOffset();
+		if (start >= 0 && end >= start) {
+		    occurrences.add(start, end, t);
+		}
+	    }
+	}
+	occurrences.sort();
+	return occurrences;
+    }
+
+    private static void appendEscaped(StringBuilder out, String s, int begin, int end) {
+	for (int i = begin; i < end; ++i) {
+	    char c = s.charAt(i);
+	    switch (c) {
+	    case '<': out.append("&lt;"); break;
+	    case '>': out.append("&gt;"); break;
+	    case '&': out.append("&amp;"); break;
+	    case '"': out.append("&quot;"); break;
+	    default: out.append(c);
+	    }
+	}
+    }
+}
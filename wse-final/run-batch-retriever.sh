@@ -0,0 +1,9 @@
+#!/bin/bash
+# Runs the queries of a file (one per line, optionally "qid<TAB>query") against an index
+# and writes a TREC run to standard output. Extra arguments are passed on, e.g. -t 8 or --format json.
+
+INDEX_DIR=$1
+QUERIES=$2
+shift 2
+
+java -cp ".:./Lucene/lucene-core-5.4.1.jar:./Lucene/lucene-analyzers-common-5.4.1.jar:./Lucene/lucene-queryparser-5.4.1.jar:./JTidy/jtidy-r938.jar:./cli/commons-cli-1.3.1.jar" retriever.BatchRetriever -i $INDEX_DIR --queries "$QUERIES" "$@"
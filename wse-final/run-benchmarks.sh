@@ -0,0 +1,30 @@
+#!/bin/bash
+
+# Builds and runs the JMH benchmarks in benchmark/ with the gc profiler, which adds the
+# allocation rate to the throughput and latency of each benchmark. JMH is not shipped
+# with the project: put jmh-core, jmh-generator-annprocess, jopt-simple and
+# commons-math3 jars into ./jmh, or point JMH_DIR at a directory that holds them.
+# Arguments are passed on to JMH, e.g. to select benchmarks and parameters:
+#
+#   ./run-benchmarks.sh ParseBenchmark -p corpusSize=1000
+#   ./run-benchmarks.sh -l
+
+JMH_DIR=${JMH_DIR:-./jmh}
+
+if ! ls "$JMH_DIR"/jmh-core-*.jar > /dev/null 2>&1; then
+    echo "JMH jars not found in $JMH_DIR; set JMH_DIR to the directory holding jmh-core," \
+	 "jmh-generator-annprocess, jopt-simple and commons-math3."
+    exit 1
+fi
+
+./build.sh
+
+CP="./evaluator:./util:./indexer:./htmlparser:./Lucene/lucene-core-5.4.1.jar:./Lucene/lucene-analyzers-common-5.4.1.jar:./Lucene/lucene-queryparser-5.4.1.jar:./JTidy/jtidy-r938.jar:./cli/commons-cli-1.3.1.jar:./jwi/edu.mit.jwi_2.4.0.jar:."
+for jar in "$JMH_DIR"/*.jar; do
+    CP="$CP:$jar"
+done
+
+mkdir -p jmh-classes
+javac -cp "$CP" -d jmh-classes benchmark/*.java || exit 1
+
+java -cp "jmh-classes:$CP" org.openjdk.jmh.Main -prof gc "$@"
@@ -0,0 +1,9 @@
+#!/bin/bash
+# Usage: ./run-corpus-synthesizer.sh NUM_PAGES [THREADS]
+
+OUTPUT_DIR=output-synthetic
+TRUTH_FILE=output-synthetic-truth.txt
+
+rm -rf $OUTPUT_DIR
+
+java -cp ".:./cli/commons-cli-1.3.1.jar:./JTidy/jtidy-r938.jar:./jwi/edu.mit.jwi_2.4.0.jar:./Lucene/lucene-core-5.4.1.jar:./Lucene/lucene-analyzers-common-5.4.1.jar" evaluator.CorpusSynthesizer -o $OUTPUT_DIR -d dict -n ${1:-100000} -t ${2:-1} --truth $TRUTH_FILE
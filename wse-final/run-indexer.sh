@@ -4,8 +4,17 @@
 INPUT_DIR=output-wiki
 INDEX_DIR=index
 
-rm -rf $INDEX_DIR
+# Pass --incremental to update the existing index instead of rebuilding it, and
+# --warm-start as well to start PageRank from the scores of the previous build.
+INCREMENTAL=0
+for ARG in "$@"; do
+    if [ "$ARG" = "--incremental" ]; then
+        INCREMENTAL=1
+    fi
+done
+if [ $INCREMENTAL = 0 ]; then
+    rm -rf $INDEX_DIR
+    mkdir $INDEX_DIR
+fi
 
-mkdir $INDEX_DIR
-
-java -cp ".:./cli/commons-cli-1.3.1.jar:./JTidy/jtidy-r938.jar:./jwi/edu.mit.jwi_2.4.0.jar:./Lucene/lucene-core-5.4.1.jar:./Lucene/lucene-analyzers-common-5.4.1.jar" indexer.Main -docs $INPUT_DIR -index $INDEX_DIR
+java -cp ".:./cli/commons-cli-1.3.1.jar:./JTidy/jtidy-r938.jar:./jwi/edu.mit.jwi_2.4.0.jar:./Lucene/lucene-core-5.4.1.jar:./Lucene/lucene-analyzers-common-5.4.1.jar" indexer.Main -docs $INPUT_DIR -index $INDEX_DIR "$@"
@@ -0,0 +1,9 @@
+#!/bin/bash
+
+# Checks that PageRank still computes the scores in wiki-input.pagerank for wiki-input.
+# Run ./build.sh first. Exits with status 1 if a score differs.
+
+INPUT_DIR=wiki-input
+SCORES=wiki-input.pagerank
+
+java -cp ".:./cli/commons-cli-1.3.1.jar:./JTidy/jtidy-r938.jar:./jwi/edu.mit.jwi_2.4.0.jar:./Lucene/lucene-core-5.4.1.jar:./Lucene/lucene-analyzers-common-5.4.1.jar" indexer.PageRankCheck -d $INPUT_DIR -s $SCORES "$@"
@@ -0,0 +1,10 @@
+#!/bin/bash
+# Starts the resident search server on the given index (default: index) and port (default: 8580).
+# Extra arguments are passed on, e.g. --directory mmap --warmup-queries head-queries.txt to
+# serve a memory-mapped index that is warmed up with the head queries first.
+
+INDEX_DIR=${1:-index}
+PORT=${2:-8580}
+shift $(( $# < 2 ? $# : 2 ))
+
+java -Xmx512M -cp ".:./Lucene/lucene-core-5.4.1.jar:./Lucene/lucene-analyzers-common-5.4.1.jar:./Lucene/lucene-queryparser-5.4.1.jar:./JTidy/jtidy-r938.jar:./cli/commons-cli-1.3.1.jar" retriever.SearchServer -i $INDEX_DIR -p $PORT "$@"
@@ -0,0 +1,154 @@
+package util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Assigns dense int ids 0..size()-1 to document names, in the order the names are
+ * added. The names are stored once, as UTF-8 bytes in a single growing byte arena,
+ * and are found through an open-addressing hash table of ids. This takes a few
+ * bytes per document on top of the name itself, instead of the boxed keys, entries
+ * and duplicated strings of a pair of HashMaps, so the indexer, PageRank and the
+ * union-find over clusters can all work on int ids and primitive arrays.
+ * <p>
+ * The dictionary is not synchronized. Once it is built, it can be read from many
+ * threads.
+ */
+public class DocDictionary {
+
+    // Load factor beyond which the hash table is doubled.
+    private static final double MAX_LOAD = 0.5;
+
+    // The UTF-8 bytes of all names, one after the other.
+    private byte[] arena_;
+    private int arenaSize_;
+
+    // The name of id i is arena_[offsets_[i], offsets_[i + 1]).
+    private int[] offsets_;
+
+    // The hash of each name, so that growing the table doesn't rehash the bytes.
+    private int[] hashes_;
+
+    private int size_;
+
+    // Open-addressing table with linear probing, holding id + 1, or 0 for an empty slot.
+    // Its length is a power of two.
+    private int[] table_;
+
+    public DocDictionary() {
+	this(16);
+    }
+
+    public DocDictionary(int expectedSize) {
+	int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / MAX_LOAD)) * 2 - 1);
+	arena_ = new byte[Math.max(64, expectedSize * 16)];
+	arenaSize_ = 0;
+	offsets_ = new int[Math.max(16, expectedSize) + 1];
+	hashes_ = new int[Math.max(16, expectedSize)];
+	size_ = 0;
+	table_ = new int[capacity];
+    }
+
+    public int size() {
+	return size_;
+    }
+
+    // Returns the id of the name, adding it to the dictionary if it's not there yet.
+    public int add(String name) {
+	byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+	int hash = hash(bytes);
+	int slot = find(bytes, hash);
+	if (table_[slot] != 0) {
+	    return table_[slot] - 1;
+	}
+	int id = size_++;
+	if (id == hashes_.length) {
+	    hashes_ = Arrays.copyOf(hashes_, id * 2);
+	    offsets_ = Arrays.copyOf(offsets_, id * 2 + 1);
+	}
+	if (arenaSize_ + bytes.length > arena_.length) {
+	    arena_ = Arrays.copyOf(arena_, Math.max(arena_.length * 2, arenaSize_ + bytes.length));
+	}
+	System.arraycopy(bytes, 0, arena_, arenaSize_, bytes.length);
+	arenaSize_ += bytes.length;
+	offsets_[id + 1] = arenaSize_;
+	hashes_[id] = hash;
+	table_[slot] = id + 1;
+	if (size_ > table_.length * MAX_LOAD) {
+	    grow();
+	}
+	return id;
+    }
+
+    // Returns the id of the name, or -1 if it's not in the dictionary.
+    public int getId(String name) {
+	byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+	return table_[find(bytes, hash(bytes))] - 1;
+    }
+
+    public String getName(int id) {
+	if (id < 0 || id >= size_) {
+	    throw new IndexOutOfBoundsException("No document with id " + id);
+	}
+	return new String(arena_, offsets_[id], offsets_[id + 1] - offsets_[id], StandardCharsets.UTF_8);
+    }
+
+    // Approximate number of bytes used by the dictionary.
+    public long bytesUsed() {
+	return arena_.length + 4L * (offsets_.length + hashes_.length + table_.length);
+    }
+
+    // Returns the slot of the name in the table, or the empty slot where it would go.
+    private int find(byte[] bytes, int hash) {
+	int mask = table_.length - 1;
+	int slot = hash & mask;
+	while (table_[slot] != 0) {
+	    int id = table_[slot] - 1;
+	    if (hashes_[id] == hash && equalsName(id, bytes)) {
+		return slot;
+	    }
+	    slot = (slot + 1) & mask;
+	}
+	return slot;
+    }
+
+    private boolean equalsName(int id, byte[] bytes) {
+	int begin = offsets_[id];
+	if (offsets_[id + 1] - begin != bytes.length) {
+	    return false;
+	}
+	for (int i = 0; i < bytes.length; ++i) {
+	    if (arena_[begin + i] != bytes[i]) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    // Doubles the table and reinserts the ids, using the stored hashes.
+    private void grow() {
+	int[] table = new int[table_.length * 2];
+	int mask = table.length - 1;
+	for (int id = 0; id < size_; ++id) {
+	    int slot = hashes_[id] & mask;
+	    while (table[slot] != 0) {
+		slot = (slot + 1) & mask;
+	    }
+	    table[slot] = id + 1;
+	}
+	table_ = table;
+    }
+
+    // 32-bit FNV-1a, with a final mix so that the low bits used for the slot are well spread.
+    private static int hash(byte[] bytes) {
+	int h = 0x811c9dc5;
+	for (byte b : bytes) {
+	    h ^= (b & 0xff);
+	    h *= 0x01000193;
+	}
+	h ^= h >>> 16;
+	h *= 0x85ebca6b;
+	h ^= h >>> 13;
+	return h;
+    }
+}
@@ -0,0 +1,166 @@
+package util;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Discovers the documents under a directory. The tree is walked depth-first with
+ * DirectoryStream, visiting the entries of each directory sorted by name, so every
+ * walk of the same tree yields the documents in the same order. Hidden files and
+ * directories are skipped without touching the disk, and the attributes of every
+ * other entry are read once, with a single stat call: the size and modification
+ * time of each document come with the entry.
+ * <p>
+ * iterate() produces the entries lazily and only holds the listings of the
+ * directories on the current path, so it can walk very large crawls. list()
+ * collects them into a list.
+ */
+public class DocumentWalker {
+
+    // A document found by the walker.
+    public static class Entry {
+	public final Path path;
+	public final long size;
+	public final long lastModified;
+
+	public Entry(Path path, long size, long lastModified) {
+	    this.path = path;
+	    this.size = size;
+	    this.lastModified = lastModified;
+	}
+
+	public File toFile() {
+	    return path.toFile();
+	}
+
+	// The basename of the document, e.g. z.html for y/z.html
+	public String getName() {
+	    return path.getFileName().toString();
+	}
+
+	public String toString() {
+	    return path.toString();
+	}
+    }
+
+    private static final Comparator<Path> BY_NAME = new Comparator<Path>() {
+	public int compare(Path a, Path b) {
+	    return a.getFileName().toString().compareTo(b.getFileName().toString());
+	}
+    };
+
+    // Lists the documents under root that pass the filter (null accepts all of them).
+    // Returns an empty list when there are none.
+    public static List<Entry> list(String root, FileFilter filter) throws IOException {
+	List<Entry> entries = new ArrayList<Entry>();
+	try {
+	    Iterator<Entry> it = iterate(root, filter);
+	    while (it.hasNext()) {
+		entries.add(it.next());
+	    }
+	} catch (UncheckedIOException e) {
+	    throw e.getCause();
+	}
+	return entries;
+    }
+
+    public static List<Entry> list(String root) throws IOException {
+	return list(root, null);
+    }
+
+    // Walks the documents under root that pass the filter lazily, in the same order as
+    // list(). I/O errors during the walk are thrown as UncheckedIOException.
+    public static Iterator<Entry> iterate(String root, FileFilter filter) throws IOException {
+	return new LazyIterator(FileSystems.getDefault().getPath(root), filter);
+    }
+
+    private static class LazyIterator implements Iterator<Entry> {
+	private final FileFilter filter_;
+
+	// The remaining entries of the directories on the current path, innermost first.
+	private final Deque<Iterator<Path>> pending_;
+
+	private Entry next_;
+
+	LazyIterator(Path root, FileFilter filter) throws IOException {
+	    filter_ = filter;
+	    pending_ = new ArrayDeque<Iterator<Path>>();
+	    pending_.push(listDirectory(root));
+	    advance();
+	}
+
+	public boolean hasNext() {
+	    return next_ != null;
+	}
+
+	public Entry next() {
+	    if (next_ == null) {
+		throw new NoSuchElementException();
+	    }
+	    Entry entry = next_;
+	    try {
+		advance();
+	    } catch (IOException e) {
+		throw new UncheckedIOException(e);
+	    }
+	    return entry;
+	}
+
+	public void remove() {
+	    throw new UnsupportedOperationException();
+	}
+
+	// Moves to the next document, descending into directories on the way.
+	private void advance() throws IOException {
+	    next_ = null;
+	    while (next_ == null && !pending_.isEmpty()) {
+		Iterator<Path> it = pending_.peek();
+		if (!it.hasNext()) {
+		    pending_.pop();
+		    continue;
+		}
+		Path path = it.next();
+		if (Files.isHidden(path)) {
+		    continue;
+		}
+		BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+		if (attrs.isDirectory()) {
+		    pending_.push(listDirectory(path));
+		} else if (attrs.isRegularFile() &&
+			   (filter_ == null || filter_.accept(path.toFile()))) {
+		    next_ = new Entry(path, attrs.size(), attrs.lastModifiedTime().toMillis());
+		}
+	    }
+	}
+    }
+
+    // Reads the entries of one directory, sorted by name.
+    private static Iterator<Path> listDirectory(Path dir) throws IOException {
+	List<Path> paths = new ArrayList<Path>();
+	DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+	try {
+	    for (Path path : stream) {
+		paths.add(path);
+	    }
+	} finally {
+	    stream.close();
+	}
+	Collections.sort(paths, BY_NAME);
+	return paths.iterator();
+    }
+}
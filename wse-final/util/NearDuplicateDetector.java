@@ -0,0 +1,335 @@
+package util;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+
+/**
+ * Finds near-duplicate documents using word shingles, MinHash signatures and
+ * LSH banding. This is the in-JVM replacement for python/findShingles.py.
+ * <p>
+ * Each document is reduced to the set of its k-word shingles, and every shingle
+ * is hashed to a 64-bit value. The signature of a document is a primitive
+ * <tt>long[]</tt> holding, for each of the <em>numHashes</em> hash functions,
+ * the minimum hashed shingle value. The fraction of positions in which two
+ * signatures agree estimates the Jaccard similarity of the two shingle sets.
+ * <p>
+ * Instead of comparing every pair of documents, the signatures are cut into
+ * <em>numBands</em> bands of <em>numHashes / numBands</em> rows. Only documents that
+ * agree on every row of at least one band become candidate pairs, and only the
+ * candidates are checked against the similarity threshold.
+ */
+public class NearDuplicateDetector {
+
+    // Number of words in a shingle (same as the python implementation).
+    public static final int DEFAULT_SHINGLE_SIZE = 4;
+
+    // Number of MinHash functions, i.e. the signature length.
+    public static final int DEFAULT_NUM_HASHES = 200;
+
+    // Number of LSH bands. With 50 bands of 4 rows, pairs with a similarity
+    // of 0.6 become candidates with a probability of 1 - (1 - 0.6^4)^50, over 99.9%,
+    // so at the default threshold practically no pair that comparing every pair
+    // would report is missed.
+    public static final int DEFAULT_NUM_BANDS = 50;
+
+    // Minimum fraction of agreeing signature positions for a pair to be reported.
+    public static final double DEFAULT_THRESHOLD = 0.6;
+
+    // Seed for the hash functions, so that signatures are stable between runs.
+    private static final long SEED = 0x5DEECE66DL;
+
+    private final int shingleSize_;
+    private final int numHashes_;
+    private final int numBands_;
+    private final int rowsPerBand_;
+    private final double threshold_;
+
+    // The hash function i maps a shingle hash x to mix64(x * multipliers_[i] + addends_[i]).
+    private final long[] multipliers_;
+    private final long[] addends_;
+
+    // Names of the documents, in the order in which they were added.
+    private String[] names_;
+
+    // Signatures of all documents, numHashes_ values per document.
+    private long[] signatures_;
+
+    // Whether the document had any words at all. Empty documents are never duplicates.
+    private boolean[] nonEmpty_;
+
+    // Number of documents added so far.
+    private int numDocs_;
+
+    public NearDuplicateDetector() {
+        this(DEFAULT_SHINGLE_SIZE, DEFAULT_NUM_HASHES, DEFAULT_NUM_BANDS, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param shingleSize the number of words in a shingle
+     * @param numHashes the signature length
+     * @param numBands the number of LSH bands; must divide <tt>numHashes</tt>
+     * @param threshold the minimum estimated similarity of reported pairs, in [0, 1]
+     * @throws IllegalArgumentException if the parameters are inconsistent
+     */
+    public NearDuplicateDetector(int shingleSize, int numHashes, int numBands, double threshold) {
+        if (shingleSize < 1 || numHashes < 1 || numBands < 1 || numHashes % numBands != 0) {
+            throw new IllegalArgumentException("numBands must divide numHashes and all sizes must be positive");
+        }
+        if (threshold < 0.0 || threshold > 1.0) {
+            throw new IllegalArgumentException("threshold must be between 0 and 1");
+        }
+        shingleSize_ = shingleSize;
+        numHashes_ = numHashes;
+        numBands_ = numBands;
+        rowsPerBand_ = numHashes / numBands;
+        threshold_ = threshold;
+        multipliers_ = new long[numHashes];
+        addends_ = new long[numHashes];
+        Random random = new Random(SEED);
+        for (int i = 0; i < numHashes; ++i) {
+            multipliers_[i] = random.nextLong() | 1L;
+            addends_[i] = random.nextLong();
+        }
+        names_ = new String[16];
+        signatures_ = new long[16 * numHashes];
+        nonEmpty_ = new boolean[16];
+        numDocs_ = 0;
+    }
+
+    // Adds the command line options that configure the detector.
+    public static void addOptions(Options options) {
+        options.addOption(OptionBuilder.withLongOpt("shingle-size")
+                          .withDescription("Number of words in a shingle (default " + DEFAULT_SHINGLE_SIZE + ")")
+                          .hasArg()
+                          .create());
+        options.addOption(OptionBuilder.withLongOpt("num-hashes")
+                          .withDescription("MinHash signature length (default " + DEFAULT_NUM_HASHES + ")")
+                          .hasArg()
+                          .create());
+        options.addOption(OptionBuilder.withLongOpt("bands")
+                          .withDescription("Number of LSH bands, must divide num-hashes (default " + DEFAULT_NUM_BANDS + ")")
+                          .hasArg()
+                          .create());
+        options.addOption(OptionBuilder.withLongOpt("threshold")
+                          .withDescription("Similarity threshold for duplicates (default " + DEFAULT_THRESHOLD + ")")
+                          .hasArg()
+                          .create());
+    }
+
+    // Creates a detector configured by the options added with addOptions.
+    public static NearDuplicateDetector fromCommandLine(CommandLine cmd) {
+        int shingleSize = Integer.parseInt(cmd.getOptionValue("shingle-size", "" + DEFAULT_SHINGLE_SIZE));
+        int numHashes = Integer.parseInt(cmd.getOptionValue("num-hashes", "" + DEFAULT_NUM_HASHES));
+        int numBands = Integer.parseInt(cmd.getOptionValue("bands", "" + DEFAULT_NUM_BANDS));
+        double threshold = Double.parseDouble(cmd.getOptionValue("threshold", "" + DEFAULT_THRESHOLD));
+        return new NearDuplicateDetector(shingleSize, numHashes, numBands, threshold);
+    }
+
+    public int getShingleSize() {
+        return shingleSize_;
+    }
+
+    public int getNumHashes() {
+        return numHashes_;
+    }
+
+    public int getNumBands() {
+        return numBands_;
+    }
+
+    public double getThreshold() {
+        return threshold_;
+    }
+
+    public int numDocs() {
+        return numDocs_;
+    }
+
+    /**
+     * Shingles, signs and records a document.
+     *
+     * @param name the name reported for this document in duplicate pairs
+     * @param text the text of the document
+     * @return the position of the document in this detector
+     */
+    public int addDocument(String name, String text) {
+        long[] signature = new long[numHashes_];
+        boolean nonEmpty = sign(text, signature);
+        return addSignature(name, signature, nonEmpty);
+    }
+
+    // Records an already computed signature.
+    int addSignature(String name, long[] signature, boolean nonEmpty) {
+        if (numDocs_ == names_.length) {
+            int capacity = names_.length * 2;
+            names_ = Arrays.copyOf(names_, capacity);
+            nonEmpty_ = Arrays.copyOf(nonEmpty_, capacity);
+            signatures_ = Arrays.copyOf(signatures_, capacity * numHashes_);
+        }
+        names_[numDocs_] = name;
+        nonEmpty_[numDocs_] = nonEmpty;
+        System.arraycopy(signature, 0, signatures_, numDocs_ * numHashes_, numHashes_);
+        return numDocs_++;
+    }
+
+    /**
+     * Computes the MinHash signature of a text into <tt>signature</tt>, which must
+     * hold at least <tt>getNumHashes()</tt> values.
+     *
+     * @return false if the text has no words
+     */
+    public boolean sign(String text, long[] signature) {
+        long[] shingles = shingle(text);
+        Arrays.fill(signature, 0, numHashes_, Long.MAX_VALUE);
+        if (shingles.length == 0) {
+            return false;
+        }
+        for (int i = 0; i < numHashes_; ++i) {
+            long a = multipliers_[i];
+            long b = addends_[i];
+            long min = Long.MAX_VALUE;
+            for (long s : shingles) {
+                long h = mix64(s * a + b);
+                if (h < min) {
+                    min = h;
+                }
+            }
+            signature[i] = min;
+        }
+        return true;
+    }
+
+    // Returns the distinct hashes of the k-word shingles of a text. Words are
+    // separated by whitespace. A text with fewer than k words is a single shingle.
+    private long[] shingle(String text) {
+        String[] tokens = text.trim().split("\\s+");
+        int numWords = (tokens.length == 1 && tokens[0].isEmpty()) ? 0 : tokens.length;
+        if (numWords == 0) {
+            return new long[0];
+        }
+        long[] wordHashes = new long[numWords];
+        for (int i = 0; i < numWords; ++i) {
+            wordHashes[i] = mix64(tokens[i].hashCode() + 0x9E3779B97F4A7C15L * (tokens[i].length() + 1));
+        }
+        int k = Math.min(shingleSize_, numWords);
+        long[] shingles = new long[numWords - k + 1];
+        for (int i = 0; i < shingles.length; ++i) {
+            long h = 0;
+            for (int j = 0; j < k; ++j) {
+                h = mix64(h ^ wordHashes[i + j]);
+            }
+            shingles[i] = h;
+        }
+        Arrays.sort(shingles);
+        int distinct = 0;
+        for (int i = 0; i < shingles.length; ++i) {
+            if (i == 0 || shingles[i] != shingles[i - 1]) {
+                shingles[distinct++] = shingles[i];
+            }
+        }
+        return Arrays.copyOf(shingles, distinct);
+    }
+
+    /**
+     * Returns the pairs of documents whose estimated similarity exceeds the threshold,
+     * formatted as "nameA,nameB" with nameA lexicographically smaller than nameB
+     * (the same format as the output of python/findShingles.py).
+     */
+    public Set<String> findDuplicatePairs() {
+        Set<String> pairs = new HashSet<String>();
+        for (long candidate : findCandidatePairs()) {
+            int i = (int) (candidate >>> 32);
+            int j = (int) candidate;
+            if (similarity(i, j) > threshold_) {
+                pairs.add(formatPair(names_[i], names_[j]));
+            }
+        }
+        return pairs;
+    }
+
+    // Returns the candidate pairs produced by LSH banding. A pair (i, j) with i < j
+    // is packed into a long as (i << 32) | j.
+    private Set<Long> findCandidatePairs() {
+        Set<Long> candidates = new HashSet<Long>();
+        long[] keys = new long[numDocs_];
+        for (int band = 0; band < numBands_; ++band) {
+            int numKeys = 0;
+            for (int doc = 0; doc < numDocs_; ++doc) {
+                if (nonEmpty_[doc]) {
+                    // The upper 32 bits hold the bucket, the lower 32 bits the document.
+                    keys[numKeys++] = (bandHash(doc, band) & 0xFFFFFFFF00000000L) | doc;
+                }
+            }
+            Arrays.sort(keys, 0, numKeys);
+            int start = 0;
+            while (start < numKeys) {
+                int end = start + 1;
+                while (end < numKeys && (keys[end] >>> 32) == (keys[start] >>> 32)) {
+                    end++;
+                }
+                for (int x = start; x < end; ++x) {
+                    for (int y = x + 1; y < end; ++y) {
+                        long i = keys[x] & 0xFFFFFFFFL;
+                        long j = keys[y] & 0xFFFFFFFFL;
+                        candidates.add((i << 32) | j);
+                    }
+                }
+                start = end;
+            }
+        }
+        return candidates;
+    }
+
+    // Hashes the rows of one band of a document's signature.
+    private long bandHash(int doc, int band) {
+        return bandHash(signatures_, doc * numHashes_, band);
+    }
+
+    // Hashes the rows of one band of the signature that starts at offset in signatures.
+    // Documents whose band hashes agree in the upper 32 bits share an LSH bucket.
+    long bandHash(long[] signatures, int offset, int band) {
+        offset += band * rowsPerBand_;
+        long h = band;
+        for (int r = 0; r < rowsPerBand_; ++r) {
+            h = mix64(h ^ signatures[offset + r]);
+        }
+        return h;
+    }
+
+    /**
+     * Returns the fraction of signature positions in which documents i and j agree,
+     * which estimates the Jaccard similarity of their shingle sets.
+     */
+    public double similarity(int i, int j) {
+        int offsetI = i * numHashes_;
+        int offsetJ = j * numHashes_;
+        int agree = 0;
+        for (int h = 0; h < numHashes_; ++h) {
+            if (signatures_[offsetI + h] == signatures_[offsetJ + h]) {
+                agree++;
+            }
+        }
+        return agree / (numHashes_ + 0.0);
+    }
+
+    public String getName(int doc) {
+        return names_[doc];
+    }
+
+    // Formats a pair of document names with the lexicographically smaller name first.
+    static String formatPair(String a, String b) {
+        return a.compareTo(b) < 0 ? a + "," + b : b + "," + a;
+    }
+
+    // The 64-bit finalizer of MurmurHash3.
+    static long mix64(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+}
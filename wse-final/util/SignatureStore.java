@@ -0,0 +1,781 @@
+package util;
+
+import htmlparser.ParsedPage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A persistent store of the MinHash signatures of a collection and of their LSH buckets,
+ * kept in the index directory, so that a build only shingles and signs the documents
+ * that are new or changed since the previous build, and compares them only with the
+ * documents in their buckets. The duplicate pairs between unchanged documents are kept
+ * from the previous build. The pairs found are the same as those of
+ * NearDuplicateDetector.findDuplicatePairs() over the whole collection.
+ * <p>
+ * The store consists of four files:
+ * <ul>
+ * <li>minhash.sig: a header, then a fixed-width record per document: its content hash,
+ *     its flags and its signature. It is memory-mapped, and records are only appended.
+ * <li>minhash.lsh.G: sorted runs of (bucket, record) entries, a run per build, where the
+ *     bucket holds the band and the upper 32 bits of its hash. It is memory-mapped, and
+ *     the bucket of a new document is found by a binary search in every run.
+ * <li>minhash.names.G: the name of the document of every record, a line each.
+ * <li>minhash.state.V: the dead records, whose document was changed or removed, and the
+ *     duplicate pairs of records found so far.
+ * </ul>
+ * G is the generation of the store, which changes when the store is rewritten, and V the
+ * version of its state, which changes with every build. The header of minhash.sig is
+ * written last and holds the number of records, G, V and the valid lengths of the
+ * appended files, so a build that fails half-way leaves the previous state: the records,
+ * runs and names it appended lie beyond the lengths in the header, and the header doesn't
+ * refer to its state file. When the dead records outnumber the live ones, or there are
+ * more than MAX_RUNS runs, the store is compacted: it is rewritten in a new generation
+ * with only the live records and a single run, which needs the band hashes of every
+ * signature but no shingling.
+ * <p>
+ * A store written with other detector parameters, or that is incomplete, is discarded
+ * and rebuilt.
+ */
+public class SignatureStore {
+
+    // Prefix of the names of the files of the store in the index directory.
+    public static final String FILE_PREFIX = "minhash";
+
+    private static final String SIGNATURES_FILE = FILE_PREFIX + ".sig";
+    private static final String BUCKETS_FILE = FILE_PREFIX + ".lsh.";
+    private static final String NAMES_FILE = FILE_PREFIX + ".names.";
+    private static final String STATE_FILE = FILE_PREFIX + ".state.";
+
+    private static final long MAGIC = 0x574D48534947L;  // "WMHSIG"
+    private static final long VERSION = 2;
+
+    // The header of minhash.sig: magic, version, shingle size, number of hashes, number of
+    // bands, threshold bits, number of records, generation, length of minhash.lsh.G, length
+    // of minhash.names.G, and the version of the state.
+    private static final int HEADER_LONGS = 11;
+    private static final int HEADER_BYTES = HEADER_LONGS * 8;
+
+    // The flags of a record.
+    private static final long NON_EMPTY = 2;
+
+    // Maximum number of runs in minhash.lsh.G before the store is compacted.
+    private static final int MAX_RUNS = 16;
+
+    // Maximum size of a mapped region of minhash.sig.
+    private static final long MAX_CHUNK_BYTES = 1L << 30;
+
+    private final Path dir_;
+    private final NearDuplicateDetector detector_;
+    private final int numHashes_;
+    private final int numBands_;
+
+    // Number of longs in a record: the content hash, the flags and the signature.
+    private final int recordLongs_;
+
+    private FileChannel signatureChannel_;
+
+    // The records, in chunks of recordsPerChunk_ records.
+    private LongBuffer[] records_;
+    private int recordsPerChunk_;
+
+    // The runs of minhash.lsh.G, two longs per entry.
+    private List<LongBuffer> runs_;
+
+    private int numRecords_;
+    private long generation_;
+    private long bucketsLength_;
+    private long namesLength_;
+    private long stateVersion_;
+
+    // The name of the document of every record, and the live record of every name.
+    private List<String> names_;
+    private Map<String, Integer> liveRecords_;
+
+    // The dead records. They are only written with the state of a build, so the previous
+    // state stays intact until the header commits the new one.
+    private BitSet dead_;
+
+    // The duplicate pairs of records, packed as (lower << 32) | higher.
+    private long[] pairs_;
+
+    private int numSigned_;
+    private int numReused_;
+    private int numCandidates_;
+    private boolean compacted_;
+
+    private SignatureStore(Path dir, NearDuplicateDetector detector) {
+	dir_ = dir;
+	detector_ = detector;
+	numHashes_ = detector.getNumHashes();
+	numBands_ = detector.getNumBands();
+	recordLongs_ = 2 + numHashes_;
+	recordsPerChunk_ = (int) (MAX_CHUNK_BYTES / (recordLongs_ * 8L));
+	records_ = new LongBuffer[0];
+	runs_ = new ArrayList<LongBuffer>();
+	names_ = new ArrayList<String>();
+	liveRecords_ = new HashMap<String, Integer>();
+	dead_ = new BitSet();
+	pairs_ = new long[0];
+    }
+
+    /**
+     * Opens the store in a directory for the given detector.
+     *
+     * @param reset if true, or if the store was written with other detector parameters,
+     *     the existing store is deleted and every document is signed again
+     */
+    public static SignatureStore open(Path dir, NearDuplicateDetector detector, boolean reset)
+	throws IOException {
+	SignatureStore store = new SignatureStore(dir, detector);
+	if (!reset && Files.exists(dir.resolve(SIGNATURES_FILE)) && store.load()) {
+	    // Remove what a build that failed after the last commit left behind.
+	    store.deleteFiles(true);
+	} else {
+	    // The store is rewritten from generation 1, so no file of an earlier store may be
+	    // mistaken for one of the new store.
+	    store.deleteFiles(false);
+	}
+	return store;
+    }
+
+    // Loads the store, and returns false if it can't be used.
+    private boolean load() throws IOException {
+	FileChannel channel = FileChannel.open(dir_.resolve(SIGNATURES_FILE), StandardOpenOption.READ,
+					       StandardOpenOption.WRITE);
+	boolean loaded = false;
+	try {
+	    loaded = load(channel);
+	} finally {
+	    if (!loaded) {
+		channel.close();
+	    }
+	}
+	return loaded;
+    }
+
+    private boolean load(FileChannel channel) throws IOException {
+	long[] header = new long[HEADER_LONGS];
+	ByteBuffer headerBytes = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+	if (channel.size() < HEADER_BYTES || channel.read(headerBytes, 0) < HEADER_BYTES) {
+	    return false;
+	}
+	headerBytes.flip();
+	headerBytes.asLongBuffer().get(header);
+	if (header[0] != MAGIC || header[1] != VERSION || header[2] != detector_.getShingleSize() ||
+	    header[3] != numHashes_ || header[4] != numBands_ ||
+	    header[5] != Double.doubleToLongBits(detector_.getThreshold())) {
+	    return false;
+	}
+	int numRecords = (int) header[6];
+	long generation = header[7];
+	long bucketsLength = header[8];
+	long namesLength = header[9];
+	long stateVersion = header[10];
+	if (channel.size() < HEADER_BYTES + (long) numRecords * recordLongs_ * 8) {
+	    return false;
+	}
+	List<String> names = readNames(generation, namesLength, numRecords);
+	List<LongBuffer> runs = mapRuns(generation, bucketsLength);
+	BitSet dead = new BitSet(numRecords);
+	long[] pairs = readState(stateVersion, numRecords, dead);
+	if (names == null || runs == null || pairs == null) {
+	    return false;
+	}
+	signatureChannel_ = channel;
+	numRecords_ = numRecords;
+	generation_ = generation;
+	bucketsLength_ = bucketsLength;
+	namesLength_ = namesLength;
+	stateVersion_ = stateVersion;
+	names_ = names;
+	runs_ = runs;
+	dead_ = dead;
+	pairs_ = pairs;
+	records_ = mapRecords(channel, numRecords);
+	for (int record = 0; record < numRecords; ++record) {
+	    if (!dead_.get(record)) {
+		liveRecords_.put(names_.get(record), record);
+	    }
+	}
+	return true;
+    }
+
+    // Maps the records of minhash.sig in chunks that fit in a MappedByteBuffer.
+    private LongBuffer[] mapRecords(FileChannel channel, int numRecords) throws IOException {
+	int numChunks = (numRecords + recordsPerChunk_ - 1) / recordsPerChunk_;
+	LongBuffer[] chunks = new LongBuffer[numChunks];
+	for (int chunk = 0; chunk < numChunks; ++chunk) {
+	    long first = (long) chunk * recordsPerChunk_;
+	    long count = Math.min(recordsPerChunk_, numRecords - first);
+	    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+						  HEADER_BYTES + first * recordLongs_ * 8, count * recordLongs_ * 8);
+	    chunks[chunk] = buffer.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+	}
+	return chunks;
+    }
+
+    // Maps the runs of minhash.lsh.G up to its valid length, or returns null if the file is
+    // missing or malformed. Entries of records that aren't live are skipped by update().
+    private List<LongBuffer> mapRuns(long generation, long length) throws IOException {
+	Path file = dir_.resolve(BUCKETS_FILE + generation);
+	if (!Files.exists(file)) {
+	    return null;
+	}
+	FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+	try {
+	    if (channel.size() < length) {
+		return null;
+	    }
+	    List<LongBuffer> runs = new ArrayList<LongBuffer>();
+	    LongBuffer all = channel.map(FileChannel.MapMode.READ_ONLY, 0, length)
+		.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+	    int position = 0;
+	    while (position < all.limit()) {
+		long numEntries = all.get(position);
+		if (numEntries < 0 || position + 1 + 2 * numEntries > all.limit()) {
+		    return null;
+		}
+		all.position(position + 1);
+		LongBuffer run = all.slice();
+		run.limit((int) (2 * numEntries));
+		runs.add(run);
+		position += 1 + 2 * (int) numEntries;
+	    }
+	    return runs;
+	} finally {
+	    // The mappings stay valid after the channel is closed.
+	    channel.close();
+	}
+    }
+
+    private List<String> readNames(long generation, long length, int numRecords) throws IOException {
+	Path file = dir_.resolve(NAMES_FILE + generation);
+	if (!Files.exists(file) || Files.size(file) < length) {
+	    return null;
+	}
+	byte[] bytes = Files.readAllBytes(file);
+	String[] lines = new String(bytes, 0, (int) length, StandardCharsets.UTF_8).split("\n", -1);
+	if (lines.length < numRecords) {
+	    return null;
+	}
+	return new ArrayList<String>(Arrays.asList(lines).subList(0, numRecords));
+    }
+
+    // Reads the dead records of a state into dead, and returns its pairs, or null if the
+    // state file is missing or refers to records beyond the given number.
+    private long[] readState(long version, int numRecords, BitSet dead) throws IOException {
+	Path file = dir_.resolve(STATE_FILE + version);
+	if (!Files.exists(file)) {
+	    return null;
+	}
+	LongBuffer longs = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+	if (longs.limit() < 1 || longs.get(0) < 0 || longs.get(0) > longs.limit() - 1) {
+	    return null;
+	}
+	int numDead = (int) longs.get(0);
+	for (int i = 0; i < numDead; ++i) {
+	    long record = longs.get(1 + i);
+	    if (record < 0 || record >= numRecords) {
+		return null;
+	    }
+	    dead.set((int) record);
+	}
+	long[] pairs = new long[longs.limit() - 1 - numDead];
+	longs.position(1 + numDead);
+	longs.get(pairs);
+	for (long pair : pairs) {
+	    if ((pair >>> 32) >= numRecords || (pair & 0xFFFFFFFFL) >= numRecords) {
+		return null;
+	    }
+	}
+	return pairs;
+    }
+
+    // Whether the store has the signature of a document with the given content hash, so
+    // that update() doesn't need its text.
+    public boolean contains(String name, long contentHash) {
+	Integer record = liveRecords_.get(name);
+	return record != null && getContentHash(record) == contentHash;
+    }
+
+    private long getContentHash(int record) {
+	return records_[record / recordsPerChunk_].get((record % recordsPerChunk_) * recordLongs_);
+    }
+
+    private long getFlags(int record) {
+	return records_[record / recordsPerChunk_].get((record % recordsPerChunk_) * recordLongs_ + 1);
+    }
+
+    // Copies the signature of a stored record into signatures at the given offset.
+    private void getSignature(int record, long[] signatures, int offset) {
+	LongBuffer chunk = records_[record / recordsPerChunk_].duplicate();
+	chunk.position((record % recordsPerChunk_) * recordLongs_ + 2);
+	chunk.get(signatures, offset, numHashes_);
+    }
+
+    // Whether a record is a stored one whose document is still in the collection.
+    private boolean isLive(long record) {
+	return record < numRecords_ && !dead_.get((int) record);
+    }
+
+    /**
+     * Brings the store up to date with the documents of a collection, and returns their
+     * duplicate pairs in the format of NearDuplicateDetector.findDuplicatePairs(). Only
+     * the documents that aren't in the store with the same content hash are signed.
+     *
+     * @param names the names of the documents
+     * @param contentHashes the hashes of the contents of the documents, by position in names
+     * @param pages the parsed documents, by position in names
+     */
+    public Set<String> update(List<String> names, long[] contentHashes, List<ParsedPage> pages)
+	throws IOException {
+	int numDocs = names.size();
+	Map<String, Integer> positions = new HashMap<String, Integer>(numDocs * 2);
+	for (int i = 0; i < numDocs; ++i) {
+	    positions.put(names.get(i), i);
+	}
+	// The records of the documents that are gone or changed are dead.
+	boolean[] stored = new boolean[numDocs];
+	List<Integer> deadRecords = new ArrayList<Integer>();
+	for (Map.Entry<String, Integer> live : liveRecords_.entrySet()) {
+	    Integer position = positions.get(live.getKey());
+	    int record = live.getValue();
+	    if (position != null && getContentHash(record) == contentHashes[position]) {
+		stored[position] = true;
+	    } else {
+		deadRecords.add(record);
+	    }
+	}
+	for (int record : deadRecords) {
+	    dead_.set(record);
+	    liveRecords_.remove(names_.get(record));
+	}
+	numReused_ = liveRecords_.size();
+
+	// Sign the new documents, as records numRecords_ and up.
+	List<Integer> newDocs = new ArrayList<Integer>();
+	for (int i = 0; i < numDocs; ++i) {
+	    if (!stored[i]) {
+		newDocs.add(i);
+	    }
+	}
+	int numNew = newDocs.size();
+	long[] newSignatures = new long[numNew * numHashes_];
+	boolean[] newNonEmpty = new boolean[numNew];
+	long[] signature = new long[numHashes_];
+	for (int k = 0; k < numNew; ++k) {
+	    newNonEmpty[k] = detector_.sign(pages.get(newDocs.get(k)).getText(), signature);
+	    System.arraycopy(signature, 0, newSignatures, k * numHashes_, numHashes_);
+	}
+	numSigned_ = numNew;
+
+	// The pairs between stored documents are unchanged, unless one of them is dead.
+	Set<Long> pairs = new HashSet<Long>();
+	for (long pair : pairs_) {
+	    if (isLive(pair >>> 32) && isLive(pair & 0xFFFFFFFFL)) {
+		pairs.add(pair);
+	    }
+	}
+	// Compare the new documents with the documents in their buckets.
+	long[][] bandKeys = new long[numBands_][];
+	for (int band = 0; band < numBands_; ++band) {
+	    bandKeys[band] = sortedBandKeys(newSignatures, newNonEmpty, numNew, band);
+	}
+	Set<Long> candidates = new HashSet<Long>();
+	for (int band = 0; band < numBands_; ++band) {
+	    long[] keys = bandKeys[band];
+	    int start = 0;
+	    while (start < keys.length) {
+		int end = start + 1;
+		while (end < keys.length && (keys[end] >>> 32) == (keys[start] >>> 32)) {
+		    end++;
+		}
+		for (int x = start; x < end; ++x) {
+		    long newRecord = numRecords_ + (keys[x] & 0xFFFFFFFFL);
+		    for (int y = x + 1; y < end; ++y) {
+			candidates.add((newRecord << 32) | (numRecords_ + (keys[y] & 0xFFFFFFFFL)));
+		    }
+		}
+		long bucket = ((long) band << 32) | (keys[start] >>> 32);
+		for (LongBuffer run : runs_) {
+		    for (int entry = lowerBound(run, bucket); entry < run.limit() / 2 && run.get(2 * entry) == bucket; ++entry) {
+			long record = run.get(2 * entry + 1);
+			if (!isLive(record)) {
+			    continue;
+			}
+			for (int x = start; x < end; ++x) {
+			    candidates.add((record << 32) | (numRecords_ + (keys[x] & 0xFFFFFFFFL)));
+			}
+		    }
+		}
+		start = end;
+	    }
+	}
+	numCandidates_ = candidates.size();
+	long[] other = new long[numHashes_];
+	for (long candidate : candidates) {
+	    int lower = (int) (candidate >>> 32);
+	    int higher = (int) candidate;
+	    long[] lowerSignatures = newSignatures;
+	    int lowerOffset = (lower - numRecords_) * numHashes_;
+	    if (lower < numRecords_) {
+		getSignature(lower, other, 0);
+		lowerSignatures = other;
+		lowerOffset = 0;
+	    }
+	    int agree = 0;
+	    int higherOffset = (higher - numRecords_) * numHashes_;
+	    for (int h = 0; h < numHashes_; ++h) {
+		if (lowerSignatures[lowerOffset + h] == newSignatures[higherOffset + h]) {
+		    agree++;
+		}
+	    }
+	    if (agree / (numHashes_ + 0.0) > detector_.getThreshold()) {
+		pairs.add(candidate);
+	    }
+	}
+
+	String[] recordNames = new String[numRecords_ + numNew];
+	for (int record = 0; record < numRecords_; ++record) {
+	    recordNames[record] = names_.get(record);
+	}
+	for (int k = 0; k < numNew; ++k) {
+	    recordNames[numRecords_ + k] = names.get(newDocs.get(k));
+	}
+	Set<String> duplicates = new HashSet<String>();
+	for (long pair : pairs) {
+	    duplicates.add(NearDuplicateDetector.formatPair(recordNames[(int) (pair >>> 32)], recordNames[(int) pair]));
+	}
+
+	long[] allPairs = new long[pairs.size()];
+	int numPairs = 0;
+	for (long pair : pairs) {
+	    allPairs[numPairs++] = pair;
+	}
+	Arrays.sort(allPairs);
+	int numLive = liveRecords_.size() + numNew;
+	if (signatureChannel_ == null || dead_.cardinality() > numLive || runs_.size() >= MAX_RUNS) {
+	    rewrite(recordNames, newSignatures, newNonEmpty, contentHashes, newDocs, allPairs);
+	} else {
+	    append(recordNames, newSignatures, newNonEmpty, contentHashes, newDocs, bandKeys, allPairs);
+	}
+	deleteFiles(true);
+	return duplicates;
+    }
+
+    // Returns the (upper 32 bits of the band hash, document) keys of the non-empty
+    // signatures for a band, sorted, as in NearDuplicateDetector.findCandidatePairs().
+    private long[] sortedBandKeys(long[] signatures, boolean[] nonEmpty, int numDocs, int band) {
+	long[] keys = new long[numDocs];
+	int numKeys = 0;
+	for (int doc = 0; doc < numDocs; ++doc) {
+	    if (nonEmpty[doc]) {
+		keys[numKeys++] = (detector_.bandHash(signatures, doc * numHashes_, band) & 0xFFFFFFFF00000000L) | doc;
+	    }
+	}
+	keys = Arrays.copyOf(keys, numKeys);
+	Arrays.sort(keys);
+	return keys;
+    }
+
+    // Returns the first entry of a run whose bucket is at least the given one.
+    private static int lowerBound(LongBuffer run, long bucket) {
+	int low = 0;
+	int high = run.limit() / 2;
+	while (low < high) {
+	    int mid = (low + high) >>> 1;
+	    if (run.get(2 * mid) < bucket) {
+		low = mid + 1;
+	    } else {
+		high = mid;
+	    }
+	}
+	return low;
+    }
+
+    // Appends the new records, a run with their buckets and their names, and writes the new
+    // state. None of it is part of the store until the header is written.
+    private void append(String[] recordNames, long[] newSignatures, boolean[] newNonEmpty,
+			long[] contentHashes, List<Integer> newDocs, long[][] bandKeys, long[] pairs)
+	throws IOException {
+	int numNew = newDocs.size();
+	ByteBuffer records = ByteBuffer.allocate(numNew * recordLongs_ * 8).order(ByteOrder.LITTLE_ENDIAN);
+	for (int k = 0; k < numNew; ++k) {
+	    putRecord(records, contentHashes[newDocs.get(k)], newNonEmpty[k], newSignatures, k * numHashes_);
+	}
+	records.flip();
+	writeFully(signatureChannel_, records, HEADER_BYTES + (long) numRecords_ * recordLongs_ * 8);
+
+	ByteBuffer run = newRun(bandKeys, numRecords_);
+	FileChannel buckets = FileChannel.open(dir_.resolve(BUCKETS_FILE + generation_), StandardOpenOption.WRITE);
+	try {
+	    writeFully(buckets, run, bucketsLength_);
+	    buckets.force(false);
+	} finally {
+	    buckets.close();
+	}
+	long bucketsLength = bucketsLength_ + run.capacity();
+
+	StringBuilder names = new StringBuilder();
+	for (int k = 0; k < numNew; ++k) {
+	    names.append(recordNames[numRecords_ + k]).append('\n');
+	}
+	byte[] nameBytes = names.toString().getBytes(StandardCharsets.UTF_8);
+	FileChannel namesChannel = FileChannel.open(dir_.resolve(NAMES_FILE + generation_), StandardOpenOption.WRITE);
+	try {
+	    writeFully(namesChannel, ByteBuffer.wrap(nameBytes), namesLength_);
+	    namesChannel.force(false);
+	} finally {
+	    namesChannel.close();
+	}
+	long stateVersion = stateVersion_ + 1;
+	writeState(stateVersion, dead_, pairs);
+	signatureChannel_.force(false);
+	writeHeader(signatureChannel_, numRecords_ + numNew, generation_, bucketsLength, namesLength_ + nameBytes.length,
+		    stateVersion);
+	signatureChannel_.force(false);
+	signatureChannel_.close();
+	signatureChannel_ = null;
+	stateVersion_ = stateVersion;
+    }
+
+    // Rewrites the store with only the live records, in a new generation. The new
+    // minhash.sig replaces the old one last.
+    private void rewrite(String[] recordNames, long[] newSignatures, boolean[] newNonEmpty,
+			 long[] contentHashes, List<Integer> newDocs, long[] pairs) throws IOException {
+	compacted_ = true;
+	int numNew = newDocs.size();
+	// The live records and their new numbers.
+	int[] renumbered = new int[numRecords_ + numNew];
+	int numLive = 0;
+	for (int record = 0; record < numRecords_; ++record) {
+	    renumbered[record] = isLive(record) ? numLive++ : -1;
+	}
+	for (int k = 0; k < numNew; ++k) {
+	    renumbered[numRecords_ + k] = numLive++;
+	}
+	long[] signatures = new long[numLive * numHashes_];
+	boolean[] nonEmpty = new boolean[numLive];
+	long[] hashes = new long[numLive];
+	String[] liveNames = new String[numLive];
+	for (int record = 0; record < numRecords_ + numNew; ++record) {
+	    int live = renumbered[record];
+	    if (live < 0) {
+		continue;
+	    }
+	    liveNames[live] = recordNames[record];
+	    if (record < numRecords_) {
+		getSignature(record, signatures, live * numHashes_);
+		nonEmpty[live] = (getFlags(record) & NON_EMPTY) != 0;
+		hashes[live] = getContentHash(record);
+	    } else {
+		int k = record - numRecords_;
+		System.arraycopy(newSignatures, k * numHashes_, signatures, live * numHashes_, numHashes_);
+		nonEmpty[live] = newNonEmpty[k];
+		hashes[live] = contentHashes[newDocs.get(k)];
+	    }
+	}
+	long generation = generation_ + 1;
+	long stateVersion = stateVersion_ + 1;
+
+	ByteBuffer records = ByteBuffer.allocate(HEADER_BYTES + numLive * recordLongs_ * 8).order(ByteOrder.LITTLE_ENDIAN);
+	records.position(HEADER_BYTES);
+	for (int live = 0; live < numLive; ++live) {
+	    putRecord(records, hashes[live], nonEmpty[live], signatures, live * numHashes_);
+	}
+
+	long[][] bandKeys = new long[numBands_][];
+	for (int band = 0; band < numBands_; ++band) {
+	    bandKeys[band] = sortedBandKeys(signatures, nonEmpty, numLive, band);
+	}
+	ByteBuffer run = newRun(bandKeys, 0);
+	long bucketsLength = run.capacity();
+	replace(dir_.resolve(BUCKETS_FILE + generation), run);
+
+	StringBuilder names = new StringBuilder();
+	for (String name : liveNames) {
+	    names.append(name).append('\n');
+	}
+	byte[] nameBytes = names.toString().getBytes(StandardCharsets.UTF_8);
+	replace(dir_.resolve(NAMES_FILE + generation), ByteBuffer.wrap(nameBytes));
+
+	long[] livePairs = new long[pairs.length];
+	for (int i = 0; i < pairs.length; ++i) {
+	    long lower = renumbered[(int) (pairs[i] >>> 32)];
+	    long higher = renumbered[(int) pairs[i]];
+	    livePairs[i] = (lower << 32) | higher;
+	}
+	Arrays.sort(livePairs);
+	writeState(stateVersion, new BitSet(), livePairs);
+
+	Path tmp = dir_.resolve(SIGNATURES_FILE + ".tmp");
+	FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					       StandardOpenOption.TRUNCATE_EXISTING);
+	try {
+	    records.position(0);
+	    writeFully(channel, records, 0);
+	    writeHeader(channel, numLive, generation, bucketsLength, nameBytes.length, stateVersion);
+	    channel.force(false);
+	} finally {
+	    channel.close();
+	}
+	if (signatureChannel_ != null) {
+	    signatureChannel_.close();
+	    signatureChannel_ = null;
+	}
+	Files.move(tmp, dir_.resolve(SIGNATURES_FILE), StandardCopyOption.REPLACE_EXISTING,
+		   StandardCopyOption.ATOMIC_MOVE);
+	generation_ = generation;
+	stateVersion_ = stateVersion;
+    }
+
+    // Returns a run of (bucket, record) entries for the sorted keys of every band, where
+    // the document in a key is numbered from firstRecord.
+    private ByteBuffer newRun(long[][] bandKeys, int firstRecord) {
+	int numEntries = 0;
+	for (long[] keys : bandKeys) {
+	    numEntries += keys.length;
+	}
+	ByteBuffer run = ByteBuffer.allocate(8 + numEntries * 16).order(ByteOrder.LITTLE_ENDIAN);
+	run.putLong(numEntries);
+	for (int band = 0; band < bandKeys.length; ++band) {
+	    // The keys are sorted as signed longs, so those with the top bit set, whose buckets
+	    // are the largest, come first.
+	    long[] keys = bandKeys[band];
+	    int firstNegative = 0;
+	    while (firstNegative < keys.length && keys[firstNegative] < 0) {
+		firstNegative++;
+	    }
+	    for (int i = 0; i < keys.length; ++i) {
+		long key = keys[(firstNegative + i) % keys.length];
+		run.putLong(((long) band << 32) | (key >>> 32));
+		run.putLong(firstRecord + (key & 0xFFFFFFFFL));
+	    }
+	}
+	run.flip();
+	return run;
+    }
+
+    private void putRecord(ByteBuffer records, long contentHash, boolean nonEmpty, long[] signatures, int offset) {
+	records.putLong(contentHash);
+	records.putLong(nonEmpty ? NON_EMPTY : 0);
+	for (int h = 0; h < numHashes_; ++h) {
+	    records.putLong(signatures[offset + h]);
+	}
+    }
+
+    private void writeHeader(FileChannel channel, int numRecords, long generation, long bucketsLength,
+			     long namesLength, long stateVersion) throws IOException {
+	ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+	header.putLong(MAGIC).putLong(VERSION).putLong(detector_.getShingleSize()).putLong(numHashes_)
+	    .putLong(numBands_).putLong(Double.doubleToLongBits(detector_.getThreshold()))
+	    .putLong(numRecords).putLong(generation).putLong(bucketsLength).putLong(namesLength)
+	    .putLong(stateVersion);
+	header.flip();
+	writeFully(channel, header, 0);
+    }
+
+    // Writes the state file of a version: the number of dead records, the dead records and
+    // the pairs.
+    private void writeState(long version, BitSet dead, long[] pairs) throws IOException {
+	int numDead = dead.cardinality();
+	ByteBuffer bytes = ByteBuffer.allocate(8 + (numDead + pairs.length) * 8).order(ByteOrder.LITTLE_ENDIAN);
+	bytes.putLong(numDead);
+	for (int record = dead.nextSetBit(0); record >= 0; record = dead.nextSetBit(record + 1)) {
+	    bytes.putLong(record);
+	}
+	for (long pair : pairs) {
+	    bytes.putLong(pair);
+	}
+	bytes.flip();
+	replace(dir_.resolve(STATE_FILE + version), bytes);
+    }
+
+    // Replaces a file with the given contents.
+    private static void replace(Path file, ByteBuffer contents) throws IOException {
+	Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+	FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					       StandardOpenOption.TRUNCATE_EXISTING);
+	try {
+	    writeFully(channel, contents, 0);
+	    channel.force(false);
+	} finally {
+	    channel.close();
+	}
+	Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+	while (buffer.hasRemaining()) {
+	    position += channel.write(buffer, position);
+	}
+    }
+
+    // Deletes the files of the store, or only those of other generations and states than
+    // the committed ones, left by compactions and by failed builds.
+    private void deleteFiles(boolean staleOnly) throws IOException {
+	Set<String> current = new HashSet<String>();
+	if (staleOnly) {
+	    current.add(SIGNATURES_FILE);
+	    current.add(BUCKETS_FILE + generation_);
+	    current.add(NAMES_FILE + generation_);
+	    current.add(STATE_FILE + stateVersion_);
+	}
+	DirectoryStream<Path> files = Files.newDirectoryStream(dir_, FILE_PREFIX + ".*");
+	try {
+	    for (Path file : files) {
+		if (!current.contains(file.getFileName().toString())) {
+		    Files.delete(file);
+		}
+	    }
+	} finally {
+	    files.close();
+	}
+    }
+
+    // Releases the store. The mapped records stay valid until they are garbage collected.
+    public void close() throws IOException {
+	if (signatureChannel_ != null) {
+	    signatureChannel_.close();
+	    signatureChannel_ = null;
+	}
+    }
+
+    // Number of documents signed by the last update.
+    public int getNumSigned() {
+	return numSigned_;
+    }
+
+    // Number of documents whose stored signature the last update reused.
+    public int getNumReused() {
+	return numReused_;
+    }
+
+    // Number of candidate pairs of new documents that the last update checked.
+    public int getNumCandidates() {
+	return numCandidates_;
+    }
+
+    // Whether the last update rewrote the whole store.
+    public boolean wasCompacted() {
+	return compacted_;
+    }
+}
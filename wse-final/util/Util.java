@@ -1,5 +1,8 @@
 package util;
 
+import htmlparser.JTidyHTMLHandler;
+import htmlparser.ParsedPage;
+import htmlparser.StreamingHTMLHandler;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileFilter;
@@ -9,13 +12,45 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Comparator;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
 
 public class Util {
 
+    // Runs the in-JVM MinHash + LSH duplicate detection with the default parameters
+    // over all files in the given directory.
+    public static Set<String> runMinHashAlgorithm(String outputDir) throws IOException {
+        return runMinHashAlgorithm(outputDir, new NearDuplicateDetector());
+    }
+
+    // Runs the in-JVM MinHash + LSH duplicate detection over all files in the given directory.
+    // Returns the duplicate pairs in the same "docA,docB" format as runShinglesAlgorithm.
+    // HTML files are reduced to their title and body text first, like the python implementation does.
+    public static Set<String> runMinHashAlgorithm(String outputDir, NearDuplicateDetector detector)
+        throws IOException {
+        JTidyHTMLHandler htmlHandler = new StreamingHTMLHandler();
+        ArrayList<ParsedPage> pages = new ArrayList<ParsedPage>();
+        for (DocumentWalker.Entry f : DocumentWalker.list(outputDir)) {
+            pages.add(extractPage(f.toFile(), htmlHandler));
+        }
+        return runMinHashAlgorithm(pages, detector);
+    }
+
+    // Runs the in-JVM MinHash + LSH duplicate detection over already parsed pages.
+    public static Set<String> runMinHashAlgorithm(Collection<ParsedPage> pages, NearDuplicateDetector detector) {
+        for (ParsedPage page : pages) {
+            detector.addDocument(page.getName(), page.getText());
+        }
+        Set<String> algoDuplicates = detector.findDuplicatePairs();
+        if (Verbosity.atLeast(Verbosity.DOCUMENTS)) {
+            System.out.println("Implementation results:");
+            for (String pair : algoDuplicates) {
+                System.out.println(pair);
+            }
+        }
+        return algoDuplicates;
+    }
+
     // Runs the python 'findShingles' module by creating a subprocess and invoking the python code.                                         
     // Reads the duplicate documents detected by the algorithm.                                                                             
     // Subprocess logic is borrowed & adapted from:                                                                                         
@@ -45,6 +80,20 @@ public class Util {
         return algoDuplicates;
     }
 
+    // Reads a file once and extracts its title, text, word count and anchors.
+    // HTML files are parsed with the given handler, other files are treated as plain text.
+    public static ParsedPage extractPage(File f, JTidyHTMLHandler htmlHandler) throws IOException {
+        return extractPage(f, Files.readAllBytes(f.toPath()), htmlHandler);
+    }
+
+    // Extracts the title, text, word count and anchors from the already read contents of a file.
+    public static ParsedPage extractPage(File f, byte[] content, JTidyHTMLHandler htmlHandler) {
+        if (new HTMLFilesFilter().accept(f)) {
+            return htmlHandler.parse(f, content);
+        }
+        return ParsedPage.fromText(getBasename(f.toString()), f.toString(), new String(content));
+    }
+
     // Gets the basename of a URL. For instance, if the URL is www.x.com/y/z.html ,                                                         
     // the basename will be z.html .                                                                                                        
     public static String getBasename(String urlStr) {
@@ -62,31 +111,6 @@ public class Util {
         return new String(encoded);
     }
 
-    // Recursively lists the files in the given path                                                                                        
-    // The implementation for "walk" adapted from:                                                                                          
-    // http://stackoverflow.com/questions/2056221/recursively-list-files-in-java                                                            
-    public static Collection<File> walk(String path) {
-
-        File root = new File(path);
-        ArrayList<File> files = new ArrayList<File>();
-        ArrayList<File> outFiles = new ArrayList<File>();
-        for (File f : root.listFiles()) {
-            files.add(f);
-        }
-
-        if (files.size() == 0) return null;
-
-        for ( File f : files ) {
-            if ( f.isDirectory() ) {
-                outFiles.addAll(walk( f.getPath() ));
-            }
-            else {
-                outFiles.add(f);
-            }
-        }
-        return outFiles;
-    }
-
     // FileFilter that accepts .htm or .html files                                                                                          
     public static class HTMLFilesFilter implements FileFilter {
         public boolean accept(File path) {
@@ -95,11 +119,4 @@ public class Util {
         }
     }
 
-    // Small helper class to compare the PageRank scores of documents in descending order.
-    public static class PageRankComparator implements Comparator<Map.Entry<String, Double>> {
-        public int compare(Map.Entry<String, Double> a, Map.Entry<String, Double> b) {
-            return -1 * Double.compare(a.getValue(), b.getValue());
-        }
-    }
-
 }
\ No newline at end of file
@@ -0,0 +1,33 @@
+package util;
+
+/**
+ * How much the build prints. Printing every document name, link and score is slow
+ * enough to dominate the build of a large collection, so by default only a line per
+ * stage is printed.
+ */
+public class Verbosity {
+
+    // Only errors and the final summary.
+    public static final int QUIET = 0;
+
+    // A line per stage of the build (the default).
+    public static final int STAGES = 1;
+
+    // Every document, link, duplicate pair and score.
+    public static final int DOCUMENTS = 2;
+
+    private static volatile int level_ = STAGES;
+
+    public static void setLevel(int level) {
+	level_ = level;
+    }
+
+    public static int getLevel() {
+	return level_;
+    }
+
+    // Whether output at the given level should be printed.
+    public static boolean atLeast(int level) {
+	return level_ >= level;
+    }
+}
@@ -33,8 +33,14 @@ done
 echo Content-type: text/html
 echo ""
 
-cd csci2580-final
+# Forward the query to the resident search server (see run-search-server.sh).
+# If it is not running, fall back to starting a JVM for this query.
+SEARCH_SERVER=http://localhost:8580/search
 
-/usr/bin/java -Xmx512M -cp ".:./Lucene/lucene-core-5.4.1.jar:./Lucene/lucene-analyzers-common-5.4.1.jar:./Lucene/lucene-queryparser-5.4.1.jar:./JTidy/jtidy-r938.jar:./cli/commons-cli-1.3.1.jar" retriever.Retriever -q "$QUERY" -i index
+if ! curl -sf "$SEARCH_SERVER?$QUERY_STRING"; then
+    cd csci2580-final
 
-cd -
+    /usr/bin/java -Xmx512M -cp ".:./Lucene/lucene-core-5.4.1.jar:./Lucene/lucene-analyzers-common-5.4.1.jar:./Lucene/lucene-queryparser-5.4.1.jar:./JTidy/jtidy-r938.jar:./cli/commons-cli-1.3.1.jar" retriever.Retriever -q "$QUERY" -i index
+
+    cd -
+fi